@@ -0,0 +1,156 @@
+package com.dhcs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * putMessage под конкуренцией при 1..64 писателях: каждый пишет от своего
+ * автора, а отдельный поток как AppMessagesDashboard всё время читает
+ * снимок и вызывает timeStep. Один вызов бенчмарка - OPERATIONS вызовов
+ * putMessage, поровну разделённых между writers потоками, так что
+ * результат - суммарная пропускная способность писателей. Для сравнения
+ * оставлена прежняя реализация на справедливом замке.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppStateBenchmark {
+    private static final int OPERATIONS = 6400;
+
+    private interface Board {
+        void putMessage(String author, String message);
+
+        void timeStep();
+
+        int read();
+    }
+
+    /** Прежняя реализация AppState: один справедливый замок на HashMap. */
+    private static class FairLockBoard implements Board {
+        private final HashMap<String, String> messages = new HashMap<String, String>();
+        private final HashMap<String, Integer> lifeTimes = new HashMap<String, Integer>();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+        public void putMessage(String author, String message) {
+            lock.writeLock().lock();
+            messages.put(author, message);
+            lifeTimes.put(author, 0);
+            lock.writeLock().unlock();
+        }
+
+        public void timeStep() {
+            lock.writeLock().lock();
+            lifeTimes.replaceAll((author, lifeTime) -> lifeTime + 1);
+            lock.writeLock().unlock();
+        }
+
+        public int read() {
+            lock.readLock().lock();
+            int size = new HashMap<String, String>(messages).size();
+            lock.readLock().unlock();
+            return size;
+        }
+    }
+
+    private static class AppStateBoard implements Board {
+        private final AppState state = new AppState();
+
+        public void putMessage(String author, String message) {
+            state.putMessage(author, message);
+        }
+
+        public void timeStep() {
+            state.timeStep();
+        }
+
+        public int read() {
+            return state.getSnapshot().size();
+        }
+    }
+
+    @Param({ "appState", "fairLock" })
+    public String implementation;
+
+    @Param({ "1", "2", "4", "8", "16", "32", "64" })
+    public int writers;
+
+    private volatile Board board;
+    private ExecutorService pool;
+    private List<Callable<Void>> tasks;
+    private Thread dashboard;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pool = Executors.newFixedThreadPool(writers);
+        tasks = new ArrayList<Callable<Void>>(writers);
+        for (int i = 0; i < writers; i++) {
+            String author = "author-" + i;
+            tasks.add(() -> {
+                Board target = board;
+                for (int n = OPERATIONS / writers; n > 0; n--) {
+                    target.putMessage(author, "message");
+                }
+                return null;
+            });
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startDashboard() {
+        board = implementation.equals("fairLock") ? new FairLockBoard() : new AppStateBoard();
+        dashboard = new Thread(() -> {
+            Board target = board;
+            while (!Thread.currentThread().isInterrupted()) {
+                target.read();
+                target.timeStep();
+            }
+        }, "Dashboard");
+        dashboard.setDaemon(true);
+        dashboard.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopDashboard() throws InterruptedException {
+        dashboard.interrupt();
+        dashboard.join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void putMessage() throws InterruptedException, ExecutionException {
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            future.get();
+        }
+    }
+}
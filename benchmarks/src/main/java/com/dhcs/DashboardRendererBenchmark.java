@@ -0,0 +1,82 @@
+package com.dhcs;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Стоимость одного кадра доски. incremental повторяет цикл
+ * AppMessagesDashboard: changes авторов пишут между кадрами, и кадр
+ * применяет изменения и выводит только их. full перерисовывает доску
+ * целиком из снимка. Кадры пишутся в пустой поток.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DashboardRendererBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int authors;
+
+    @Param({ "1", "10" })
+    public int changes;
+
+    private AppState state;
+    private DashboardRenderer renderer;
+    private String[] names;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        state = new AppState();
+        names = new String[authors];
+        for (int i = 0; i < authors; i++) {
+            names[i] = "author-" + i;
+            state.putMessage(names[i], "message " + i);
+        }
+        renderer = new DashboardRenderer(new PrintStream(OutputStream.nullOutputStream()));
+        renderer.reset(state.getTick(), state.getSnapshot());
+        renderer.render(state.getTick());
+    }
+
+    @Benchmark
+    public long incremental() {
+        for (int i = 0; i < changes; i++) {
+            state.putMessage(names[next], "message");
+            next = (next + 1) % authors;
+        }
+
+        long tick = state.getTick();
+        AppState.Delta delta = state.getChangesSince(renderer.getVersion());
+        if (delta != null) {
+            renderer.apply(delta);
+        } else {
+            renderer.reset(tick, state.getSnapshot());
+        }
+        state.timeStep();
+        renderer.render(tick);
+        return renderer.getLastFrameNanos();
+    }
+
+    @Benchmark
+    public long full() {
+        renderer.reset(state.getTick(), state.getSnapshot());
+        renderer.render(state.getTick());
+        return renderer.getLastFrameNanos();
+    }
+}
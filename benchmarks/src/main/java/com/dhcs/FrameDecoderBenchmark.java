@@ -0,0 +1,95 @@
+package com.dhcs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Разбор запросов putMessage сервером lab01 в текстовом и бинарном
+ * протоколе. Поток запросов заранее записан в память и подаётся кусками
+ * по 64 КБ, как их отдаёт EventLoop. Результат - время на один запрос.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+    private static final int FRAMES = 10_000;
+    private static final int AUTHORS = 100;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Param({ "text", "binary" })
+    public String protocol;
+
+    private byte[] stream;
+    private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        stream = protocol.equals("binary") ? encodeBinary() : encodeText();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public App.AppState decode() {
+        App.AppState state = new App.AppState();
+        App.FrameDecoder decoder = protocol.equals("binary")
+                ? new App.BinaryFrameDecoder()
+                : new App.TextFrameDecoder();
+        for (int offset = 0; offset < stream.length; offset += CHUNK_SIZE) {
+            chunk.clear();
+            chunk.put(stream, offset, Math.min(CHUNK_SIZE, stream.length - offset));
+            chunk.flip();
+            if (!decoder.decode(chunk, state)) {
+                throw new IllegalStateException("malformed stream");
+            }
+        }
+        decoder.finish(state);
+        return state;
+    }
+
+    private static byte[] encodeText() {
+        Charset charset = Charset.defaultCharset();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            String frame = "putMessage\nauthor-" + (i % AUTHORS) + "\nmessage number " + i + "\n\n";
+            out.writeBytes(frame.getBytes(charset));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeBinary() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] author = ("author-" + (i % AUTHORS)).getBytes(StandardCharsets.UTF_8);
+            byte[] text = ("message number " + i).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(3 + author.length + text.length);
+            out.writeByte(App.BinaryFrameDecoder.PUT_MESSAGE);
+            out.writeShort(author.length);
+            out.write(author);
+            out.write(text);
+        }
+        return buffer.toByteArray();
+    }
+}
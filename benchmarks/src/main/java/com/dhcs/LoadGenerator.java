@@ -0,0 +1,296 @@
+package com.dhcs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.rmi.NotBoundException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Нагрузочный клиент без ввода с клавиатуры. Имитирует authors авторов,
+ * которых по кругу обслуживают concurrency потоков, каждый со своим
+ * соединением. Без --rate каждый поток шлёт следующее сообщение сразу
+ * после предыдущего (замкнутый цикл), с --rate потоки вместе держат
+ * заданную частоту, а задержка считается от запланированного момента
+ * отправки, чтобы отставание генератора не скрывало очередь на сервере.
+ *
+ * Сервер lab01 не отвечает на запросы, поэтому для него задержка - время,
+ * за которое сокет принял запрос. Оно растёт, когда сервер не успевает
+ * читать. Для lab02 это время вызова putMessage через RMI или двоичный RPC.
+ *
+ * Аргументы:
+ *   --target=socket|rmi|rpc сервер lab01 (по умолчанию) или lab02 через RMI
+ *                        или через RpcServer
+ *   --host=HOST          адрес сервера, 127.0.0.1
+ *   --port=PORT          порт сервера, реестра или RpcServer, 3001
+ *   --shards=H:P,...     кластер серверов lab02 вместо host и port
+ *   --binary             бинарный протокол lab01
+ *   --authors=N          число авторов, 100
+ *   --concurrency=N      число потоков и соединений, 8
+ *   --rate=N             сообщений в секунду на всех, 0 - замкнутый цикл
+ *   --message-size=N     длина сообщения в символах, 32
+ *   --warmup=S           секунд прогрева без замеров, 2
+ *   --duration=S         секунд замера, 10
+ *
+ * Запуск:
+ *   java -cp benchmarks/target/benchmarks.jar com.dhcs.LoadGenerator --target=rmi --rate=20000
+ */
+public class LoadGenerator {
+    // задержки больше минуты считаются минутой
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private interface Connection {
+        void putMessage(String author, String message) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /** Соединение с сервером lab01, каждый запрос сразу уходит в сокет. */
+    private static class SocketConnection implements Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final boolean binary;
+        private final Charset charset = Charset.defaultCharset();
+
+        SocketConnection(String host, int port, boolean binary) throws IOException {
+            this.socket = new Socket(host, port);
+            this.socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.binary = binary;
+            if (binary) {
+                out.write(App.BinaryFrameDecoder.MAGIC);
+            }
+        }
+
+        public void putMessage(String author, String message) throws IOException {
+            if (binary) {
+                byte[] name = author.getBytes(StandardCharsets.UTF_8);
+                byte[] text = message.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(3 + name.length + text.length);
+                out.writeByte(App.BinaryFrameDecoder.PUT_MESSAGE);
+                out.writeShort(name.length);
+                out.write(name);
+                out.write(text);
+            } else {
+                out.write(("putMessage\n" + author + "\n" + message + "\n\n").getBytes(charset));
+            }
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** Соединение с сервером lab02, у RPC своё на каждый поток. */
+    private static class RmiConnection implements Connection {
+        private final IAppServer server;
+
+        RmiConnection(String host, int port, List<String> shards, boolean rpc) throws IOException, NotBoundException {
+            this.server = AppClient.connect(host, port, shards, rpc);
+        }
+
+        public void putMessage(String author, String message) throws IOException {
+            server.putMessage(author, message);
+        }
+
+        public void close() {
+            if (server instanceof RpcClient) {
+                ((RpcClient) server).close();
+            }
+        }
+    }
+
+    private String target = "socket";
+    private String host = "127.0.0.1";
+    private int port = 3001;
+    private List<String> shards;
+    private boolean binary = false;
+    private int authors = 100;
+    private int concurrency = 8;
+    private long rate = 0;
+    private int messageSize = 32;
+    private long warmupSeconds = 2;
+    private long durationSeconds = 10;
+
+    private String message;
+    private long begin;
+    private long measureFrom;
+    private long measureTo;
+    // интервал между сообщениями одного потока, 0 - замкнутый цикл
+    private long period;
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            if (!generator.parse(arg)) {
+                System.err.printf("LoadGenerator.main: Unknown argument: %s\n", arg);
+                return;
+            }
+        }
+        generator.run();
+    }
+
+    private boolean parse(String arg) {
+        int eq = arg.indexOf('=');
+        String key = eq < 0 ? arg : arg.substring(0, eq);
+        String value = eq < 0 ? "" : arg.substring(eq + 1);
+        try {
+            switch (key) {
+                case "--target":
+                    target = value;
+                    return value.equals("socket") || value.equals("rmi") || value.equals("rpc");
+                case "--host":
+                    host = value;
+                    return true;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    return true;
+                case "--shards":
+                    shards = Arrays.asList(value.split(","));
+                    return true;
+                case "--binary":
+                    binary = true;
+                    return true;
+                case "--authors":
+                    authors = Integer.parseInt(value);
+                    return authors > 0;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(value);
+                    return concurrency > 0;
+                case "--rate":
+                    rate = Long.parseLong(value);
+                    return rate >= 0;
+                case "--message-size":
+                    messageSize = Integer.parseInt(value);
+                    return messageSize >= 0;
+                case "--warmup":
+                    warmupSeconds = Long.parseLong(value);
+                    return warmupSeconds >= 0;
+                case "--duration":
+                    durationSeconds = Long.parseLong(value);
+                    return durationSeconds > 0;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private Connection connect() throws IOException, NotBoundException {
+        if (target.equals("rmi") || target.equals("rpc")) {
+            return new RmiConnection(host, port, shards, target.equals("rpc"));
+        }
+        return new SocketConnection(host, port, binary);
+    }
+
+    private void run() throws InterruptedException {
+        char[] filler = new char[messageSize];
+        Arrays.fill(filler, 'x');
+        message = new String(filler);
+
+        begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureFrom = begin + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureTo = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        period = rate == 0 ? 0 : Math.max(1, 1_000_000_000L * concurrency / rate);
+
+        Histogram[] histograms = new Histogram[concurrency];
+        LongAdder errors = new LongAdder();
+        CountDownLatch connected = new CountDownLatch(concurrency);
+        Thread[] workers = new Thread[concurrency];
+        for (int w = 0; w < concurrency; w++) {
+            int worker = w;
+            histograms[w] = new Histogram(MAX_LATENCY_NANOS, 3);
+            workers[w] = new Thread(() -> work(worker, histograms[worker], errors, connected), "LoadGenerator-" + w);
+        }
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        connected.await();
+        System.out.printf("target: %s, authors: %d, concurrency: %d, rate: %s\n",
+                target + (binary ? " (binary)" : "") + (shards != null ? " " + shards : ""), authors, concurrency, rate == 0 ? "closed loop" : rate + " msg/s");
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Histogram total = new Histogram(MAX_LATENCY_NANOS, 3);
+        for (Histogram histogram : histograms) {
+            total.add(histogram);
+        }
+        report(total, errors.sum());
+    }
+
+    private void work(int worker, Histogram histogram, LongAdder errors, CountDownLatch connected) {
+        Connection connection;
+        try {
+            connection = connect();
+        } catch (IOException | NotBoundException e) {
+            System.err.printf("LoadGenerator.connect: %s\n", e.toString());
+            errors.increment();
+            return;
+        } finally {
+            connected.countDown();
+        }
+
+        String[] names = new String[(authors - worker + concurrency - 1) / concurrency];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "load-" + (worker + i * concurrency);
+        }
+
+        try {
+            // потоки начинают со сдвигом, чтобы не слать все разом
+            long intended = begin + period * worker / concurrency;
+            for (long i = 0; names.length > 0; i++) {
+                long start = System.nanoTime();
+                while (start < intended || start < begin) {
+                    TimeUnit.NANOSECONDS.sleep(Math.max(intended, begin) - start);
+                    start = System.nanoTime();
+                }
+                if (period > 0) {
+                    start = intended;
+                    intended += period;
+                }
+                if (start >= measureTo) {
+                    break;
+                }
+
+                connection.putMessage(names[(int) (i % names.length)], message);
+                if (start >= measureFrom) {
+                    histogram.recordValue(Math.min(MAX_LATENCY_NANOS, System.nanoTime() - start));
+                }
+            }
+        } catch (IOException e) {
+            System.err.printf("LoadGenerator.putMessage: %s\n", e.toString());
+            errors.increment();
+        } catch (InterruptedException e) {
+            // завершаемся, как при окончании замера
+        }
+
+        try {
+            connection.close();
+        } catch (IOException e) {
+            System.err.printf("LoadGenerator.close: %s\n", e.toString());
+        }
+    }
+
+    private void report(Histogram latency, long errors) {
+        System.out.printf("messages: %d, errors: %d, throughput: %.0f msg/s\n",
+                latency.getTotalCount(), errors, (double) latency.getTotalCount() / durationSeconds);
+        System.out.printf("latency, us: p50 %.1f, p99 %.1f, p999 %.1f, max %.1f\n",
+                latency.getValueAtPercentile(50) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3,
+                latency.getValueAtPercentile(99.9) / 1e3,
+                latency.getMaxValue() / 1e3);
+    }
+}
@@ -0,0 +1,68 @@
+package com.dhcs;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Хранилища сообщений AppState на доске из authors авторов: put -
+ * перезапись сообщения случайного автора, messages - выгрузка всех
+ * сообщений, как при пересборке снимка. Занятую кучу удобно смотреть
+ * ключом -prof gc или в jcmd GC.class_histogram.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MessageStoreBenchmark {
+    @Param({ "1000000" })
+    public int authors;
+
+    @Param({ "heap", "offheap" })
+    public String store;
+
+    private MessageStore messages;
+    private String[] names;
+    private long version = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        messages = store.equals("offheap") ? new OffHeapMessageStore() : new HeapMessageStore();
+        names = new String[authors];
+        for (int i = 0; i < authors; i++) {
+            names[i] = "author-" + i;
+            messages.put(new AppState.Message(names[i], "message " + i, 0, ++version));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Threads(4)
+    public void put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String author = names[random.nextInt(authors)];
+        // версии растут, и почти каждая запись заменяет сообщение
+        messages.put(new AppState.Message(author, "message", 0, System.nanoTime()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public AppState.Message[] messages() {
+        return messages.messages();
+    }
+}
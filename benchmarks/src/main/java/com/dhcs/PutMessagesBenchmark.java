@@ -0,0 +1,123 @@
+package com.dhcs;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Число сообщений в секунду при отправке каждого сообщения отдельным
+ * вызовом putMessage и пакетами putMessages по BATCH сообщений, как их
+ * собирает MessageCoalescer. Каждый из producers производителей пишет от
+ * своего имени, как отдельный AppClient, один вызов бенчмарка - MESSAGES
+ * сообщений на всех. Сервер и клиенты работают в одном процессе, RMI идёт
+ * через loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class PutMessagesBenchmark {
+    private static final int MESSAGES = 1024;
+    private static final int BATCH = 64;
+
+    @Param({ "1", "4", "16" })
+    public int producers;
+
+    private AppServer appServer;
+    private Registry registry;
+    private IAppServer server;
+    private ExecutorService pool;
+    private List<Callable<Void>> single;
+    private List<Callable<Void>> batched;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, NotBoundException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        appServer = new AppServer(new AppState(), null, 0, null, null);
+        registry = LocateRegistry.createRegistry(port);
+        registry.rebind("server", appServer);
+        server = (IAppServer) LocateRegistry.getRegistry("127.0.0.1", port).lookup("server");
+
+        pool = Executors.newFixedThreadPool(producers);
+        single = new ArrayList<Callable<Void>>(producers);
+        batched = new ArrayList<Callable<Void>>(producers);
+        int share = MESSAGES / producers;
+        for (int i = 0; i < producers; i++) {
+            String author = "producer-" + i;
+            single.add(() -> {
+                for (int n = 0; n < share; n++) {
+                    server.putMessage(author, "message");
+                }
+                return null;
+            });
+
+            ArrayList<AuthorMessage> batch = new ArrayList<AuthorMessage>(BATCH);
+            for (int n = 0; n < BATCH; n++) {
+                batch.add(new AuthorMessage(author, "message"));
+            }
+            batched.add(() -> {
+                for (int n = 0; n < share; n += BATCH) {
+                    server.putMessages(batch);
+                }
+                return null;
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws RemoteException, NotBoundException {
+        pool.shutdownNow();
+        registry.unbind("server");
+        UnicastRemoteObject.unexportObject(appServer, true);
+        UnicastRemoteObject.unexportObject(registry, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void putMessage() throws InterruptedException, ExecutionException {
+        for (Future<Void> future : pool.invokeAll(single)) {
+            future.get();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void putMessages() throws InterruptedException, ExecutionException {
+        for (Future<Void> future : pool.invokeAll(batched)) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.dhcs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Время восстановления доски из authors авторов при запуске сервера.
+ * log - всё состояние в журнале, snapshot - в снимке, а журнал
+ * прочитывается, но все его записи уже учтены в снимке. Каталог данных
+ * готовится один раз и не меняется замером.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RecoveryBenchmark {
+    @Param({ "1000000" })
+    public int authors;
+
+    @Param({ "log", "snapshot" })
+    public String source;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("recovery-benchmark");
+        AppState state = new AppState();
+        StateStore store = StateStore.open(directory, state, false);
+        for (int i = 0; i < authors; i++) {
+            state.putMessage("author-" + i, "message " + i);
+        }
+        if (source.equals("snapshot")) {
+            store.checkpoint();
+        }
+        store.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        WriteAheadLogBenchmark.delete(directory);
+    }
+
+    @Benchmark
+    public AppState recover() throws IOException {
+        AppState state = new AppState();
+        if (StateStore.load(directory, state) != authors) {
+            throw new IllegalStateException("lost authors");
+        }
+        return state;
+    }
+}
@@ -0,0 +1,143 @@
+package com.dhcs;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Круговая задержка RMI-вызовов сервера lab02 через loopback: отдельный
+ * putMessage и пакет putMessages, пересчитанный на одно сообщение, а также
+ * BATCH вызовов putMessage разных авторов через AsyncAppClient, которые
+ * идут одновременно по POOL_SIZE соединениям. Сервер и реестр поднимаются
+ * в том же процессе на свободном порту.
+ *
+ * transport - сокеты экспортированного сервера: default - транспорт RMI по
+ * умолчанию, tuned - TunedSocketFactory с буферами TCP по 256 КБ,
+ * compressed - то же со сжатием кадров от 1 КБ. messageLength - длина текста
+ * сообщения, тексты повторяются и хорошо сжимаются.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RmiBenchmark {
+    private static final int BATCH = 64;
+    private static final int POOL_SIZE = 8;
+    private static final int SOCKET_BUFFER = 256 * 1024;
+    private static final int COMPRESS_THRESHOLD = 1024;
+
+    @Param({"default", "tuned", "compressed"})
+    public String transport;
+
+    @Param({"16", "4096"})
+    public int messageLength;
+
+    private AppServer appServer;
+    private Registry registry;
+    private IAppServer server;
+    private AsyncAppClient async;
+    private String text;
+
+    @State(Scope.Thread)
+    public static class Author {
+        private static final AtomicInteger next = new AtomicInteger(0);
+
+        String name;
+        ArrayList<AuthorMessage> batch = new ArrayList<AuthorMessage>(BATCH);
+        String text;
+        // авторы асинхронных вызовов разные, чтобы вызовы шли параллельно
+        String[] names = new String[BATCH];
+        CompletableFuture<?>[] calls = new CompletableFuture<?>[BATCH];
+
+        @Setup(Level.Trial)
+        public void setup(RmiBenchmark benchmark) {
+            name = "author-" + next.getAndIncrement();
+            text = benchmark.text;
+            for (int i = 0; i < BATCH; i++) {
+                batch.add(new AuthorMessage(name, i + " " + text));
+                names[i] = name + "-" + i;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, NotBoundException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        StringBuilder message = new StringBuilder(messageLength);
+        while (message.length() < messageLength) {
+            message.append("message ").append(message.length()).append(' ');
+        }
+        text = message.substring(0, messageLength);
+
+        TunedSocketFactory factory = null;
+        if (transport.equals("tuned")) {
+            factory = new TunedSocketFactory(SOCKET_BUFFER, SOCKET_BUFFER);
+        } else if (transport.equals("compressed")) {
+            factory = new TunedSocketFactory(SOCKET_BUFFER, SOCKET_BUFFER, COMPRESS_THRESHOLD);
+        }
+        appServer = new AppServer(new AppState(), null, 0, factory, factory);
+        registry = LocateRegistry.createRegistry(port);
+        registry.rebind("server", appServer);
+        server = (IAppServer) LocateRegistry.getRegistry("127.0.0.1", port).lookup("server");
+        async = new AsyncAppClient.Builder(() -> server).setPoolSize(POOL_SIZE).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws RemoteException, NotBoundException, InterruptedException {
+        async.close();
+        registry.unbind("server");
+        UnicastRemoteObject.unexportObject(appServer, true);
+        UnicastRemoteObject.unexportObject(registry, true);
+    }
+
+    @Benchmark
+    public void putMessage(Author author) throws RemoteException {
+        server.putMessage(author.name, author.text);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putMessages(Author author) throws RemoteException {
+        server.putMessages(author.batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putMessageAsync(Author author) {
+        for (int i = 0; i < BATCH; i++) {
+            author.calls[i] = async.putMessage(author.names[i], author.text);
+        }
+        CompletableFuture.allOf(author.calls).join();
+    }
+}
@@ -0,0 +1,113 @@
+package com.dhcs;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * То же, что RmiBenchmark, но через RpcServer и RpcClient: все потоки
+ * делят одно соединение. putMessage и putMessages - круговая задержка,
+ * putMessagePipelined - BATCH вызовов putMessage, отправленных подряд без
+ * ожидания ответов, то есть пропускная способность одного соединения.
+ * Сравнивать с RmiBenchmark при transport=default, где putMessageAsync
+ * держит в пути столько же вызовов по POOL_SIZE соединениям.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RpcBenchmark {
+    private static final int BATCH = 64;
+
+    @Param({"16", "4096"})
+    public int messageLength;
+
+    private AppServer appServer;
+    private RpcServer rpcServer;
+    private RpcClient server;
+    private String text;
+
+    @State(Scope.Thread)
+    public static class Author {
+        private static final AtomicInteger next = new AtomicInteger(0);
+
+        String name;
+        String text;
+        ArrayList<AuthorMessage> batch = new ArrayList<AuthorMessage>(BATCH);
+        CompletableFuture<?>[] calls = new CompletableFuture<?>[BATCH];
+
+        @Setup(Level.Trial)
+        public void setup(RpcBenchmark benchmark) {
+            name = "author-" + next.getAndIncrement();
+            text = benchmark.text;
+            for (int i = 0; i < BATCH; i++) {
+                batch.add(new AuthorMessage(name, i + " " + text));
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StringBuilder message = new StringBuilder(messageLength);
+        while (message.length() < messageLength) {
+            message.append("message ").append(message.length()).append(' ');
+        }
+        text = message.substring(0, messageLength);
+
+        appServer = new AppServer();
+        rpcServer = new RpcServer(appServer, 0);
+        rpcServer.start();
+        server = RpcClient.connect("127.0.0.1", rpcServer.getPort());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws NoSuchObjectException, InterruptedException {
+        server.close();
+        rpcServer.close();
+        UnicastRemoteObject.unexportObject(appServer, true);
+    }
+
+    @Benchmark
+    public void putMessage(Author author) throws RemoteException {
+        server.putMessage(author.name, author.text);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putMessages(Author author) throws RemoteException {
+        server.putMessages(author.batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putMessagePipelined(Author author) {
+        for (int i = 0; i < BATCH; i++) {
+            author.calls[i] = server.putMessageAsync(author.name, author.text);
+        }
+        CompletableFuture.allOf(author.calls).join();
+    }
+}
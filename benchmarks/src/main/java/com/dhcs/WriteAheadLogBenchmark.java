@@ -0,0 +1,88 @@
+package com.dhcs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Пропускная способность записи в AppState с журналом StateStore: с fsync
+ * каждый putMessage ждёт общего сброса на диск, без fsync журнал только
+ * копируется в отображённые сегменты. none - состояние без журнала.
+ * Каталог данных создаётся во временной папке.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class WriteAheadLogBenchmark {
+    @Param({ "on", "off", "none" })
+    public String fsync;
+
+    private Path directory;
+    private AppState state;
+    private StateStore store;
+
+    @State(Scope.Thread)
+    public static class Author {
+        private static final AtomicInteger next = new AtomicInteger(0);
+
+        String name;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            name = "author-" + next.getAndIncrement();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        state = new AppState();
+        if (!fsync.equals("none")) {
+            directory = Files.createTempDirectory("wal-benchmark");
+            store = StateStore.open(directory, state, fsync.equals("on"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (store != null) {
+            store.close();
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public void putMessage(Author author) {
+        state.putMessage(author.name, "message");
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -1,252 +1,3087 @@
 package com.dhcs;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 
 public class App {
+    private static final long METRICS_INTERVAL_MILLIS = 10000;
+
     private enum StartType {
-        SERVER, CLIENT
+        SERVER, CLIENT, BINARY_CLIENT, VIEWER
+    };
+
+    private enum ServerMode {
+        THREAD_PER_CONNECTION, VIRTUAL_THREAD_PER_CONNECTION, NIO
     };
 
-    static private class AppState {
+    static class AppState {
+        // сколько последних изменений доступно через getChangesSince
+        private static final int CHANGES_CAPACITY = 1 << 16;
+        // сколько последних сообщений доски хранит история
+        private static final int HISTORY_CAPACITY = 1 << 16;
+        // сколько перезаписанных записей очереди вытеснения терпеть сверх числа авторов
+        private static final int EXPIRIES_SLACK = 1024;
+
+        /**
+         * Неизменяемая запись. Возраст не хранится, а вычисляется из номера
+         * такта, на котором сообщение было записано.
+         */
+        static private class Message {
+            private final String author;
+            private final String text;
+            private final long epoch;
+            private final long version;
+
+            public Message(String author, String text, long epoch, long version) {
+                this.author = author;
+                this.text = text;
+                this.epoch = epoch;
+                this.version = version;
+            }
+
+            public String getAuthor() {
+                return author;
+            }
+
+            public String toString() {
+                return text;
+            }
+
+            /** Число тактов, прошедших с записи сообщения к такту tick. */
+            public int getLifeTime(long tick) {
+                return (int) Math.max(0, tick - epoch);
+            }
+
+            /** Такт, на котором сообщение было записано. */
+            public long getEpoch() {
+                return epoch;
+            }
+
+            public long getVersion() {
+                return version;
+            }
+        }
+
+        /**
+         * Изменение одного автора. message == null означает удаление автора.
+         * author == null - пустое изменение: версия выдана записи, которая не
+         * состоялась; в Delta такие изменения не попадают.
+         */
+        static private class Change {
+            private final long version;
+            private final String author;
+            private final Message message;
+
+            Change(long version, String author, Message message) {
+                this.version = version;
+                this.author = author;
+                this.message = message;
+            }
+
+            public long getVersion() {
+                return version;
+            }
+
+            public String getAuthor() {
+                return author;
+            }
+
+            public Message getMessage() {
+                return message;
+            }
+        }
+
+        /**
+         * Неизменяемый снимок доски. Один и тот же снимок отдаётся всем
+         * читателям, пока состояние не изменится. Снимок отражает все изменения
+         * до getVersion() включительно и, возможно, часть более поздних, поэтому
+         * изменения поверх него применяются, только если они новее сообщения.
+         */
+        static private class Snapshot {
+            private final long version;
+            private final Message[] messages;
+            private final int size;
+
+            private Snapshot(long version, Message[] messages, int size) {
+                this.version = version;
+                this.messages = messages;
+                this.size = size;
+            }
+
+            public long getVersion() {
+                return version;
+            }
+
+            public int size() {
+                return size;
+            }
+
+            public Message get(int index) {
+                if (index >= size) {
+                    throw new IndexOutOfBoundsException(index);
+                }
+                return messages[index];
+            }
+        }
+
+        /** Изменения после версии fromVersion до toVersion включительно, по порядку. */
+        static private class Delta {
+            private final long fromVersion;
+            private final long toVersion;
+            private final List<Change> changes;
+
+            private Delta(long fromVersion, long toVersion, List<Change> changes) {
+                this.fromVersion = fromVersion;
+                this.toVersion = toVersion;
+                this.changes = changes;
+            }
+
+            public long getFromVersion() {
+                return fromVersion;
+            }
+
+            public long getToVersion() {
+                return toVersion;
+            }
+
+            public List<Change> getChanges() {
+                return changes;
+            }
+        }
+
+        private final ConcurrentHashMap<String, Message> messages = new ConcurrentHashMap<String, Message>();
+        private final AtomicLong tick = new AtomicLong(0);
+        private final AtomicLong version = new AtomicLong(0);
+        private final AtomicReferenceArray<Change> changes = new AtomicReferenceArray<Change>(CHANGES_CAPACITY);
+
+        private volatile Snapshot published = new Snapshot(0, new Message[0], 0);
+        // позиции авторов в published, меняются только под publishLock
+        private final Object publishLock = new Object();
+        private final HashMap<String, Integer> publishedIndex = new HashMap<String, Integer>();
+
+        private final Metrics metrics = new Metrics(this);
+
+        // 0 - без ограничения
+        private volatile long maxLifeTime = 0;
+        private volatile int maxAuthors = 0;
+        // сообщения в порядке записи, пока включено вытеснение; записи,
+        // которые автор уже перезаписал, пропускаются при извлечении и
+        // выбрасываются compactExpiries
+        private final ConcurrentLinkedQueue<Message> expiries = new ConcurrentLinkedQueue<Message>();
+        private final AtomicInteger queued = new AtomicInteger(0);
+        private final Object evictLock = new Object();
+        // null - история не ведётся
+        private volatile MessageHistory history;
+
+        /**
+         * Включает вытеснение: автор удаляется, если его сообщение старше
+         * maxLifeTime тактов, и самые давние авторы удаляются, когда их
+         * больше maxAuthors. Очередь упорядочена по записи, поэтому
+         * вытеснение стоит O(удалённых), а не обход всей доски.
+         */
+        void setEviction(long maxLifeTime, int maxAuthors) {
+            this.maxLifeTime = maxLifeTime;
+            this.maxAuthors = maxAuthors;
+        }
+
+        /**
+         * Включает историю: каждый автор хранит depth последних сообщений,
+         * доска - HISTORY_CAPACITY последних. 0 выключает историю.
+         */
+        void setHistory(int depth) {
+            this.history = depth > 0 ? new MessageHistory(HISTORY_CAPACITY, depth) : null;
+        }
+
+        /** null, если история выключена. */
+        MessageHistory getHistory() {
+            return history;
+        }
+
+        void putMessage(String author, String message) {
+            put(author, message, tick.get());
+        }
+
+        /**
+         * Кладёт копию сообщения, записанного на такте epoch, например
+         * пришедшего просмотрщику с сервера, чтобы возраст продолжал расти.
+         */
+        void restore(String author, String message, long epoch) {
+            put(author, message, Math.max(0, epoch));
+        }
+
+        /**
+         * Пустые автор и текст отклоняются до выдачи версии. Если запись
+         * упадёт после выдачи, вместо неё пишется пустое изменение: иначе
+         * читатели журнала изменений остановились бы на этой версии.
+         */
+        private void put(String author, String message, long epoch) {
+            if (author == null || message == null) {
+                throw new IllegalArgumentException("author and text must not be null");
+            }
+            long v = version.incrementAndGet();
+            Message m;
+            boolean recorded = false;
+            try {
+                m = new Message(author, message, epoch, v);
+                // при гонке двух записей одного автора остаётся более новая
+                messages.merge(author, m, (old, current) -> old.version > current.version ? old : current);
+                record(new Change(v, author, m));
+                recorded = true;
+            } finally {
+                if (!recorded) {
+                    record(new Change(v, null, null));
+                }
+            }
+            metrics.messageWritten();
+            MessageHistory history = this.history;
+            if (history != null) {
+                history.add(author, message);
+            }
+
+            if (maxLifeTime > 0 || maxAuthors > 0) {
+                expiries.add(m);
+                if (maxAuthors > 0 && messages.size() > maxAuthors) {
+                    evictOldest();
+                }
+                if (queued.incrementAndGet() > 2 * messages.size() + EXPIRIES_SLACK) {
+                    compactExpiries();
+                }
+            }
+        }
+
+        void removeAuthor(String author) {
+            if (author == null) {
+                throw new IllegalArgumentException("author must not be null");
+            }
+            long v = version.incrementAndGet();
+            boolean recorded = false;
+            try {
+                messages.computeIfPresent(author, (key, old) -> old.version > v ? old : null);
+                record(new Change(v, author, null));
+                recorded = true;
+            } finally {
+                if (!recorded) {
+                    record(new Change(v, null, null));
+                }
+            }
+            forget(author);
+        }
+
+        void timeStep() {
+            long now = tick.incrementAndGet();
+            if (maxLifeTime > 0) {
+                evictExpired(now);
+            }
+        }
+
+        private void evictExpired(long now) {
+            synchronized (evictLock) {
+                Message head;
+                while ((head = expiries.peek()) != null && head.getLifeTime(now) > maxLifeTime) {
+                    expiries.poll();
+                    queued.decrementAndGet();
+                    evict(head);
+                }
+            }
+        }
+
+        private void evictOldest() {
+            synchronized (evictLock) {
+                Message head;
+                while (messages.size() > maxAuthors && (head = expiries.poll()) != null) {
+                    queued.decrementAndGet();
+                    evict(head);
+                }
+            }
+        }
+
+        /**
+         * Выбрасывает из очереди сообщения, которые авторы уже перезаписали
+         * или удалили. Без этого частые записи немногих авторов копили бы
+         * очередь, пока её голову не снимет вытеснение. Сжатие идёт, когда
+         * записей вдвое больше, чем авторов, поэтому его цена делится между
+         * записями.
+         */
+        private void compactExpiries() {
+            synchronized (evictLock) {
+                if (queued.get() <= 2 * messages.size() + EXPIRIES_SLACK) {
+                    return;
+                }
+                // извлекают из очереди только под evictLock, так что remove не промахнётся
+                for (Iterator<Message> it = expiries.iterator(); it.hasNext();) {
+                    Message m = it.next();
+                    if (messages.get(m.author) != m) {
+                        it.remove();
+                        queued.decrementAndGet();
+                    }
+                }
+            }
+        }
+
+        /** Удаляет автора, если m всё ещё его последнее сообщение. */
+        private void evict(Message m) {
+            if (messages.remove(m.author, m)) {
+                record(new Change(version.incrementAndGet(), m.author, null));
+                forget(m.author);
+                metrics.authorEvicted();
+            }
+        }
+
+        private void forget(String author) {
+            MessageHistory history = this.history;
+            if (history != null) {
+                history.remove(author);
+            }
+        }
+
+        long getTick() {
+            return tick.get();
+        }
+
+        long getVersion() {
+            return version.get();
+        }
+
+        int getAuthorsCount() {
+            return messages.size();
+        }
+
+        Metrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Возвращает последний опубликованный снимок. Если с момента его
+         * публикации что-то изменилось, новый снимок собирается один раз из
+         * журнала изменений и переиспользуется всеми следующими читателями.
+         */
+        Snapshot getSnapshot() {
+            Snapshot current = published;
+            if (current.version == version.get()) {
+                return current;
+            }
+
+            long waitBegin = System.nanoTime();
+            synchronized (publishLock) {
+                metrics.lockWait.record(System.nanoTime() - waitBegin);
+                current = published;
+                long target = version.get();
+                if (current.version >= target) {
+                    return current;
+                }
+
+                ArrayList<Change> pending = new ArrayList<Change>();
+                long reached = readChanges(current.version, target, pending);
+                if (reached >= 0) {
+                    published = apply(current, pending, reached);
+                } else {
+                    published = rebuild(target);
+                }
+                return published;
+            }
+        }
+
+        /**
+         * Изменения после версии since. Возвращает null, если часть из них уже
+         * вытеснена из журнала: тогда нужно взять getSnapshot() и продолжить с
+         * его версии.
+         */
+        Delta getChangesSince(long since) {
+            ArrayList<Change> result = new ArrayList<Change>();
+            long to = readChanges(since, version.get(), result);
+            if (to < 0) {
+                return null;
+            }
+            return new Delta(since, to, result);
+        }
+
+        private static int slot(long v) {
+            return (int) (v & (CHANGES_CAPACITY - 1));
+        }
+
+        /**
+         * Кладёт изменение в журнал, если слот не занят более новым: писатель,
+         * вытесненный планировщиком, не должен затереть изменение, записанное
+         * после него, иначе читатели ждали бы его вечно.
+         */
+        private void record(Change change) {
+            int s = slot(change.version);
+            Change current;
+            do {
+                current = changes.get(s);
+                if (current != null && current.version > change.version) {
+                    return;
+                }
+            } while (!changes.compareAndSet(s, current, change));
+        }
+
+        /**
+         * Читает изменения (from, to] подряд, пока не встретит ещё не
+         * записанное, пустые пропускает. Возвращает последнюю прочитанную
+         * версию или -1, если нужное изменение уже затёрто более новым.
+         */
+        private long readChanges(long from, long to, List<Change> result) {
+            if (to - from > CHANGES_CAPACITY) {
+                return -1;
+            }
+            for (long v = from + 1; v <= to; v++) {
+                Change change = changes.get(slot(v));
+                if (change == null || change.version < v) {
+                    // писатель ещё не дописал изменение, остальное заберём позже
+                    return v - 1;
+                }
+                if (change.version > v) {
+                    return -1;
+                }
+                if (change.author != null) {
+                    result.add(change);
+                }
+            }
+            return to;
+        }
+
+        /** reached - версия нового снимка, pending - изменения до неё. */
+        private Snapshot apply(Snapshot current, List<Change> pending, long reached) {
+            if (pending.isEmpty()) {
+                return reached > current.version ? new Snapshot(reached, current.messages, current.size) : current;
+            }
+
+            Message[] next = Arrays.copyOf(current.messages, current.size + pending.size());
+            int size = current.size;
+            for (Change change : pending) {
+                Integer index = publishedIndex.get(change.author);
+                if (index != null && next[index].version > change.version) {
+                    continue;
+                }
+
+                if (change.message != null) {
+                    if (index != null) {
+                        next[index] = change.message;
+                    } else {
+                        publishedIndex.put(change.author, size);
+                        next[size++] = change.message;
+                    }
+                } else if (index != null) {
+                    size -= 1;
+                    publishedIndex.remove(change.author);
+                    if (index != size) {
+                        next[index] = next[size];
+                        publishedIndex.put(next[index].author, index);
+                    }
+                    next[size] = null;
+                }
+            }
+
+            return new Snapshot(reached, next, size);
+        }
+
+        private Snapshot rebuild(long target) {
+            // дожидаемся писателей, которые получили версию, но ещё не дописали
+            // изменение, чтобы снимок точно отражал всё до target
+            for (long v = Math.max(1, target - CHANGES_CAPACITY + 1); v <= target; v++) {
+                Change change;
+                while ((change = changes.get(slot(v))) == null || change.version < v) {
+                    Thread.onSpinWait();
+                }
+            }
+
+            Message[] next = messages.values().toArray(new Message[0]);
+            publishedIndex.clear();
+            for (int i = 0; i < next.length; i++) {
+                publishedIndex.put(next[i].author, i);
+            }
+            return new Snapshot(target, next, next.length);
+        }
+    }
+
+    /** Длительности одной операции, в микросекундах. */
+    public interface LatencyHistogramMXBean {
+        long getCount();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    /**
+     * История сообщений доски: общее кольцо последних capacity сообщений в
+     * порядке записи и кольцо последних depth сообщений каждого автора.
+     * Каждое сообщение получает номер, на единицу больше предыдущего, и по
+     * номеру можно дочитать всё, что записано после него. Кольца выделяются
+     * заранее: общее при создании, кольцо автора при его первом сообщении.
+     * Запросы не копируют доску и не берут общих замков: общее кольцо
+     * читается без замков, кольцо автора - под замком этого автора.
+     */
+    static class MessageHistory {
+        static class Entry {
+            private final long sequence;
+            private final String author;
+            private final String text;
+
+            Entry(long sequence, String author, String text) {
+                this.sequence = sequence;
+                this.author = author;
+                this.text = text;
+            }
+
+            long getSequence() {
+                return sequence;
+            }
+
+            String getAuthor() {
+                return author;
+            }
+
+            String getText() {
+                return text;
+            }
+        }
+
+        static private class AuthorRing {
+            final Entry[] entries;
+            // сколько сообщений автор записал всего
+            long count = 0;
+
+            AuthorRing(int depth) {
+                entries = new Entry[depth];
+            }
+        }
+
+        private final int capacity;
+        private final int depth;
+        private final AtomicLong sequence = new AtomicLong(0);
+        private final AtomicReferenceArray<Entry> ring;
+        private final ConcurrentHashMap<String, AuthorRing> authors = new ConcurrentHashMap<String, AuthorRing>();
+
+        /** capacity - степень двойки. */
+        MessageHistory(int capacity, int depth) {
+            this.capacity = capacity;
+            this.depth = depth;
+            this.ring = new AtomicReferenceArray<Entry>(capacity);
+        }
+
+        void add(String author, String text) {
+            AuthorRing own = authors.computeIfAbsent(author, key -> new AuthorRing(depth));
+            Entry entry;
+            // номер выдаётся под замком автора, чтобы его сообщения шли по порядку
+            synchronized (own) {
+                entry = new Entry(sequence.incrementAndGet(), author, text);
+                own.entries[(int) (own.count++ % depth)] = entry;
+            }
+
+            // как AppState.record: опоздавший писатель не затирает более новое
+            int s = slot(entry.sequence);
+            Entry current;
+            do {
+                current = ring.get(s);
+                if (current != null && current.sequence > entry.sequence) {
+                    return;
+                }
+            } while (!ring.compareAndSet(s, current, entry));
+        }
+
+        /** Забывает историю автора. В общем кольце его сообщения остаются, пока их не вытеснят. */
+        void remove(String author) {
+            authors.remove(author);
+        }
+
+        /** Последние limit сообщений автора, от старых к новым. */
+        List<Entry> ofAuthor(String author, int limit) {
+            AuthorRing own = authors.get(author);
+            if (own == null || limit <= 0) {
+                return new ArrayList<Entry>();
+            }
+            synchronized (own) {
+                int n = (int) Math.min(limit, Math.min(own.count, depth));
+                ArrayList<Entry> result = new ArrayList<Entry>(n);
+                for (long i = own.count - n; i < own.count; i++) {
+                    result.add(own.entries[(int) (i % depth)]);
+                }
+                return result;
+            }
+        }
+
+        /** Последние limit сообщений всех авторов, от старых к новым. */
+        List<Entry> recent(int limit) {
+            long top = sequence.get();
+            ArrayList<Entry> result = new ArrayList<Entry>(Math.max(0, Math.min(limit, capacity)));
+            for (long s = top; s > 0 && s > top - capacity && result.size() < limit; s--) {
+                Entry entry = ring.get(slot(s));
+                if (entry == null || entry.sequence < s) {
+                    // писатель ещё не дописал сообщение
+                    continue;
+                }
+                if (entry.sequence > s) {
+                    // дальше только затёртые
+                    break;
+                }
+                result.add(entry);
+            }
+            Collections.reverse(result);
+            return result;
+        }
+
+        /**
+         * До limit сообщений с номерами больше since по порядку. Если часть
+         * из них уже вытеснена, список начинается с самого старого
+         * сохранившегося. Ответ обрывается на сообщении, которое ещё
+         * дописывается: следующий запрос продолжит с последнего номера.
+         */
+        List<Entry> since(long since, int limit) {
+            long top = sequence.get();
+            ArrayList<Entry> result = new ArrayList<Entry>(Math.max(0, Math.min(limit, capacity)));
+            for (long s = Math.max(since, top - capacity) + 1; s <= top && result.size() < limit; s++) {
+                Entry entry = ring.get(slot(s));
+                if (entry == null || entry.sequence < s) {
+                    break;
+                }
+                if (entry.sequence == s) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        }
+
+        private int slot(long s) {
+            return (int) (s & (capacity - 1));
+        }
+    }
+
+    /**
+     * Гистограмма длительностей с фиксированными корзинами: на каждую
+     * степень двойки приходится 8 корзин, поэтому процентили получаются с
+     * точностью до 12.5%. Запись - один атомарный инкремент без выделения
+     * памяти.
+     */
+    static class LatencyHistogram implements LatencyHistogramMXBean {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            max.accumulate(value);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent << SUB_BUCKET_BITS) | (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        /** Наибольшее значение, попадающее в корзину index. */
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index >>> SUB_BUCKET_BITS) - SUB_BUCKET_BITS;
+            long lower = (long) (SUB_BUCKETS | (index & (SUB_BUCKETS - 1))) << shift;
+            return lower + (1L << shift) - 1;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /** Значение, не меньше которого percent процентов записей, в наносекундах. */
+        long getPercentile(double percent) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public double getP50Micros() {
+            return getPercentile(50) / 1e3;
+        }
+
+        public double getP99Micros() {
+            return getPercentile(99) / 1e3;
+        }
+
+        public double getP999Micros() {
+            return getPercentile(99.9) / 1e3;
+        }
+
+        public double getMaxMicros() {
+            return max.get() / 1e3;
+        }
+
+        public String toString() {
+            return String.format("count=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    getCount(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+        }
+    }
+
+    /** Счётчики сервера, доступные через JMX как com.dhcs:type=Metrics. */
+    public interface MetricsMXBean {
+        /** Всего записано сообщений с запуска. */
+        long getMessages();
+
+        /** Открытых соединений клиентов. */
+        long getActiveConnections();
+
+        /** Авторов на доске сейчас. */
+        int getAuthors();
+
+        /** Авторов, удалённых по возрасту или числу с запуска. */
+        long getEvictedAuthors();
+
+        /** Соединений, закрытых сразу из-за предела числа соединений. */
+        long getRejectedConnections();
+
+        /** Запросов, отброшенных из-за предела частоты автора. */
+        long getRejectedRequests();
+
+        /** Соединений, закрытых из-за простоя. */
+        long getIdleTimeouts();
+
+        /** Тактов, кадр которых не выведен, потому что вывод доски не успевал. */
+        long getSkippedFrames();
+    }
+
+    /**
+     * Метрики сервера. Счётчики и гистограммы пишутся без выделения памяти,
+     * читаются через JMX (com.dhcs:type=Metrics и com.dhcs:type=Latency) и
+     * MetricsReporter.
+     */
+    static class Metrics implements MetricsMXBean {
+        private final AppState state;
+        private final LongAdder messages = new LongAdder();
+        private final LongAdder connections = new LongAdder();
+        private final LongAdder evicted = new LongAdder();
+        private final LongAdder rejectedConnections = new LongAdder();
+        private final LongAdder rejectedRequests = new LongAdder();
+        private final LongAdder idleTimeouts = new LongAdder();
+        private final LongAdder skippedFrames = new LongAdder();
+        private final LinkedHashMap<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+
+        // ожидание publishLock при публикации снимка
+        final LatencyHistogram lockWait = histogram("lockWait");
+        final LatencyHistogram frameTime = histogram("frameTime");
+
+        Metrics(AppState state) {
+            this.state = state;
+        }
+
+        private LatencyHistogram histogram(String name) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histograms.put(name, histogram);
+            return histogram;
+        }
+
+        void messageWritten() {
+            messages.increment();
+        }
+
+        void authorEvicted() {
+            evicted.increment();
+        }
+
+        void connectionRejected() {
+            rejectedConnections.increment();
+        }
+
+        void requestRejected() {
+            rejectedRequests.increment();
+        }
+
+        void idleTimeout() {
+            idleTimeouts.increment();
+        }
+
+        void frameSkipped() {
+            skippedFrames.increment();
+        }
+
+        void connectionOpened() {
+            connections.increment();
+        }
+
+        void connectionClosed() {
+            connections.decrement();
+        }
+
+        public long getMessages() {
+            return messages.sum();
+        }
+
+        public long getActiveConnections() {
+            return connections.sum();
+        }
+
+        public int getAuthors() {
+            return state.getAuthorsCount();
+        }
+
+        public long getEvictedAuthors() {
+            return evicted.sum();
+        }
+
+        public long getRejectedConnections() {
+            return rejectedConnections.sum();
+        }
+
+        public long getRejectedRequests() {
+            return rejectedRequests.sum();
+        }
+
+        public long getIdleTimeouts() {
+            return idleTimeouts.sum();
+        }
+
+        public long getSkippedFrames() {
+            return skippedFrames.sum();
+        }
+
+        Map<String, LatencyHistogram> getHistograms() {
+            return histograms;
+        }
+
+        /** Регистрирует метрики в MBeanServer платформы. */
+        void register() {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.registerMBean(this, new ObjectName("com.dhcs:type=Metrics"));
+                for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                    server.registerMBean(entry.getValue(), new ObjectName("com.dhcs:type=Latency,name=" + entry.getKey()));
+                }
+            } catch (JMException e) {
+                System.err.printf("Metrics.register: %s\n", e.toString());
+            }
+        }
+    }
+
+    /** Раз в intervalMillis дописывает строку со всеми метриками в out. */
+    static private class MetricsReporter extends Thread {
+        private final Metrics metrics;
+        private final PrintStream out;
+        private final long intervalMillis;
+
+        public MetricsReporter(Metrics metrics, PrintStream out, long intervalMillis) {
+            super("MetricsReporter");
+            setDaemon(true);
+            this.metrics = metrics;
+            this.out = out;
+            this.intervalMillis = intervalMillis;
+        }
+
+        public void run() {
+            long lastMessages = metrics.getMessages();
+            long lastTime = System.nanoTime();
+            while (true) {
+                try {
+                    sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long now = System.nanoTime();
+                long messages = metrics.getMessages();
+                StringBuilder line = new StringBuilder();
+                line.append(String.format("%s messages=%d rate=%.0f/s connections=%d authors=%d evicted=%d",
+                        Instant.now(), messages, (messages - lastMessages) * 1e9 / (now - lastTime),
+                        metrics.getActiveConnections(), metrics.getAuthors(), metrics.getEvictedAuthors()));
+                line.append(String.format(" rejectedConnections=%d rejectedRequests=%d idleTimeouts=%d skippedFrames=%d",
+                        metrics.getRejectedConnections(), metrics.getRejectedRequests(), metrics.getIdleTimeouts(),
+                        metrics.getSkippedFrames()));
+                for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+                    line.append(String.format(" %s[%s]", entry.getKey(), entry.getValue()));
+                }
+                out.println(line);
+                lastMessages = messages;
+                lastTime = now;
+            }
+        }
+    }
+
+    /**
+     * Рисует доску в терминале инкрементально. Предыдущий кадр хранится в
+     * сетке символов, и на каждом кадре выводятся только изменившиеся строки
+     * с позиционированием курсора. Кадр собирается в один массив байтов и
+     * пишется одним вызовом, поэтому его стоимость зависит от числа изменений,
+     * а не от числа авторов.
+     */
+    static class DashboardRenderer {
+        private static final String HEADER = "+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  --|==1line==chat====>-  +";
+        private static final String NO_CLIENTS = "+                                 NO CLIENTS                                  +";
+        private static final String FOOTER = "+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  +";
+        private static final String GREEN = "\033[32m";
+        private static final String RESET = "\033[0m";
+
+        private static final int AUTHOR_WIDTH = 10;
+        private static final int MESSAGE_WIDTH = 61;
+        private static final int ROW_CAPACITY = 128;
+        // возраст, на котором меняется вид строки (см. renderRow)
+        private static final int[] AGE_THRESHOLDS = { 1, 2, 24 };
+        // колесо тактов: должно быть больше самого дальнего порога
+        private static final int WHEEL_SIZE = 32;
+
+        private final PrintStream out;
+        private final CharsetEncoder encoder;
+
+        private final HashMap<String, Integer> rows = new HashMap<String, Integer>();
+        private String[] authors = new String[16];
+        private AppState.Message[] messages = new AppState.Message[16];
+        private char[][] grid = new char[16][];
+        private int[] gridLength = new int[16];
+        private boolean[] dirty = new boolean[16];
+        private int[] dirtyRows = new int[16];
+        private int dirtyCount = 0;
+        private int rowsCount = 0;
+        private int shownRowsCount = -1;
+
+        /** Такт, на котором строку сообщения нужно перерисовать. */
+        static private class Due {
+            final long tick;
+            final AppState.Message message;
+
+            Due(long tick, AppState.Message message) {
+                this.tick = tick;
+                this.message = message;
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayList<Due>[] wheel = new ArrayList[WHEEL_SIZE];
+        private long renderedTick = -1;
+        private long version = 0;
+        private boolean fullRedraw = true;
+
+        private final char[] scratch = new char[ROW_CAPACITY];
+        private char[] frame = new char[4096];
+        private int frameLength = 0;
+        private ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+        private long lastFrameNanos = 0;
+        private long maxFrameNanos = 0;
+
+        public DashboardRenderer(PrintStream out) {
+            this.out = out;
+            this.encoder = out.charset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new ArrayList<Due>();
+            }
+        }
+
+        /** Версия состояния, до которой применены изменения. */
+        public long getVersion() {
+            return version;
+        }
+
+        public long getLastFrameNanos() {
+            return lastFrameNanos;
+        }
+
+        public long getMaxFrameNanos() {
+            return maxFrameNanos;
+        }
+
+        /**
+         * Заменяет всё содержимое доски снимком и перерисовывает экран целиком.
+         * tick - такт, на котором снимок будет выведен.
+         */
+        public void reset(long tick, AppState.Snapshot snapshot) {
+            rows.clear();
+            for (ArrayList<Due> due : wheel) {
+                due.clear();
+            }
+            // строки и так перерисуются целиком, в колесо идут только будущие такты
+            renderedTick = tick;
+            Arrays.fill(authors, 0, rowsCount, null);
+            Arrays.fill(messages, 0, rowsCount, null);
+            rowsCount = 0;
+            dirtyCount = 0;
+            Arrays.fill(dirty, false);
+
+            for (int i = 0; i < snapshot.size(); i++) {
+                AppState.Message message = snapshot.get(i);
+                setRow(appendRow(message.getAuthor()), message);
+            }
+            version = snapshot.getVersion();
+            fullRedraw = true;
+        }
+
+        public void apply(AppState.Delta delta) {
+            for (AppState.Change change : delta.getChanges()) {
+                Integer row = rows.get(change.getAuthor());
+                if (row != null && messages[row].getVersion() > change.getVersion()) {
+                    continue;
+                }
+
+                if (change.getMessage() != null) {
+                    setRow(row != null ? row : appendRow(change.getAuthor()), change.getMessage());
+                } else if (row != null) {
+                    removeRow(row);
+                }
+            }
+            version = Math.max(version, delta.getToVersion());
+        }
+
+        /** Выводит кадр для такта tick. */
+        public void render(long tick) {
+            long begin = System.nanoTime();
+
+            for (long t = Math.max(renderedTick + 1, tick - WHEEL_SIZE + 1); t <= tick; t++) {
+                ArrayList<Due> slot = wheel[(int) (t % WHEEL_SIZE)];
+                // в ячейке лежат и такты на оборот колеса позже, они остаются
+                int kept = 0;
+                for (int i = 0; i < slot.size(); i++) {
+                    Due due = slot.get(i);
+                    if (due.tick > tick) {
+                        slot.set(kept++, due);
+                        continue;
+                    }
+                    Integer row = rows.get(due.message.getAuthor());
+                    if (row != null && messages[row] == due.message) {
+                        markDirty(row);
+                    }
+                }
+                slot.subList(kept, slot.size()).clear();
+            }
+            renderedTick = tick;
+
+            frameLength = 0;
+            if (fullRedraw) {
+                append("\033[H\033[2J");
+                append(HEADER);
+                append('\n');
+            }
+
+            for (int i = 0; i < dirtyCount; i++) {
+                int row = dirtyRows[i];
+                dirty[row] = false;
+                if (row >= rowsCount) {
+                    continue;
+                }
+
+                int length = renderRow(authors[row], messages[row], tick, scratch);
+                if (!fullRedraw && length == gridLength[row] && Arrays.equals(scratch, 0, length, grid[row], 0, length)) {
+                    continue;
+                }
+                System.arraycopy(scratch, 0, grid[row], 0, length);
+                gridLength[row] = length;
+                moveTo(row + 2);
+                append(grid[row], length);
+            }
+            dirtyCount = 0;
+
+            int footerLine = Math.max(rowsCount, 1) + 2;
+            if (fullRedraw || rowsCount != shownRowsCount) {
+                if (rowsCount == 0) {
+                    moveTo(2);
+                    append(NO_CLIENTS);
+                }
+                moveTo(footerLine);
+                append(FOOTER);
+                append("\n\033[J");
+                shownRowsCount = rowsCount;
+            }
+
+            moveTo(footerLine + 1);
+            append("frame: ");
+            append(Long.toString(lastFrameNanos / 1000));
+            append(" us\033[K\n");
+            flush();
+
+            fullRedraw = false;
+            lastFrameNanos = System.nanoTime() - begin;
+            maxFrameNanos = Math.max(maxFrameNanos, lastFrameNanos);
+        }
+
+        private int appendRow(String author) {
+            if (rowsCount == authors.length) {
+                int capacity = rowsCount * 2;
+                authors = Arrays.copyOf(authors, capacity);
+                messages = Arrays.copyOf(messages, capacity);
+                grid = Arrays.copyOf(grid, capacity);
+                gridLength = Arrays.copyOf(gridLength, capacity);
+                dirty = Arrays.copyOf(dirty, capacity);
+                dirtyRows = Arrays.copyOf(dirtyRows, capacity);
+            }
+            if (grid[rowsCount] == null) {
+                grid[rowsCount] = new char[ROW_CAPACITY];
+            }
+
+            int row = rowsCount++;
+            authors[row] = author;
+            gridLength[row] = 0;
+            rows.put(author, row);
+            return row;
+        }
+
+        private void setRow(int row, AppState.Message message) {
+            messages[row] = message;
+            markDirty(row);
+            for (int threshold : AGE_THRESHOLDS) {
+                long due = message.getEpoch() + threshold;
+                if (due > renderedTick) {
+                    wheel[(int) (due % WHEEL_SIZE)].add(new Due(due, message));
+                }
+            }
+        }
+
+        /** На место удалённой строки переносится последняя. */
+        private void removeRow(int row) {
+            rows.remove(authors[row]);
+            int last = --rowsCount;
+            if (row != last) {
+                authors[row] = authors[last];
+                messages[row] = messages[last];
+                rows.put(authors[row], row);
+                markDirty(row);
+            }
+            authors[last] = null;
+            messages[last] = null;
+        }
+
+        private void markDirty(int row) {
+            if (!dirty[row]) {
+                dirty[row] = true;
+                dirtyRows[dirtyCount++] = row;
+            }
+        }
+
+        private static int renderRow(String author, AppState.Message message, long tick, char[] row) {
+            int length = 0;
+            length = put(row, length, "+ [");
+            length = putPadded(row, length, author, AUTHOR_WIDTH);
+            length = put(row, length, "]: ");
+
+            int lifeTime = message.getLifeTime(tick);
+            int rest = MESSAGE_WIDTH;
+            if (lifeTime < 1) {
+                length = putPadded(row, length, "", 8);
+                rest -= 8;
+            } else if (lifeTime < 2) {
+                length = putPadded(row, length, "", 2);
+                rest -= 2;
+            }
+            // свежие сообщения зелёные, остальные цветом терминала
+            if (lifeTime < 24) {
+                length = put(row, length, GREEN);
+            }
+            length = putPadded(row, length, message.toString(), rest);
+            length = put(row, length, RESET);
+            length = put(row, length, " |");
+            return length;
+        }
+
+        private static int put(char[] row, int length, String s) {
+            s.getChars(0, s.length(), row, length);
+            return length + s.length();
+        }
+
+        private static int putPadded(char[] row, int length, String s, int width) {
+            int n = Math.min(s.length(), width);
+            s.getChars(0, n, row, length);
+            Arrays.fill(row, length + n, length + width, ' ');
+            return length + width;
+        }
+
+        private void moveTo(int line) {
+            append("\033[");
+            append(Integer.toString(line));
+            append(";1H");
+        }
+
+        private void append(String s) {
+            ensureFrameCapacity(s.length());
+            s.getChars(0, s.length(), frame, frameLength);
+            frameLength += s.length();
+        }
+
+        private void append(char c) {
+            ensureFrameCapacity(1);
+            frame[frameLength++] = c;
+        }
+
+        private void append(char[] chars, int length) {
+            ensureFrameCapacity(length);
+            System.arraycopy(chars, 0, frame, frameLength, length);
+            frameLength += length;
+        }
+
+        private void ensureFrameCapacity(int extra) {
+            if (frameLength + extra > frame.length) {
+                frame = Arrays.copyOf(frame, Math.max(frame.length * 2, frameLength + extra));
+            }
+        }
+
+        private void flush() {
+            int capacity = (int) Math.ceil(frameLength * (double) encoder.maxBytesPerChar());
+            if (bytes.capacity() < capacity) {
+                bytes = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, capacity));
+            }
+
+            bytes.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(frame, 0, frameLength), bytes, true);
+            encoder.flush(bytes);
+            out.write(bytes.array(), 0, bytes.position());
+            out.flush();
+        }
+    }
+
+    /**
+     * Вывод доски AppMessagesDashboard. Методы вызываются по очереди из его
+     * потока вывода, а не из потока тактов, поэтому медленный вывод только
+     * пропускает кадры. После любого исключения следующим кадром придёт
+     * snapshot.
+     */
+    interface DashboardSink extends Closeable {
+        /** Доска целиком на такте tick: первый кадр, после отставания и после ошибки вывода. */
+        void snapshot(long tick, AppState.Snapshot snapshot) throws IOException;
+
+        /** Изменения с прошлого кадра, delta может быть пустой: кадр такта tick. */
+        void delta(long tick, AppState.Delta delta) throws IOException;
+    }
+
+    /** Доска в терминале через DashboardRenderer. */
+    static private class TerminalDashboardSink implements DashboardSink {
+        private final DashboardRenderer renderer;
+
+        TerminalDashboardSink(PrintStream out) {
+            this.renderer = new DashboardRenderer(out);
+        }
+
+        public void snapshot(long tick, AppState.Snapshot snapshot) {
+            renderer.reset(tick, snapshot);
+            renderer.render(tick);
+        }
+
+        public void delta(long tick, AppState.Delta delta) {
+            renderer.apply(delta);
+            renderer.render(tick);
+        }
+
+        /** Поток вывода не закрывается, он общий с остальной программой. */
+        public void close() {
+        }
+    }
+
+    /**
+     * Доска никуда не выводится, для сервера без терминала. С этим выводом
+     * AppMessagesDashboard не запускает поток вывода и не читает изменения,
+     * а только двигает такты.
+     */
+    static private class NullDashboardSink implements DashboardSink {
+        public void snapshot(long tick, AppState.Snapshot snapshot) {
+        }
+
+        public void delta(long tick, AppState.Delta delta) {
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Доска потоком NDJSON, одна строка JSON на кадр:
+     *   {"type":"snapshot","tick":T,"version":V,"messages":[{"author":A,"text":S,"epoch":E},...]}
+     *   {"type":"delta","tick":T,"version":V,"changes":[{"author":A,"text":S,"epoch":E},{"author":A,"removed":true},...]}
+     * Изменения идут в порядке версий, пустые дельты не пишутся. Поток
+     * открывается при первом кадре; после ошибки записи он закрывается и
+     * открывается заново при следующем кадре, который будет snapshot.
+     */
+    static private class NdjsonDashboardSink implements DashboardSink {
+        private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+        /** Открывает поток, в который пишутся строки. */
+        interface Opener {
+            OutputStream open() throws IOException;
+        }
+
+        private final Opener opener;
+        private final String target;
+        // null - не открыт
+        private Writer out;
+
+        NdjsonDashboardSink(Opener opener, String target) {
+            this.opener = opener;
+            this.target = target;
+        }
+
+        /** Дописывает строки в конец файла. */
+        static NdjsonDashboardSink toFile(String path) {
+            return new NdjsonDashboardSink(() -> new FileOutputStream(path, true), path);
+        }
+
+        /** Пишет строки в TCP-соединение с host:port, например со сборщиком логов. */
+        static NdjsonDashboardSink toSocket(String host, int port) {
+            return new NdjsonDashboardSink(() -> {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                    socket.shutdownInput();
+                    return socket.getOutputStream();
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            }, host + ":" + port);
+        }
+
+        public void snapshot(long tick, AppState.Snapshot snapshot) throws IOException {
+            Writer out = open();
+            try {
+                begin(out, "snapshot", tick, snapshot.getVersion());
+                out.write(",\"messages\":[");
+                for (int i = 0; i < snapshot.size(); i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    writeMessage(out, snapshot.get(i).getAuthor(), snapshot.get(i));
+                }
+                end(out);
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        public void delta(long tick, AppState.Delta delta) throws IOException {
+            if (delta.getChanges().isEmpty()) {
+                return;
+            }
+            Writer out = open();
+            try {
+                begin(out, "delta", tick, delta.getToVersion());
+                out.write(",\"changes\":[");
+                boolean first = true;
+                for (AppState.Change change : delta.getChanges()) {
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    if (change.getMessage() != null) {
+                        writeMessage(out, change.getAuthor(), change.getMessage());
+                    } else {
+                        out.write("{\"author\":");
+                        writeString(out, change.getAuthor());
+                        out.write(",\"removed\":true}");
+                    }
+                }
+                end(out);
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        private Writer open() throws IOException {
+            if (out == null) {
+                try {
+                    out = new BufferedWriter(new OutputStreamWriter(opener.open(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new IOException("cannot open " + target + ": " + e.getMessage(), e);
+                }
+            }
+            return out;
+        }
+
+        private static void begin(Writer out, String type, long tick, long version) throws IOException {
+            out.write("{\"type\":\"");
+            out.write(type);
+            out.write("\",\"tick\":");
+            out.write(Long.toString(tick));
+            out.write(",\"version\":");
+            out.write(Long.toString(version));
+        }
+
+        private static void end(Writer out) throws IOException {
+            out.write("]}\n");
+            out.flush();
+        }
+
+        private static void writeMessage(Writer out, String author, AppState.Message message) throws IOException {
+            out.write("{\"author\":");
+            writeString(out, author);
+            out.write(",\"text\":");
+            writeString(out, message.toString());
+            out.write(",\"epoch\":");
+            out.write(Long.toString(message.getEpoch()));
+            out.write('}');
+        }
+
+        /** Строка JSON: кавычки, обратная косая черта и управляющие символы экранируются. */
+        private static void writeString(Writer out, String s) throws IOException {
+            out.write('"');
+            int from = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    continue;
+                }
+                out.write(s, from, i - from);
+                from = i + 1;
+                switch (c) {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        out.write(String.format("\\u%04x", (int) c));
+                        break;
+                }
+            }
+            out.write(s, from, s.length() - from);
+            out.write('"');
+        }
+
+        /** Бросает сломанный поток: дописать в него уже нельзя. */
+        private void discard() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // буфер не дописался, поток всё равно закрыт
+            }
+            out = null;
+        }
+
+        public void close() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.printf("NdjsonDashboardSink.close: %s\n", e.toString());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Раз в такт двигает AppState.timeStep и отдаёт такт потоку вывода,
+     * который выводит доску в DashboardSink. Такт не ждёт вывода: если вывод
+     * не успевает, пропущенные такты не выводятся, а их изменения приходят
+     * одной дельтой в кадре последнего такта.
+     */
+    static private class AppMessagesDashboard extends Thread {
+        private static final long PERIOD_MILLIS = 125;
+
+        private final AppState appState;
+        private final DashboardSink sink;
+        // null - вывода нет, см. NullDashboardSink
+        private final Thread output;
+        // последний такт, ещё не взятый потоком вывода, -1 - нет; под замком this
+        private long pendingTick = -1;
+        private volatile long lastFrameNanos = 0;
+
+        public AppMessagesDashboard(AppState state) {
+            this(state, new TerminalDashboardSink(System.out));
+        }
+
+        public AppMessagesDashboard(AppState state, DashboardSink sink) {
+            appState = state;
+            this.sink = sink;
+            if (sink instanceof NullDashboardSink) {
+                output = null;
+            } else {
+                output = new Thread(this::drain, "DashboardOutput");
+                output.setDaemon(true);
+            }
+        }
+
+        public void run() {
+            if (output != null) {
+                output.start();
+            }
+            while (true) {
+                try {
+                    sleep(PERIOD_MILLIS);
+                } catch (InterruptedException e) {
+                    if (output != null) {
+                        output.interrupt();
+                    }
+                    return;
+                }
+
+                long tick = appState.getTick();
+                appState.timeStep();
+                if (output != null) {
+                    publish(tick);
+                }
+            }
+        }
+
+        private synchronized void publish(long tick) {
+            if (pendingTick >= 0) {
+                appState.getMetrics().frameSkipped();
+            }
+            pendingTick = tick;
+            notifyAll();
+        }
+
+        private synchronized long takeTick() throws InterruptedException {
+            while (pendingTick < 0) {
+                wait();
+            }
+            long tick = pendingTick;
+            pendingTick = -1;
+            return tick;
+        }
+
+        /** Поток вывода: кадр на каждый взятый такт. */
+        private void drain() {
+            long version = 0;
+            boolean resync = true;
+            boolean failing = false;
+            try {
+                while (true) {
+                    long tick = takeTick();
+                    long begin = System.nanoTime();
+                    try {
+                        AppState.Delta delta = resync ? null : appState.getChangesSince(version);
+                        if (delta != null) {
+                            sink.delta(tick, delta);
+                            version = delta.getToVersion();
+                        } else {
+                            AppState.Snapshot snapshot = appState.getSnapshot();
+                            sink.snapshot(tick, snapshot);
+                            version = snapshot.getVersion();
+                        }
+                        resync = false;
+                        failing = false;
+                    } catch (IOException | RuntimeException e) {
+                        // ошибка печатается один раз, пока вывод не восстановится;
+                        // ошибка в самом выводе тоже не должна останавливать поток
+                        if (!failing) {
+                            System.err.printf("AppMessagesDashboard.drain: %s\n", e.toString());
+                        }
+                        failing = true;
+                        resync = true;
+                    }
+                    lastFrameNanos = System.nanoTime() - begin;
+                    appState.getMetrics().frameTime.record(lastFrameNanos);
+                }
+            } catch (InterruptedException e) {
+                // поток тактов остановлен
+            } finally {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    System.err.printf("AppMessagesDashboard.drain: %s\n", e.toString());
+                }
+            }
+        }
+
+        /** Время построения и вывода последнего кадра. */
+        long getLastFrameNanos() {
+            return lastFrameNanos;
+        }
+    }
+
+    /** Корзина маркеров: rate маркеров в секунду, в запасе не больше rate. */
+    static class TokenBucket {
+        private final double perNano;
+        private final double capacity;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(double rate) {
+            perNano = rate / 1e9;
+            capacity = Math.max(1, rate);
+            tokens = capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - last) * perNano);
+            last = now;
+        }
+
+        synchronized boolean tryAcquire() {
+            refill(System.nanoTime());
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        /** Берёт маркер в долг: запас может уйти в минус. */
+        synchronized void charge() {
+            refill(System.nanoTime());
+            tokens -= 1;
+        }
+
+        /** Через сколько наносекунд долг будет погашен, 0 - долга нет. */
+        synchronized long debtNanos() {
+            refill(System.nanoTime());
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / perNano);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+    }
+
+    /**
+     * Ограничения сервера: число соединений, частота запросов соединения и
+     * автора, время простоя. Нулевое значение выключает ограничение.
+     * Отказ дешёвый: лишнее соединение закрывается сразу после accept, без
+     * потока и буферов, лишний запрос автора отбрасывается без записи в
+     * AppState. Соединение, превысившее свою частоту, не теряет запросы:
+     * сервер перестаёт его читать, и клиент упирается в окно TCP.
+     */
+    static class AdmissionControl {
+        // сколько корзин авторов держать, прежде чем выбросить полные
+        private static final int MAX_TRACKED_AUTHORS = 100_000;
+        private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+        private final int maxConnections;
+        private final double connectionRate;
+        private final double authorRate;
+        private final long idleTimeoutMillis;
+        private final Metrics metrics;
+        private final AtomicInteger connections = new AtomicInteger(0);
+        private final ConcurrentHashMap<String, TokenBucket> authors = new ConcurrentHashMap<String, TokenBucket>();
+        private volatile long lastSweep = System.nanoTime();
+
+        AdmissionControl(int maxConnections, double connectionRate, double authorRate, long idleTimeoutMillis,
+                Metrics metrics) {
+            this.maxConnections = maxConnections;
+            this.connectionRate = connectionRate;
+            this.authorRate = authorRate;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.metrics = metrics;
+        }
+
+        /** Занимает место под новое соединение. false - соединение нужно закрыть. */
+        boolean tryOpen() {
+            while (true) {
+                int current = connections.get();
+                if (maxConnections > 0 && current >= maxConnections) {
+                    metrics.connectionRejected();
+                    return false;
+                }
+                if (connections.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void close() {
+            connections.decrementAndGet();
+        }
+
+        ConnectionLimits newConnection() {
+            return new ConnectionLimits(this, connectionRate > 0 ? new TokenBucket(connectionRate) : null);
+        }
+
+        long getIdleTimeoutMillis() {
+            return idleTimeoutMillis;
+        }
+
+        boolean admitAuthor(String author) {
+            if (authorRate <= 0) {
+                return true;
+            }
+            TokenBucket bucket = authors.get(author);
+            if (bucket == null) {
+                if (authors.size() >= MAX_TRACKED_AUTHORS) {
+                    sweep();
+                }
+                bucket = authors.computeIfAbsent(author, key -> new TokenBucket(authorRate));
+            }
+            if (bucket.tryAcquire()) {
+                return true;
+            }
+            metrics.requestRejected();
+            return false;
+        }
+
+        /** Выбрасывает корзины авторов, которые давно не писали, не чаще раза в секунду. */
+        private void sweep() {
+            long now = System.nanoTime();
+            if (now - lastSweep < SWEEP_INTERVAL_NANOS) {
+                return;
+            }
+            lastSweep = now;
+            authors.values().removeIf(bucket -> bucket.isFull(now));
+        }
+    }
+
+    /** Ограничения одного соединения, их проверяет разборщик его запросов. */
+    static class ConnectionLimits {
+        private final AdmissionControl control;
+        // null - частота соединения не ограничена
+        private final TokenBucket bucket;
+
+        ConnectionLimits(AdmissionControl control, TokenBucket bucket) {
+            this.control = control;
+            this.bucket = bucket;
+        }
+
+        /** Учитывает запрос автора. false - запрос отброшен. */
+        boolean admit(String author) {
+            if (bucket != null) {
+                bucket.charge();
+            }
+            return control.admitAuthor(author);
+        }
+
+        /** Сколько наносекунд не читать соединение, чтобы оно уложилось в свою частоту. */
+        long readDelayNanos() {
+            return bucket == null ? 0 : bucket.debtNanos();
+        }
+    }
+
+    static private class AppServer {
+        private static final int ACCEPT_BACKLOG = 4096;
+        // буфер чтения держится на каждое соединение, даже простаивающее
+        private static final int READER_BUFFER_SIZE = 1024;
+        // сколько сообщений истории уходит в одном ответе
+        static final int MAX_HISTORY_REPLY = 1000;
+
+        private ServerSocket serverSocket;
+        private final AppState state;
+        private final AdmissionControl admission;
+        private final Broadcaster broadcaster;
+        private final Thread.Builder handlerThreads;
+        private final DashboardSink dashboard;
+
+        public AppServer(AppState state, AdmissionControl admission, Thread.Builder handlerThreads,
+                DashboardSink dashboard) {
+            this.state = state;
+            this.admission = admission;
+            this.broadcaster = new Broadcaster(state);
+            this.handlerThreads = handlerThreads;
+            this.dashboard = dashboard;
+        }
+
+        void start(int port) {
+            try {
+                serverSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+            } catch (IOException e) {
+                System.err.printf("ServerSocket: %s\n", e.toString());
+                return;
+            }
+
+            new AppMessagesDashboard(state, dashboard).start();
+            broadcaster.start();
 
-        private class Message {
-            private int lifeTime = 0;
-            private String text;
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    if (!admission.tryOpen()) {
+                        socket.close();
+                        continue;
+                    }
+                    handlerThreads.start(new ClientHandler(socket, state));
+                } catch (IOException e) {
+                    System.err.printf("ClientHandler.clientSocket.getInputStream: %s\n", e.toString());
+                }
+            }
+        }
 
-            public Message(String text) {
-                this.text = text;
+        static boolean isQuery(String method) {
+            return method.equals("history") || method.equals("historySince");
+        }
+
+        /**
+         * Запросы истории: history [limit] - последние сообщения доски,
+         * history [limit, author] - последние сообщения автора, historySince
+         * [sequence, limit] - сообщения после номера sequence. Возвращает null,
+         * если запрос неверен.
+         */
+        static List<MessageHistory.Entry> handleQuery(AppState appState, String method, List<String> args) {
+            try {
+                if (method.equals("history") && (args.size() == 1 || args.size() == 2)) {
+                    return queryHistory(appState, args.size() == 2 ? args.get(1) : null,
+                            Integer.parseInt(args.get(0)));
+                }
+                if (method.equals("historySince") && args.size() == 2) {
+                    return queryHistorySince(appState, Long.parseLong(args.get(0)), Integer.parseInt(args.get(1)));
+                }
+            } catch (NumberFormatException e) {
+                System.err.printf("AppServer.handleQuery: %s\n", e.toString());
+                return null;
             }
+            System.err.printf("AppServer.handleQuery: wrong arguments for %s: %d\n", method, args.size());
+            return null;
+        }
 
-            public Object clone() {
-                Message copy = new Message(this.text);
-                copy.lifeTime = this.lifeTime;
-                return (Object) copy;
+        /** author == null - последние сообщения доски. */
+        static List<MessageHistory.Entry> queryHistory(AppState appState, String author, int limit) {
+            MessageHistory history = appState.getHistory();
+            limit = Math.min(limit, MAX_HISTORY_REPLY);
+            if (history == null) {
+                return new ArrayList<MessageHistory.Entry>();
             }
+            return author == null ? history.recent(limit) : history.ofAuthor(author, limit);
+        }
 
-            void timeStep() {
-                lifeTime += 1;
+        static List<MessageHistory.Entry> queryHistorySince(AppState appState, long sequence, int limit) {
+            MessageHistory history = appState.getHistory();
+            if (history == null) {
+                return new ArrayList<MessageHistory.Entry>();
             }
+            return history.since(sequence, Math.min(limit, MAX_HISTORY_REPLY));
+        }
 
-            public String toString() {
-                return text;
+        private class ClientHandler implements Runnable {
+            private Socket clientSocket;
+            private AppState appState;
+            private final ConnectionLimits limits = admission.newConnection();
+            private boolean binary = false;
+
+            public ClientHandler(Socket socket, AppState state) {
+                clientSocket = socket;
+                appState = state;
+            }
+
+            public void run() {
+                appState.getMetrics().connectionOpened();
+                InputStream stream = null;
+                try {
+                    clientSocket.setSoTimeout((int) admission.getIdleTimeoutMillis());
+                    stream = negotiate(clientSocket.getInputStream());
+                } catch (SocketTimeoutException e) {
+                    appState.getMetrics().idleTimeout();
+                } catch (IOException e) {
+                    System.err.printf("ClientHandler.clientSocket.getInputStream: %s\n", e.toString());
+                }
+
+                if (stream != null) {
+                    process(stream, binary ? new BinaryFrameDecoder(limits, this::reply)
+                            : new TextFrameDecoder(limits, this::reply));
+                }
+
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    System.err.printf("ClientHandler.clientSocket.close: %s\n", e.toString());
+                }
+                appState.getMetrics().connectionClosed();
+                admission.close();
+            }
+
+            /**
+             * Бинарный клиент начинает соединение с BinaryFrameDecoder.MAGIC,
+             * иначе поток возвращается нетронутым для текстового протокола.
+             */
+            private InputStream negotiate(InputStream stream) throws IOException {
+                PushbackInputStream pushback = new PushbackInputStream(stream, 1);
+                int first = pushback.read();
+                if (first != BinaryFrameDecoder.MAGIC[0]) {
+                    if (first >= 0) {
+                        pushback.unread(first);
+                    }
+                    return pushback;
+                }
+
+                for (int i = 1; i < BinaryFrameDecoder.MAGIC.length; i++) {
+                    if (pushback.read() != BinaryFrameDecoder.MAGIC[i]) {
+                        throw new IOException("unsupported protocol");
+                    }
+                }
+                binary = true;
+                return pushback;
+            }
+
+            /**
+             * Читает запросы кусками по READER_BUFFER_SIZE байт. Разборщики
+             * держат не больше одного запроса предельной длины, поэтому память
+             * соединения ограничена. Если соединение пишет чаще своей частоты,
+             * чтение приостанавливается, пока долг не будет погашен.
+             */
+            private void process(InputStream stream, FrameDecoder decoder) {
+                byte[] chunk = new byte[READER_BUFFER_SIZE];
+                // одна обёртка на соединение: чтение не мусорит
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (true) {
+                    int count;
+                    try {
+                        count = stream.read(chunk);
+                    } catch (SocketTimeoutException e) {
+                        appState.getMetrics().idleTimeout();
+                        return;
+                    } catch (IOException e) {
+                        System.err.printf("ClientHandler.process: %s\n", e.toString());
+                        return;
+                    }
+
+                    if (count < 0) {
+                        decoder.finish(appState);
+                        return;
+                    }
+                    buffer.limit(count).position(0);
+                    if (!decoder.decode(buffer, appState)) {
+                        System.err.printf("ClientHandler.process: malformed request\n");
+                        return;
+                    }
+                    if (decoder.isSubscribed()) {
+                        subscribe();
+                        return;
+                    }
+
+                    long delay = limits.readDelayNanos();
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+
+            /** Ответ на запрос пишется сразу из потока чтения. */
+            private void reply(byte[] frame) {
+                try {
+                    clientSocket.getOutputStream().write(frame);
+                } catch (IOException e) {
+                    System.err.printf("ClientHandler.reply: %s\n", e.toString());
+                }
             }
 
-            public int getLifeTime() {
-                return lifeTime;
+            /** Пишет клиенту кадры рассылки, пока соединение не оборвётся. */
+            private void subscribe() {
+                Subscriber subscriber = new Subscriber(binary, () -> {});
+                broadcaster.subscribe(subscriber);
+                try {
+                    OutputStream out = clientSocket.getOutputStream();
+                    byte[] frame;
+                    while ((frame = subscriber.take()) != null) {
+                        out.write(frame);
+                    }
+                } catch (IOException e) {
+                    System.err.printf("ClientHandler.subscribe: %s\n", e.toString());
+                } catch (InterruptedException e) {
+                    // соединение закрывается вместе с потоком
+                } finally {
+                    broadcaster.unsubscribe(subscriber);
+                }
             }
         }
+    }
 
-        private HashMap<String, Message> messages = new HashMap<String, Message>();
-        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    /** Разбирает запросы из приходящих кусками байтов сокета. */
+    interface FrameDecoder {
+        /**
+         * Выполняет все запросы, полностью содержащиеся в buffer, и запоминает
+         * хвост до следующего вызова. Возвращает false, если поток испорчен и
+         * соединение нужно закрыть.
+         */
+        boolean decode(ByteBuffer buffer, AppState appState);
+
+        /** Конец потока. */
+        void finish(AppState appState);
+
+        /**
+         * Клиент запросил подписку: разбор остановлен, дальше соединение
+         * только получает обновления доски.
+         */
+        boolean isSubscribed();
+    }
 
-        void putMessage(String author, String message) {
-            lock.writeLock().lock();
-            messages.put(author, new Message(message));
-            lock.writeLock().unlock();
+    /**
+     * Последнее имя автора соединения. Клиент обычно пишет от одного имени,
+     * и пока байты имени не меняются, строка не создаётся заново.
+     */
+    static class AuthorCache {
+        private final Charset charset;
+        // байты имени в начале массива, массив растёт только под длинное имя
+        private byte[] bytes = new byte[64];
+        private int length = -1;
+        private String name;
+
+        AuthorCache(Charset charset) {
+            this.charset = charset;
         }
 
-        void timeStep() {
-            lock.writeLock().lock();
-            for (Message message : messages.values()) {
-                message.timeStep();
+        String decode(byte[] array, int offset, int length) {
+            if (length != this.length || !Arrays.equals(bytes, 0, length, array, offset, offset + length)) {
+                name = new String(array, offset, length, charset);
+                if (length > bytes.length) {
+                    bytes = new byte[length];
+                }
+                System.arraycopy(array, offset, bytes, 0, length);
+                this.length = length;
+            }
+            return name;
+        }
+    }
+
+    /**
+     * Текстовые запросы: строки, завершённые пустой строкой. Строки
+     * разбираются прямо в массиве буфера сокета и копируются, только если
+     * строка пришла по частям или буфер прямой. Метод сравнивается по байтам,
+     * имя автора берётся из AuthorCache, поэтому на putMessage создаётся
+     * только строка текста, которую хранит AppState.
+     */
+    static class TextFrameDecoder implements FrameDecoder {
+        private static final int MAX_LINE_LENGTH = 64 * 1024;
+        // вместе с MAX_LINE_LENGTH ограничивает память на незавершённый запрос
+        private static final int MAX_REQUEST_LINES = 16;
+        // коды методов, NONE - метод текущего запроса ещё не прочитан
+        private static final int NONE = 0;
+        private static final int PUT_MESSAGE = 1;
+        private static final int REMOVE_AUTHOR = 2;
+        private static final int SUBSCRIBE = 3;
+        private static final int OTHER = 4;
+        private static final byte[][] METHODS = {
+                null,
+                "putMessage".getBytes(StandardCharsets.US_ASCII),
+                "removeAuthor".getBytes(StandardCharsets.US_ASCII),
+                "subscribe".getBytes(StandardCharsets.US_ASCII),
+        };
+
+        // null - без ограничений
+        private final ConnectionLimits limits;
+        // куда писать ответы на запросы истории, null - запросы не обслуживаются
+        private final Consumer<byte[]> replies;
+        private final Charset charset = Charset.defaultCharset();
+        private final AuthorCache authors = new AuthorCache(charset);
+        // строка, пришедшая по частям
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        private boolean subscribed = false;
+
+        // текущий запрос
+        private int method = NONE;
+        private int arguments = 0;
+        private String author;
+        private String text;
+        // имя и аргументы прочих методов: запросов истории и неизвестных
+        private String methodName;
+        private final ArrayList<String> request = new ArrayList<String>();
+
+        TextFrameDecoder() {
+            this(null, null);
+        }
+
+        TextFrameDecoder(ConnectionLimits limits, Consumer<byte[]> replies) {
+            this.limits = limits;
+            this.replies = replies;
+        }
+
+        /**
+         * Строка длиннее MAX_LINE_LENGTH или запрос длиннее MAX_REQUEST_LINES
+         * строк считаются ошибкой.
+         */
+        public boolean decode(ByteBuffer buffer, AppState appState) {
+            while (buffer.hasRemaining() && !subscribed) {
+                int start = buffer.position();
+                int end = start;
+                int limit = buffer.limit();
+                while (end < limit && buffer.get(end) != '\n') {
+                    end++;
+                }
+
+                if (end < limit && lineLength == 0 && buffer.hasArray()) {
+                    buffer.position(end + 1);
+                    completeLine(buffer.array(), buffer.arrayOffset() + start, end - start, appState);
+                } else {
+                    if (!append(buffer, start, end)) {
+                        return false;
+                    }
+                    if (end == limit) {
+                        buffer.position(limit);
+                        return true;
+                    }
+                    buffer.position(end + 1);
+                    int length = lineLength;
+                    lineLength = 0;
+                    completeLine(line, 0, length, appState);
+                }
+
+                if (arguments > MAX_REQUEST_LINES) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Незавершённый запрос выполняется так же, как это делает
+         * блокирующий ClientHandler.
+         */
+        public void finish(AppState appState) {
+            if (lineLength > 0) {
+                int length = lineLength;
+                lineLength = 0;
+                completeLine(line, 0, length, appState);
+            }
+            completeRequest(appState);
+        }
+
+        private boolean append(ByteBuffer buffer, int start, int end) {
+            int length = end - start;
+            if (lineLength + length > MAX_LINE_LENGTH) {
+                return false;
+            }
+            if (lineLength + length > line.length) {
+                line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, Math.max(line.length * 2, lineLength + length)));
+            }
+
+            buffer.get(start, line, lineLength, length);
+            lineLength += length;
+            return true;
+        }
+
+        private void completeLine(byte[] array, int offset, int length, AppState appState) {
+            if (length > 0 && array[offset + length - 1] == '\r') {
+                length -= 1;
+            }
+
+            if (length == 0) {
+                completeRequest(appState);
+                return;
+            }
+
+            if (method == NONE) {
+                method = OTHER;
+                for (int m = PUT_MESSAGE; m < METHODS.length; m++) {
+                    if (Arrays.equals(METHODS[m], 0, METHODS[m].length, array, offset, offset + length)) {
+                        method = m;
+                    }
+                }
+                if (method == OTHER) {
+                    methodName = new String(array, offset, length, charset);
+                }
+                return;
+            }
+
+            arguments += 1;
+            if (method == PUT_MESSAGE || method == REMOVE_AUTHOR) {
+                if (arguments == 1) {
+                    author = authors.decode(array, offset, length);
+                } else if (arguments == 2) {
+                    text = new String(array, offset, length, charset);
+                }
+            } else if (method == OTHER) {
+                request.add(new String(array, offset, length, charset));
+            }
+        }
+
+        private void completeRequest(AppState appState) {
+            switch (method) {
+                case NONE:
+                    return;
+                case SUBSCRIBE:
+                    subscribed = true;
+                    break;
+                case PUT_MESSAGE:
+                    if (arguments != 2) {
+                        wrongArguments(2);
+                    } else if (limits == null || limits.admit(author)) {
+                        appState.putMessage(author, text);
+                    }
+                    break;
+                case REMOVE_AUTHOR:
+                    if (arguments != 1) {
+                        wrongArguments(1);
+                    } else if (limits == null || limits.admit(author)) {
+                        appState.removeAuthor(author);
+                    }
+                    break;
+                default:
+                    if (AppServer.isQuery(methodName)) {
+                        List<MessageHistory.Entry> entries = AppServer.handleQuery(appState, methodName, request);
+                        if (entries != null && replies != null) {
+                            replies.accept(FrameEncoder.encodeHistory(entries, charset, false));
+                        }
+                    } else {
+                        System.err.printf("TextFrameDecoder.completeRequest: Unknown method: %s\n", methodName);
+                    }
+            }
+
+            method = NONE;
+            arguments = 0;
+            author = null;
+            text = null;
+            methodName = null;
+            request.clear();
+        }
+
+        private void wrongArguments(int expected) {
+            System.err.printf(
+                    "TextFrameDecoder.completeRequest: wrong number of arguments: expected %d but receive %d\n",
+                    expected, arguments);
+        }
+
+        public boolean isSubscribed() {
+            return subscribed;
+        }
+    }
+
+    /**
+     * Бинарные запросы: [длина int32][код метода u8][данные], где длина
+     * считает код и данные. putMessage: [длина автора u16][автор][текст],
+     * removeAuthor: [автор], subscribe и reset без данных, history:
+     * [limit int32][автор, пусто - вся доска], historySince: [номер int64]
+     * [limit int32]. Подписчику доска приходит записями putAged: [возраст
+     * int64][длина автора u16][автор][текст]. Строки в UTF-8, числа big-endian.
+     */
+    static class BinaryFrameDecoder implements FrameDecoder {
+        static final byte[] MAGIC = { 0, 1 };
+        static final byte PUT_MESSAGE = 1;
+        static final byte REMOVE_AUTHOR = 2;
+        static final byte SUBSCRIBE = 3;
+        // только от сервера подписчику: дальше идёт доска целиком
+        static final byte RESET = 4;
+        // запрос и ответ, см. FrameEncoder.encodeHistory
+        static final byte HISTORY = 5;
+        static final byte HISTORY_SINCE = 6;
+        // только от сервера подписчику: putMessage с возрастом в тактах сервера
+        static final byte PUT_AGED = 7;
+        static final int MAX_FRAME_LENGTH = 128 * 1024;
+
+        // null - без ограничений
+        private final ConnectionLimits limits;
+        // куда писать ответы на запросы истории, null - запросы не обслуживаются
+        private final Consumer<byte[]> replies;
+        private final AuthorCache authors = new AuthorCache(StandardCharsets.UTF_8);
+        private final ByteBuffer header = ByteBuffer.allocate(4);
+        private byte[] frame = new byte[256];
+        private int frameLength = -1;
+        private int received = 0;
+        private boolean subscribed = false;
+
+        BinaryFrameDecoder() {
+            this(null, null);
+        }
+
+        BinaryFrameDecoder(ConnectionLimits limits, Consumer<byte[]> replies) {
+            this.limits = limits;
+            this.replies = replies;
+        }
+
+        public boolean decode(ByteBuffer buffer, AppState appState) {
+            while (buffer.hasRemaining() && !subscribed) {
+                if (frameLength < 0 && !readHeader(buffer)) {
+                    return true;
+                }
+                if (frameLength < 1 || frameLength > MAX_FRAME_LENGTH) {
+                    return false;
+                }
+                if (frame.length < frameLength) {
+                    frame = new byte[Math.min(MAX_FRAME_LENGTH, Math.max(frame.length * 2, frameLength))];
+                }
+
+                int count = Math.min(frameLength - received, buffer.remaining());
+                buffer.get(frame, received, count);
+                received += count;
+                if (received < frameLength) {
+                    return true;
+                }
+
+                boolean valid = dispatch(appState);
+                frameLength = -1;
+                received = 0;
+                if (!valid) {
+                    return false;
+                }
             }
-            lock.writeLock().unlock();
+            return true;
+        }
+
+        /** Недочитанный кадр отбрасывается. */
+        public void finish(AppState appState) {
         }
 
-        HashMap<String, Message> getMessages() {
-            HashMap<String, Message> copy = new HashMap<String, Message>(messages.size());
+        public boolean isSubscribed() {
+            return subscribed;
+        }
+
+        private boolean readHeader(ByteBuffer buffer) {
+            if (header.position() == 0 && buffer.remaining() >= 4) {
+                frameLength = buffer.getInt();
+                return true;
+            }
+            while (header.hasRemaining() && buffer.hasRemaining()) {
+                header.put(buffer.get());
+            }
+            if (header.hasRemaining()) {
+                return false;
+            }
+            frameLength = header.getInt(0);
+            header.clear();
+            return true;
+        }
 
-            lock.readLock().lock();
-            for (Entry<String, Message> entry : messages.entrySet()) {
-                copy.put(entry.getKey(), (Message) entry.getValue().clone());
+        private boolean dispatch(AppState appState) {
+            switch (frame[0]) {
+                case PUT_MESSAGE:
+                    if (frameLength < 3) {
+                        return false;
+                    }
+                    int authorLength = ((frame[1] & 0xff) << 8) | (frame[2] & 0xff);
+                    if (3 + authorLength > frameLength) {
+                        return false;
+                    }
+                    String author = authors.decode(frame, 3, authorLength);
+                    if (limits == null || limits.admit(author)) {
+                        appState.putMessage(author,
+                                new String(frame, 3 + authorLength, frameLength - 3 - authorLength, StandardCharsets.UTF_8));
+                    }
+                    return true;
+                case REMOVE_AUTHOR:
+                    String removed = authors.decode(frame, 1, frameLength - 1);
+                    if (limits == null || limits.admit(removed)) {
+                        appState.removeAuthor(removed);
+                    }
+                    return true;
+                case SUBSCRIBE:
+                    subscribed = true;
+                    return true;
+                case HISTORY:
+                    if (frameLength < 5) {
+                        return false;
+                    }
+                    ByteBuffer query = ByteBuffer.wrap(frame, 1, frameLength - 1);
+                    int limit = query.getInt();
+                    String of = frameLength > 5 ? new String(frame, 5, frameLength - 5, StandardCharsets.UTF_8) : null;
+                    reply(AppServer.queryHistory(appState, of, limit));
+                    return true;
+                case HISTORY_SINCE:
+                    if (frameLength != 13) {
+                        return false;
+                    }
+                    ByteBuffer since = ByteBuffer.wrap(frame, 1, 12);
+                    reply(AppServer.queryHistorySince(appState, since.getLong(), since.getInt()));
+                    return true;
+                default:
+                    System.err.printf("BinaryFrameDecoder.dispatch: Unknown method: %d\n", frame[0]);
+                    return true;
             }
+        }
 
-            lock.readLock().unlock();
-            return copy;
+        private void reply(List<MessageHistory.Entry> entries) {
+            if (replies != null) {
+                replies.accept(FrameEncoder.encodeHistory(entries, null, true));
+            }
         }
     }
 
-    static private class AppMessagesDashboard extends Thread {
-        private AppState appState;
+    /**
+     * Выбирает протокол по первым байтам соединения: бинарный клиент
+     * присылает BinaryFrameDecoder.MAGIC, всё остальное считается текстом.
+     */
+    static class NegotiatingFrameDecoder implements FrameDecoder {
+        // null - без ограничений
+        private final ConnectionLimits limits;
+        private final Consumer<byte[]> replies;
+        private FrameDecoder decoder;
+        private int magicRead = 0;
+
+        NegotiatingFrameDecoder() {
+            this(null, null);
+        }
 
-        public AppMessagesDashboard(AppState state) {
+        NegotiatingFrameDecoder(ConnectionLimits limits, Consumer<byte[]> replies) {
+            this.limits = limits;
+            this.replies = replies;
+        }
+
+        public boolean decode(ByteBuffer buffer, AppState appState) {
+            while (decoder == null && buffer.hasRemaining()) {
+                byte b = buffer.get(buffer.position());
+                if (magicRead == 0 && b != BinaryFrameDecoder.MAGIC[0]) {
+                    decoder = new TextFrameDecoder(limits, replies);
+                    break;
+                }
+                if (b != BinaryFrameDecoder.MAGIC[magicRead]) {
+                    return false;
+                }
+
+                buffer.get();
+                magicRead += 1;
+                if (magicRead == BinaryFrameDecoder.MAGIC.length) {
+                    decoder = new BinaryFrameDecoder(limits, replies);
+                }
+            }
+
+            return decoder == null || decoder.decode(buffer, appState);
+        }
+
+        public void finish(AppState appState) {
+            if (decoder != null) {
+                decoder.finish(appState);
+            }
+        }
+
+        public boolean isSubscribed() {
+            return decoder != null && decoder.isSubscribed();
+        }
+
+        boolean isBinary() {
+            return decoder instanceof BinaryFrameDecoder;
+        }
+    }
+
+    /** Кодирует запросы (метод и аргументы) в кадры текстового и бинарного протокола. */
+    static class FrameEncoder {
+        /**
+         * Ответ на запрос истории. Текст: строки history, число сообщений и на
+         * каждое номер, автор и текст, затем пустая строка. Бинарный:
+         * [длина][HISTORY][число int32], на каждое сообщение [номер int64]
+         * [длина автора u16][автор][длина текста int32][текст].
+         */
+        static byte[] encodeHistory(List<MessageHistory.Entry> entries, Charset charset, boolean binary) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                if (!binary) {
+                    String[] frame = new String[2 + 3 * entries.size()];
+                    frame[0] = "history";
+                    frame[1] = Integer.toString(entries.size());
+                    for (int i = 0; i < entries.size(); i++) {
+                        MessageHistory.Entry entry = entries.get(i);
+                        frame[2 + 3 * i] = Long.toString(entry.getSequence());
+                        frame[3 + 3 * i] = entry.getAuthor();
+                        frame[4 + 3 * i] = entry.getText();
+                    }
+                    writeText(out, charset, frame);
+                    return bytes.toByteArray();
+                }
+
+                out.writeInt(0);
+                out.writeByte(BinaryFrameDecoder.HISTORY);
+                out.writeInt(entries.size());
+                for (MessageHistory.Entry entry : entries) {
+                    byte[] author = entry.getAuthor().getBytes(StandardCharsets.UTF_8);
+                    byte[] text = entry.getText().getBytes(StandardCharsets.UTF_8);
+                    out.writeLong(entry.getSequence());
+                    out.writeShort(author.length);
+                    out.write(author);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+            } catch (IOException e) {
+                System.err.printf("FrameEncoder.encodeHistory: %s\n", e.toString());
+            }
+            byte[] frame = bytes.toByteArray();
+            ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+            return frame;
+        }
+
+        static void writeText(DataOutputStream out, Charset charset, String... frame) throws IOException {
+            for (String line : frame) {
+                out.write(line.getBytes(charset));
+                out.write('\n');
+            }
+            out.write('\n');
+        }
+
+        static void writeBinary(DataOutputStream out, String... frame) throws IOException {
+            switch (frame[0]) {
+                case "putMessage":
+                    byte[] author = frame[1].getBytes(StandardCharsets.UTF_8);
+                    if (author.length > 0xffff) {
+                        throw new IOException("author name is too long");
+                    }
+                    byte[] text = frame[2].getBytes(StandardCharsets.UTF_8);
+                    if (frame.length > 3) {
+                        out.writeInt(11 + author.length + text.length);
+                        out.writeByte(BinaryFrameDecoder.PUT_AGED);
+                        out.writeLong(Long.parseLong(frame[3]));
+                    } else {
+                        out.writeInt(3 + author.length + text.length);
+                        out.writeByte(BinaryFrameDecoder.PUT_MESSAGE);
+                    }
+                    out.writeShort(author.length);
+                    out.write(author);
+                    out.write(text);
+                    break;
+                case "removeAuthor":
+                    byte[] removed = frame[1].getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(1 + removed.length);
+                    out.writeByte(BinaryFrameDecoder.REMOVE_AUTHOR);
+                    out.write(removed);
+                    break;
+                case "subscribe":
+                    out.writeInt(1);
+                    out.writeByte(BinaryFrameDecoder.SUBSCRIBE);
+                    break;
+                case "reset":
+                    out.writeInt(1);
+                    out.writeByte(BinaryFrameDecoder.RESET);
+                    break;
+                default:
+                    throw new IOException("unknown method: " + frame[0]);
+            }
+        }
+    }
+
+    /**
+     * Почтовый ящик подписчика: кадры рассылки, ещё не записанные в сокет.
+     * Если подписчик не успевает и ящик переполнен, накопленные кадры
+     * выбрасываются, а следующим кадром он получит доску целиком.
+     */
+    static class Subscriber {
+        private static final int MAX_PENDING = 8;
+
+        private final boolean binary;
+        // вызывается после добавления кадра, чтобы писатель забрал его
+        private final Runnable onReady;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        private boolean resync = true;
+        private boolean closed = false;
+
+        Subscriber(boolean binary, Runnable onReady) {
+            this.binary = binary;
+            this.onReady = onReady;
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        synchronized boolean needsSnapshot() {
+            return resync;
+        }
+
+        /** snapshot - кадр с доской целиком, он заменяет всё неотправленное. */
+        void offer(byte[] frame, boolean snapshot) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (snapshot) {
+                    pending.clear();
+                    resync = false;
+                } else if (pending.size() >= MAX_PENDING) {
+                    pending.clear();
+                    resync = true;
+                    return;
+                }
+                pending.add(frame);
+                notifyAll();
+            }
+            onReady.run();
+        }
+
+        synchronized byte[] poll() {
+            return pending.poll();
+        }
+
+        /** Ждёт следующий кадр. Возвращает null, если подписчик закрыт. */
+        synchronized byte[] take() throws InterruptedException {
+            while (pending.isEmpty() && !closed) {
+                wait();
+            }
+            return pending.poll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            pending.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Раз в такт рассылает подписчикам изменения доски. Изменения за такт
+     * схлопываются до последнего на автора и кодируются один раз на
+     * протокол: всем подписчикам уходит один и тот же массив байтов.
+     */
+    static class Broadcaster extends Thread {
+        private static final long PERIOD_MILLIS = 125;
+
+        private final AppState appState;
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        // копия доски на версии version, из неё собираются полные кадры
+        private final LinkedHashMap<String, AppState.Message> board = new LinkedHashMap<String, AppState.Message>();
+        private long version = 0;
+
+        Broadcaster(AppState state) {
+            super("Broadcaster");
+            setDaemon(true);
             appState = state;
         }
 
+        void subscribe(Subscriber subscriber) {
+            subscribers.add(subscriber);
+        }
+
+        void unsubscribe(Subscriber subscriber) {
+            subscribers.remove(subscriber);
+            subscriber.close();
+        }
+
         public void run() {
             while (true) {
                 try {
-                    sleep(125);
+                    sleep(PERIOD_MILLIS);
                 } catch (InterruptedException e) {
                     return;
                 }
-
-                HashMap<String, AppState.Message> messages = appState.getMessages();
-                appState.timeStep();
-                printDashboard(messages);
+                broadcast();
             }
         }
 
-        private void printDashboard(HashMap<String, AppState.Message> messages) {
-            // clear screen
-            System.out.print("\033[H\033[2J");
-            System.out.print("+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  --|==1line==chat====>-  +\n");
-            if (messages.size() == 0) {
-                System.out.print("+                                 NO CLIENTS                                  +\n");
+        private void broadcast() {
+            boolean reset = false;
+            // null - автор удалён
+            LinkedHashMap<String, AppState.Message> updates = new LinkedHashMap<String, AppState.Message>();
+            AppState.Delta delta = appState.getChangesSince(version);
+            if (delta != null) {
+                for (AppState.Change change : delta.getChanges()) {
+                    AppState.Message current = board.get(change.getAuthor());
+                    if (current != null && current.getVersion() > change.getVersion()) {
+                        continue;
+                    }
+                    if (change.getMessage() != null) {
+                        board.put(change.getAuthor(), change.getMessage());
+                    } else {
+                        board.remove(change.getAuthor());
+                    }
+                    updates.put(change.getAuthor(), change.getMessage());
+                }
+                version = delta.getToVersion();
             } else {
-                for (Entry<String, AppState.Message> entry : messages.entrySet()) {
-                    printEntry(entry.getKey(), entry.getValue());
+                AppState.Snapshot snapshot = appState.getSnapshot();
+                board.clear();
+                for (int i = 0; i < snapshot.size(); i++) {
+                    board.put(snapshot.get(i).getAuthor(), snapshot.get(i));
                 }
+                version = snapshot.getVersion();
+                reset = true;
             }
 
-            System.out.print("+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  +\n");
-            System.out.flush();
+            long tick = appState.getTick();
+            // [0] - текстовый протокол, [1] - бинарный
+            byte[][] deltaFrames = new byte[2][];
+            byte[][] snapshotFrames = new byte[2][];
+            for (Subscriber subscriber : subscribers) {
+                int protocol = subscriber.isBinary() ? 1 : 0;
+                if (reset || subscriber.needsSnapshot()) {
+                    if (snapshotFrames[protocol] == null) {
+                        snapshotFrames[protocol] = encode(board, true, tick, subscriber.isBinary());
+                    }
+                    subscriber.offer(snapshotFrames[protocol], true);
+                } else if (!updates.isEmpty()) {
+                    if (deltaFrames[protocol] == null) {
+                        deltaFrames[protocol] = encode(updates, false, tick, subscriber.isBinary());
+                    }
+                    subscriber.offer(deltaFrames[protocol], false);
+                }
+            }
         }
 
-        private void printEntry(String author, AppState.Message message) {
-            System.out.printf("+ [%-10s]: ", author.substring(0, Math.min(author.length(), 10)));
-            printMessage(message);
-            System.out.printf(" |\n");
+        /** Сообщения уходят с возрастом в тактах сервера на такте tick. */
+        private static byte[] encode(Map<String, AppState.Message> updates, boolean reset, long tick,
+                boolean binary) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            Charset charset = Charset.defaultCharset();
+            try {
+                if (reset) {
+                    write(out, charset, binary, "reset");
+                }
+                for (Map.Entry<String, AppState.Message> entry : updates.entrySet()) {
+                    if (entry.getValue() != null) {
+                        write(out, charset, binary, "putMessage", entry.getKey(), entry.getValue().toString(),
+                                Integer.toString(entry.getValue().getLifeTime(tick)));
+                    } else {
+                        write(out, charset, binary, "removeAuthor", entry.getKey());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.printf("Broadcaster.encode: %s\n", e.toString());
+            }
+            return bytes.toByteArray();
         }
 
-        private void printMessage(AppState.Message message) {
-            int rest = 61;
-            String color = "";
-
-            if (message.getLifeTime() < 1) {
-                System.out.printf("        ");
-                rest -= 8;
-            } else if (message.getLifeTime() < 2) {
-                System.out.printf("  ");
-                rest -= 2;
-            } else
-
-            if (message.getLifeTime() < 12) {
-                color = "\033[1;32m";
-            }
-            if (message.getLifeTime() < 24) {
-                color = "\033[32m";
+        private static void write(DataOutputStream out, Charset charset, boolean binary, String... frame)
+                throws IOException {
+            if (binary) {
+                FrameEncoder.writeBinary(out, frame);
+            } else {
+                FrameEncoder.writeText(out, charset, frame);
             }
-            String body = message.toString();
-            body = body.substring(0, Math.min(body.length(), rest));
-            String fmt = "%s%-" + String.format("%d", rest) + "s\033[0m";
-            System.out.print(String.format(fmt, color, body));
         }
     }
 
-    static private class AppServer {
-        private ServerSocket serverSocket;
-        private AppState state = new AppState();
+    /**
+     * Сервер на неблокирующих каналах: один поток принимает соединения и
+     * раздаёт их по кругу между несколькими циклами событий (по одному на
+     * ядро), каждый со своим Selector.
+     */
+    static private class NioAppServer {
+        private final AppState state;
+        private final AdmissionControl admission;
+        private final Broadcaster broadcaster;
+        private final DashboardSink dashboard;
+
+        public NioAppServer(AppState state, AdmissionControl admission, DashboardSink dashboard) {
+            this.state = state;
+            this.admission = admission;
+            this.broadcaster = new Broadcaster(state);
+            this.dashboard = dashboard;
+        }
 
-        void start(int port) {
+        void start(int port, int loopsCount) {
+            ServerSocketChannel serverChannel;
+            EventLoop[] loops = new EventLoop[loopsCount];
             try {
-                serverSocket = new ServerSocket(port);
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port), AppServer.ACCEPT_BACKLOG);
+                for (int i = 0; i < loopsCount; i++) {
+                    loops[i] = new EventLoop(state, admission, broadcaster, i);
+                }
             } catch (IOException e) {
-                System.err.printf("ServerSocket: %s\n", e.toString());
+                System.err.printf("ServerSocketChannel: %s\n", e.toString());
                 return;
             }
 
-            new AppMessagesDashboard(state).start();
+            for (EventLoop loop : loops) {
+                loop.start();
+            }
+            new AppMessagesDashboard(state, dashboard).start();
+            broadcaster.start();
 
+            int next = 0;
             while (true) {
                 try {
-                    new ClientHandler(serverSocket.accept(), state).start();
+                    SocketChannel channel = serverChannel.accept();
+                    if (!admission.tryOpen()) {
+                        channel.close();
+                        continue;
+                    }
+                    channel.configureBlocking(false);
+                    loops[next].register(channel);
+                    next = (next + 1) % loopsCount;
                 } catch (IOException e) {
-                    System.err.printf("ClientHandler.clientSocket.getInputStream: %s\n", e.toString());
+                    System.err.printf("NioAppServer.accept: %s\n", e.toString());
                 }
             }
         }
 
-        private class ClientHandler extends Thread {
-            private Socket clientSocket;
-            private AppState appState;
-            private BufferedReader in;
+        static private class EventLoop extends Thread {
+            private static final int READ_BUFFER_SIZE = 64 * 1024;
+            private static final long IDLE_SWEEP_MILLIS = 1000;
+
+            private final Selector selector;
+            private final AppState appState;
+            private final AdmissionControl admission;
+            private final Broadcaster broadcaster;
+            private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+            // соединения подписчиков, которым пришли кадры рассылки
+            private final ConcurrentLinkedQueue<SelectionKey> ready = new ConcurrentLinkedQueue<SelectionKey>();
+            private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            // соединения, превысившие свою частоту, чтение которых приостановлено
+            private final ArrayList<SelectionKey> paused = new ArrayList<SelectionKey>();
+            private long lastIdleSweep = System.nanoTime();
+
+            /** Состояние одного соединения, вложение его SelectionKey. */
+            static private class Connection {
+                final ConnectionLimits limits;
+                final NegotiatingFrameDecoder decoder;
+                // ответы на запросы истории, уходят раньше кадров рассылки
+                final ArrayDeque<byte[]> replies = new ArrayDeque<byte[]>();
+                Subscriber subscriber;
+                // недописанный кадр рассылки
+                ByteBuffer writing;
+                // время последнего чтения, для закрытия простаивающих
+                long lastRead = System.nanoTime();
+                // когда возобновить чтение, 0 - чтение не приостановлено
+                long resumeAt = 0;
+
+                Connection(ConnectionLimits limits) {
+                    this.limits = limits;
+                    this.decoder = new NegotiatingFrameDecoder(limits, replies::add);
+                }
+            }
 
-            public ClientHandler(Socket socket, AppState state) {
-                clientSocket = socket;
+            public EventLoop(AppState state, AdmissionControl admission, Broadcaster broadcaster, int index)
+                    throws IOException {
+                super("EventLoop-" + index);
+                selector = Selector.open();
                 appState = state;
+                this.admission = admission;
+                this.broadcaster = broadcaster;
             }
 
-            public void run() {
-                try {
-                    in = new BufferedReader(
-                            new InputStreamReader(clientSocket.getInputStream()));
-                } catch (IOException e) {
-                    System.err.printf("ClientHandler.clientSocket.getInputStream: %s\n", e.toString());
-                }
+            void register(SocketChannel channel) {
+                pending.add(channel);
+                selector.wakeup();
+            }
 
-                if (in != null) {
-                    process();
+            public void run() {
+                while (true) {
                     try {
-                        in.close();
+                        selector.select(selectTimeout());
                     } catch (IOException e) {
-                        System.err.printf("ClientHandler.in.close: %s\n", e.toString());
+                        System.err.printf("EventLoop.selector.select: %s\n", e.toString());
+                        return;
                     }
-                }
 
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.printf("ClientHandler.clientSocket.close: %s\n", e.toString());
+                    registerPending();
+                    writeReady();
+                    resumePaused();
+                    closeIdle();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    }
                 }
             }
 
-            private void process() {
-                while (true) {
-                    ArrayList<String> data;
+            private void registerPending() {
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null) {
                     try {
-                        data = readRequest();
-                    } catch (IOException e) {
-                        System.err.printf("ClientHandler.readNext: %s\n", e.toString());
-                        return;
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(admission.newConnection()));
+                        appState.getMetrics().connectionOpened();
+                    } catch (ClosedChannelException e) {
+                        System.err.printf("EventLoop.register: %s\n", e.toString());
                     }
+                }
+            }
 
-                    if (data.size() == 0) {
-                        return;
+            private void writeReady() {
+                SelectionKey key;
+                while ((key = ready.poll()) != null) {
+                    if (key.isValid()) {
+                        write(key);
                     }
+                }
+            }
 
-                    String method = data.remove(0);
-                    if (method.equals("")) {
-                        continue;
-                    }
-                    if (method.equals("putMessage")) {
-                        if (data.size() == 2) {
-                            appState.putMessage(data.get(0), data.get(1));
-                        } else {
-                            System.err.printf(
-                                    "ClientHandler.process: wrong number of arguments: expected 2 but receive %d\n",
-                                    data.size());
+            /** Пишет накопленные ответы и кадры рассылки, пока сокет их принимает. */
+            private void write(SelectionKey key) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    while (true) {
+                        if (connection.writing == null) {
+                            byte[] frame = connection.replies.poll();
+                            if (frame == null && connection.subscriber != null) {
+                                frame = connection.subscriber.poll();
+                            }
+                            if (frame == null) {
+                                updateInterest(key, connection);
+                                return;
+                            }
+                            connection.writing = ByteBuffer.wrap(frame);
                         }
-                    } else {
-                        System.err.printf("ClientHandler.process: Unknown method: %s\n", method);
+
+                        channel.write(connection.writing);
+                        if (connection.writing.hasRemaining()) {
+                            updateInterest(key, connection);
+                            return;
+                        }
+                        connection.writing = null;
                     }
+                } catch (IOException e) {
+                    System.err.printf("EventLoop.write: %s\n", e.toString());
+                    close(key);
                 }
             }
 
-            private ArrayList<String> readRequest() throws IOException {
-                ArrayList<String> data = new ArrayList<String>();
+            private void read(SelectionKey key) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                Connection connection = (Connection) key.attachment();
+                FrameDecoder decoder = connection.decoder;
 
-                while (true) {
-                    String line = in.readLine();
-                    if (line == null) {
-                        break;
-                    }
+                readBuffer.clear();
+                int count;
+                try {
+                    count = channel.read(readBuffer);
+                } catch (IOException e) {
+                    System.err.printf("EventLoop.read: %s\n", e.toString());
+                    close(key);
+                    return;
+                }
 
-                    if (line.equals("")) {
-                        break;
+                if (count < 0) {
+                    decoder.finish(appState);
+                    close(key);
+                    return;
+                }
+
+                connection.lastRead = System.nanoTime();
+                readBuffer.flip();
+                if (!decoder.decode(readBuffer, appState)) {
+                    System.err.printf("EventLoop.read: malformed request\n");
+                    close(key);
+                    return;
+                }
+
+                if (!connection.replies.isEmpty() && connection.writing == null) {
+                    write(key);
+                    if (!key.isValid()) {
+                        return;
                     }
+                }
+
+                long delay = connection.limits.readDelayNanos();
+                if (delay > 0 && !decoder.isSubscribed()) {
+                    connection.resumeAt = connection.lastRead + delay;
+                    paused.add(key);
+                    updateInterest(key, connection);
+                }
+
+                // после подписки входящие данные только читаются до конца потока
+                if (decoder.isSubscribed() && connection.subscriber == null) {
+                    connection.subscriber = new Subscriber(connection.decoder.isBinary(), () -> {
+                        ready.add(key);
+                        selector.wakeup();
+                    });
+                    broadcaster.subscribe(connection.subscriber);
+                }
+            }
+
+            private void close(SelectionKey key) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.subscriber != null) {
+                    broadcaster.unsubscribe(connection.subscriber);
+                }
+                appState.getMetrics().connectionClosed();
+                admission.close();
+                key.cancel();
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    System.err.printf("EventLoop.close: %s\n", e.toString());
+                }
+            }
+
+            private void updateInterest(SelectionKey key, Connection connection) {
+                int ops = connection.resumeAt == 0 ? SelectionKey.OP_READ : 0;
+                if (connection.writing != null) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
 
-                    data.add(line);
+            /** Сколько ждать в select: до ближайшего возобновления или проверки простоя, 0 - без предела. */
+            private long selectTimeout() {
+                long timeout = admission.getIdleTimeoutMillis() > 0 ? IDLE_SWEEP_MILLIS : 0;
+                long now = System.nanoTime();
+                for (SelectionKey key : paused) {
+                    long wait = Math.max(1, (((Connection) key.attachment()).resumeAt - now + 999_999) / 1_000_000);
+                    timeout = timeout == 0 ? wait : Math.min(timeout, wait);
                 }
+                return timeout;
+            }
+
+            private void resumePaused() {
+                if (paused.isEmpty()) {
+                    return;
+                }
+                long now = System.nanoTime();
+                Iterator<SelectionKey> keys = paused.iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        keys.remove();
+                    } else if (connection.resumeAt <= now) {
+                        connection.resumeAt = 0;
+                        updateInterest(key, connection);
+                        keys.remove();
+                    }
+                }
+            }
 
-                return data;
+            /** Закрывает соединения, которые дольше idle-timeout ничего не присылали. Подписчики не закрываются. */
+            private void closeIdle() {
+                long idle = admission.getIdleTimeoutMillis() * 1_000_000;
+                long now = System.nanoTime();
+                if (idle == 0 || now - lastIdleSweep < IDLE_SWEEP_MILLIS * 1_000_000) {
+                    return;
+                }
+                lastIdleSweep = now;
+                for (SelectionKey key : selector.keys()) {
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && connection.subscriber == null && connection.resumeAt == 0
+                            && now - connection.lastRead > idle) {
+                        appState.getMetrics().idleTimeout();
+                        close(key);
+                    }
+                }
             }
         }
     }
@@ -256,6 +3091,7 @@ public class App {
         private String name;
         private String address;
         private int port;
+        private boolean binary = false;
 
         public AppClientBuilder(BufferedReader in) {
             this.in = in;
@@ -271,6 +3107,11 @@ public class App {
             return this;
         }
 
+        public AppClientBuilder setBinary(boolean binary) {
+            this.binary = binary;
+            return this;
+        }
+
         public AppClientBuilder askUser() throws IOException {
             if (name == null) {
                 this.askName();
@@ -291,7 +3132,107 @@ public class App {
         }
 
         public AppClient build() {
-            return new AppClient(in, name, address, port);
+            return new AppClient(in, name, address, port, binary);
+        }
+    }
+
+    /**
+     * Отправляет запросы клиента из отдельного потока. Всё, что накопилось
+     * в очереди, пишется в буфер и сбрасывается в сокет одним flush. Когда
+     * очередь заполнена, send ждёт, пока писатель её разгрузит.
+     * В бинарном режиме запросы кодируются кадрами BinaryFrameDecoder.
+     */
+    static private class FrameSender extends Thread {
+        private static final int QUEUE_CAPACITY = 1024;
+        private static final int MAX_FRAMES_PER_FLUSH = 256;
+        private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+        private static final String[] CLOSE = new String[0];
+
+        private final ArrayBlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(QUEUE_CAPACITY);
+        private final ArrayList<String[]> batch = new ArrayList<String[]>(MAX_FRAMES_PER_FLUSH);
+        private final DataOutputStream out;
+        private final boolean binary;
+        private final Charset charset = Charset.defaultCharset();
+        private volatile IOException failure;
+
+        public FrameSender(OutputStream stream, boolean binary) {
+            super("FrameSender");
+            setDaemon(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(stream, OUTPUT_BUFFER_SIZE));
+            this.binary = binary;
+        }
+
+        /** Ставит запрос (метод и аргументы) в очередь на отправку. */
+        void send(String... frame) throws IOException, InterruptedException {
+            if (failure != null) {
+                throw failure;
+            }
+            queue.put(frame);
+        }
+
+        /** Дожидается отправки всей очереди и закрывает поток. */
+        void close() throws IOException, InterruptedException {
+            queue.put(CLOSE);
+            join();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        public void run() {
+            if (binary) {
+                try {
+                    out.write(BinaryFrameDecoder.MAGIC);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, MAX_FRAMES_PER_FLUSH - 1);
+
+                boolean closed = false;
+                for (String[] frame : batch) {
+                    if (frame == CLOSE) {
+                        closed = true;
+                        break;
+                    }
+                    write(frame);
+                }
+                batch.clear();
+
+                if (failure == null) {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+        }
+
+        private void write(String[] frame) {
+            // после ошибки очередь только вычерпывается, чтобы send не завис
+            if (failure != null) {
+                return;
+            }
+            try {
+                if (binary) {
+                    FrameEncoder.writeBinary(out, frame);
+                } else {
+                    FrameEncoder.writeText(out, charset, frame);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
         }
     }
 
@@ -301,14 +3242,17 @@ public class App {
         private String address;
         private int port;
 
+        private boolean binary;
+
         private Socket clientSocket;
-        private PrintWriter out;
+        private FrameSender sender;
 
-        public AppClient(BufferedReader in, String name, String address, int port) {
+        public AppClient(BufferedReader in, String name, String address, int port, boolean binary) {
             this.in = in;
             this.name = name;
             this.address = address;
             this.port = port;
+            this.binary = binary;
         }
 
         public void start() {
@@ -323,15 +3267,15 @@ public class App {
             }
 
             try {
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                sender = new FrameSender(clientSocket.getOutputStream(), binary);
             } catch (IOException e) {
                 e.printStackTrace(System.err);
             }
 
-            if (out != null) {
+            if (sender != null) {
+                sender.start();
                 process();
                 sendQuit();
-                out.close();
             }
 
             try {
@@ -367,17 +3311,112 @@ public class App {
                     continue;
                 }
 
-                out.println("putMessage");
-                out.println(name);
-                out.println(userMessage);
-                out.println();
+                try {
+                    sender.send("putMessage", name, userMessage);
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
             }
         }
 
         private void sendQuit() {
-            out.println("removeAuthor");
-            out.println(name);
-            out.println();
+            try {
+                sender.send("removeAuthor", name);
+                sender.close();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            } catch (InterruptedException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Подписывается на доску сервера и показывает её так же, как консоль
+     * сервера: кадры рассылки применяются к локальной копии состояния.
+     */
+    private static class AppViewer {
+        private String address;
+        private int port;
+        private AppState board = new AppState();
+
+        public AppViewer(String address, int port) {
+            this.address = address;
+            this.port = port;
+        }
+
+        public void start() {
+            Socket socket;
+            try {
+                socket = new Socket(address, port);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                return;
+            }
+
+            try {
+                Writer out = new OutputStreamWriter(socket.getOutputStream());
+                out.write("subscribe\n\n");
+                out.flush();
+
+                AppMessagesDashboard dashboard = new AppMessagesDashboard(board);
+                dashboard.setDaemon(true);
+                dashboard.start();
+                process(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+
+        private void process(BufferedReader in) throws IOException {
+            ArrayList<String> frame = new ArrayList<String>();
+            while (true) {
+                String line = in.readLine();
+                if (line == null) {
+                    return;
+                }
+                if (!line.equals("")) {
+                    frame.add(line);
+                    continue;
+                }
+                if (frame.isEmpty()) {
+                    continue;
+                }
+
+                apply(frame.get(0), frame.subList(1, frame.size()));
+                frame.clear();
+            }
+        }
+
+        private void apply(String method, List<String> args) {
+            if (method.equals("putMessage") && args.size() == 3) {
+                long age;
+                try {
+                    age = Long.parseLong(args.get(2));
+                } catch (NumberFormatException e) {
+                    System.err.printf("AppViewer.apply: %s\n", e.toString());
+                    return;
+                }
+                board.restore(args.get(0), args.get(1), board.getTick() - age);
+            } else if (method.equals("removeAuthor") && args.size() == 1) {
+                board.removeAuthor(args.get(0));
+            } else if (method.equals("reset")) {
+                AppState.Snapshot snapshot = board.getSnapshot();
+                for (int i = 0; i < snapshot.size(); i++) {
+                    board.removeAuthor(snapshot.get(i).getAuthor());
+                }
+            } else {
+                System.err.printf("AppViewer.apply: Unknown method: %s\n", method);
+            }
         }
     }
 
@@ -396,6 +3435,8 @@ public class App {
         System.out.println("Что хотите запустить?");
         System.out.println("1. сервер");
         System.out.println("2. клиент");
+        System.out.println("3. клиент (бинарный протокол)");
+        System.out.println("4. наблюдатель (подписка на доску)");
         System.out.println("q. выйти");
 
         while (true) {
@@ -416,13 +3457,151 @@ public class App {
             if (choice.equals("2")) {
                 return Optional.of(StartType.CLIENT);
             }
+            if (choice.equals("3")) {
+                return Optional.of(StartType.BINARY_CLIENT);
+            }
+            if (choice.equals("4")) {
+                return Optional.of(StartType.VIEWER);
+            }
+
+            System.out.println(
+                    String.format("Вы ввели \"%s\", что не представлено в списке. Введите число или q", choice));
+        }
+    }
+
+    static Optional<ServerMode> selectServerMode(BufferedReader stdinReader) {
+        System.out.println("Как обрабатывать соединения?");
+        System.out.println("1. поток на соединение");
+        System.out.println("2. виртуальный поток на соединение");
+        System.out.println("3. NIO (Selector)");
+        System.out.println("q. выйти");
+
+        while (true) {
+            System.out.print("> ");
+            String choice;
+            try {
+                choice = stdinReader.readLine();
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+
+            if (choice == null || choice.equals("q")) {
+                return Optional.empty();
+            }
+            if (choice.equals("1")) {
+                return Optional.of(ServerMode.THREAD_PER_CONNECTION);
+            }
+            if (choice.equals("2")) {
+                return Optional.of(ServerMode.VIRTUAL_THREAD_PER_CONNECTION);
+            }
+            if (choice.equals("3")) {
+                return Optional.of(ServerMode.NIO);
+            }
 
             System.out.println(
                     String.format("Вы ввели \"%s\", что не представлено в списке. Введите число или q", choice));
         }
     }
 
+    /** Вывод доски по значению --dashboard, null - неизвестный. */
+    static DashboardSink parseDashboard(String spec) {
+        if (spec.equals("terminal")) {
+            return new TerminalDashboardSink(System.out);
+        } else if (spec.equals("none")) {
+            return new NullDashboardSink();
+        } else if (spec.startsWith("ndjson:")) {
+            return NdjsonDashboardSink.toFile(spec.substring("ndjson:".length()));
+        } else if (spec.startsWith("ndjson-tcp:")) {
+            String address = spec.substring("ndjson-tcp:".length());
+            int colon = address.lastIndexOf(':');
+            try {
+                return NdjsonDashboardSink.toSocket(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    static void startMetrics(Metrics metrics, String metricsFile) {
+        metrics.register();
+        if (metricsFile == null) {
+            return;
+        }
+        try {
+            PrintStream out = new PrintStream(new FileOutputStream(metricsFile, true), true);
+            new MetricsReporter(metrics, out, METRICS_INTERVAL_MILLIS).start();
+        } catch (FileNotFoundException e) {
+            System.err.printf("App.startMetrics: %s\n", e.toString());
+        }
+    }
+
+    /**
+     * Аргументы:
+     *   --metrics=FILE        раз в 10 секунд дописывать метрики сервера в FILE
+     *   --max-lifetime=TICKS  удалять авторов, молчащих дольше TICKS тактов
+     *                         (такт - 125 мс), 0 - не удалять
+     *   --max-authors=N       держать на доске не больше N авторов, удаляя
+     *                         давно писавших, 0 - без ограничения
+     *   --max-connections=N   закрывать соединения сверх N сразу после accept
+     *   --connection-rate=R   не больше R запросов в секунду от соединения,
+     *                         лишние ждут в сокете, пока сервер его не читает
+     *   --author-rate=R       не больше R запросов в секунду от автора, лишние
+     *                         отбрасываются
+     *   --idle-timeout=S      закрывать соединения, молчащие S секунд
+     *   Для всех ограничений 0 - выключено (по умолчанию).
+     *   --history=N           хранить N последних сообщений каждого автора для
+     *                         запросов history и historySince, 0 - не хранить
+     *   --dashboard=terminal  доска сервера в терминале (по умолчанию)
+     *   --dashboard=none      без доски, для сервера без терминала
+     *   --dashboard=ndjson:FILE     доска строками NDJSON в конец FILE
+     *   --dashboard=ndjson-tcp:H:P  доска строками NDJSON в соединение с H:P
+     */
     public static void main(String[] args) {
+        String metricsFile = null;
+        long maxLifeTime = 0;
+        int maxAuthors = 0;
+        int maxConnections = 0;
+        double connectionRate = 0;
+        double authorRate = 0;
+        long idleTimeout = 0;
+        int historyDepth = 0;
+        DashboardSink dashboard = new TerminalDashboardSink(System.out);
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--dashboard=")) {
+                    dashboard = parseDashboard(arg.substring("--dashboard=".length()));
+                    if (dashboard == null) {
+                        System.err.printf("App.main: Unknown argument: %s\n", arg);
+                        return;
+                    }
+                } else if (arg.startsWith("--metrics=")) {
+                    metricsFile = arg.substring("--metrics=".length());
+                } else if (arg.startsWith("--max-lifetime=")) {
+                    maxLifeTime = Long.parseLong(arg.substring("--max-lifetime=".length()));
+                } else if (arg.startsWith("--max-authors=")) {
+                    maxAuthors = Integer.parseInt(arg.substring("--max-authors=".length()));
+                } else if (arg.startsWith("--max-connections=")) {
+                    maxConnections = Integer.parseInt(arg.substring("--max-connections=".length()));
+                } else if (arg.startsWith("--connection-rate=")) {
+                    connectionRate = Double.parseDouble(arg.substring("--connection-rate=".length()));
+                } else if (arg.startsWith("--author-rate=")) {
+                    authorRate = Double.parseDouble(arg.substring("--author-rate=".length()));
+                } else if (arg.startsWith("--history=")) {
+                    historyDepth = Integer.parseInt(arg.substring("--history=".length()));
+                } else if (arg.startsWith("--idle-timeout=")) {
+                    idleTimeout = Long.parseLong(arg.substring("--idle-timeout=".length()));
+                } else {
+                    System.err.printf("App.main: Unknown argument: %s\n", arg);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                System.err.printf("App.main: %s\n", e.toString());
+                return;
+            }
+        }
+
         BufferedReader stdinReader = new BufferedReader(new InputStreamReader(System.in));
 
         printHeader();
@@ -433,16 +3612,44 @@ public class App {
         }
         switch (userChoice.get()) {
             case SERVER:
-                new AppServer().start(3001);
+                Optional<ServerMode> serverMode = selectServerMode(stdinReader);
+                if (serverMode.isEmpty()) {
+                    return;
+                }
+                AppState state = new AppState();
+                state.setEviction(maxLifeTime, maxAuthors);
+                state.setHistory(historyDepth);
+                startMetrics(state.getMetrics(), metricsFile);
+                AdmissionControl admission = new AdmissionControl(maxConnections, connectionRate, authorRate,
+                        idleTimeout * 1000, state.getMetrics());
+                switch (serverMode.get()) {
+                    case THREAD_PER_CONNECTION:
+                        new AppServer(state, admission, Thread.ofPlatform().name("ClientHandler-", 0), dashboard)
+                                .start(3001);
+                        break;
+                    case VIRTUAL_THREAD_PER_CONNECTION:
+                        new AppServer(state, admission, Thread.ofVirtual().name("ClientHandler-", 0), dashboard)
+                                .start(3001);
+                        break;
+                    case NIO:
+                        new NioAppServer(state, admission, dashboard).start(3001,
+                                Runtime.getRuntime().availableProcessors());
+                        break;
+                }
                 break;
             case CLIENT:
+            case BINARY_CLIENT:
                 try {
-                    new AppClientBuilder(stdinReader).setAddress("127.0.0.1").setPort(3001).askUser().build().start();
+                    new AppClientBuilder(stdinReader).setAddress("127.0.0.1").setPort(3001)
+                            .setBinary(userChoice.get() == StartType.BINARY_CLIENT).askUser().build().start();
                 } catch (IOException e) {
                     // TODO Auto-generated catch block
                     e.printStackTrace();
                 }
                 break;
+            case VIEWER:
+                new AppViewer("127.0.0.1", 3001).start();
+                break;
         }
     }
 }
@@ -2,13 +2,30 @@ package com.dhcs;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 import org.junit.Test;
 
 /**
  * Unit test for simple App.
  */
-public class AppTest 
+public class AppTest
 {
+    private static final int REQUESTS = 20000;
+    // байт на запрос сверх записи в AppState, которые допускаются на шум замера
+    private static final long ALLOCATION_SLACK = 16;
+    private static final String AUTHOR = "author";
+    private static final String TEXT = "hello, world";
+    // последний порог возраста в DashboardRenderer
+    private static final int LAST_THRESHOLD = 24;
+
     /**
      * Rigorous Test :-)
      */
@@ -17,4 +34,121 @@ public class AppTest
     {
         assertTrue( true );
     }
+
+    /**
+     * Разбор текстовых запросов putMessage не создаёт мусора: на запрос
+     * выделяется не больше, чем при прямом вызове AppState.putMessage со
+     * свежей строкой текста.
+     */
+    @Test
+    public void textDecoderAllocatesOnlyStoredMessage() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < REQUESTS; i++) {
+            App.FrameEncoder.writeText(out, Charset.defaultCharset(), "putMessage", AUTHOR, TEXT);
+        }
+        assertDecoderAllocation(new App.TextFrameDecoder(), bytes.toByteArray(), Charset.defaultCharset());
+    }
+
+    /** То же для бинарного протокола. */
+    @Test
+    public void binaryDecoderAllocatesOnlyStoredMessage() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < REQUESTS; i++) {
+            App.FrameEncoder.writeBinary(out, "putMessage", AUTHOR, TEXT);
+        }
+        assertDecoderAllocation(new App.BinaryFrameDecoder(), bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void assertDecoderAllocation(App.FrameDecoder decoder, byte[] stream, Charset charset)
+    {
+        App.AppState state = new App.AppState();
+        byte[] textBytes = TEXT.getBytes(charset);
+        ByteBuffer buffer = ByteBuffer.wrap(stream);
+
+        // несколько кругов, чтобы замер шёл после JIT; берётся лучший
+        long direct = Long.MAX_VALUE;
+        long decoded = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long begin = allocatedBytes();
+            for (int i = 0; i < REQUESTS; i++) {
+                state.putMessage(AUTHOR, new String(textBytes, charset));
+            }
+            direct = Math.min(direct, allocatedBytes() - begin);
+
+            // кусками, как читает ClientHandler, чтобы запросы рвались на границах
+            buffer.clear();
+            begin = allocatedBytes();
+            while (buffer.hasRemaining()) {
+                buffer.limit(Math.min(stream.length, buffer.position() + 1024));
+                assertTrue(decoder.decode(buffer, state));
+                buffer.limit(stream.length);
+            }
+            decoded = Math.min(decoded, allocatedBytes() - begin);
+        }
+
+        long perRequest = (decoded - direct) / REQUESTS;
+        assertTrue("decoder allocates " + perRequest + " extra bytes per request", perRequest <= ALLOCATION_SLACK);
+    }
+
+    /**
+     * Строка перерисовывается, когда сообщение стареет, даже если оно
+     * пришло намного позже последнего кадра и его такт перерисовки делит
+     * ячейку колеса с более ранним тактом.
+     */
+    @Test
+    public void rendererRedrawsDeltaAfterSkippedTicks()
+    {
+        App.AppState state = new App.AppState();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        App.DashboardRenderer renderer = new App.DashboardRenderer(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        renderer.reset(state.getTick(), state.getSnapshot());
+        renderer.render(state.getTick());
+
+        for (int i = 0; i < 20; i++) {
+            state.timeStep();
+        }
+        state.putMessage(AUTHOR, TEXT);
+        renderer.apply(state.getChangesSince(renderer.getVersion()));
+        renderer.render(state.getTick());
+        assertAgedAt(state, renderer, bytes);
+    }
+
+    /** То же для снимка, выведенного после долгого перерыва. */
+    @Test
+    public void rendererRedrawsSnapshotAfterReset()
+    {
+        App.AppState state = new App.AppState();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        App.DashboardRenderer renderer = new App.DashboardRenderer(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        for (int i = 0; i < 100; i++) {
+            state.timeStep();
+        }
+        state.putMessage(AUTHOR, TEXT);
+        renderer.reset(state.getTick(), state.getSnapshot());
+        renderer.render(state.getTick());
+        assertAgedAt(state, renderer, bytes);
+    }
+
+    private static void assertAgedAt(App.AppState state, App.DashboardRenderer renderer, ByteArrayOutputStream bytes)
+    {
+        long aged = state.getTick() + LAST_THRESHOLD;
+        for (long tick = state.getTick() + 1; tick <= aged; tick++) {
+            state.timeStep();
+            bytes.reset();
+            renderer.render(tick);
+        }
+        String frame = bytes.toString(StandardCharsets.UTF_8);
+        assertTrue("row was not redrawn: " + frame, frame.contains("]: " + TEXT));
+    }
+
+    private static long allocatedBytes()
+    {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
 }
@@ -4,17 +4,31 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class AppClient {
     private BufferedReader in;
     private String name;
     private String address;
     private int port;
+    private int maxBatch;
+    private long maxBatchDelayMillis;
+    // null - один сервер по address и port
+    private List<String> shards;
+    private int poolSize;
+    private int maxAttempts;
+    // двоичный RPC вместо RMI, port - порт RpcServer
+    private boolean rpc;
 
     private IAppServer server;
+    private AsyncAppClient async;
+    // null - каждое сообщение отправляется отдельным вызовом
+    private MessageCoalescer coalescer;
 
 
     private static class Builder {
@@ -22,6 +36,12 @@ public class AppClient {
         private String name;
         private String address;
         private int port;
+        private int maxBatch = 64;
+        private long maxBatchDelayMillis = 5;
+        private List<String> shards;
+        private int poolSize = 4;
+        private int maxAttempts = 3;
+        private boolean rpc = false;
 
         public Builder(BufferedReader in) {
             this.in = in;
@@ -37,6 +57,32 @@ public class AppClient {
             return this;
         }
 
+        /** maxBatch <= 1 отключает объединение сообщений в пакеты. */
+        public Builder setBatching(int maxBatch, long maxDelayMillis) {
+            this.maxBatch = maxBatch;
+            this.maxBatchDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /** Писать в кластер: shards - адреса серверов вида host:port. */
+        public Builder setShards(List<String> shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /** Потоки асинхронных вызовов и число попыток каждого вызова, см. AsyncAppClient. */
+        public Builder setPool(int poolSize, int maxAttempts) {
+            this.poolSize = poolSize;
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /** rpc - работать через RpcServer, а не через RMI. */
+        public Builder setTransport(boolean rpc) {
+            this.rpc = rpc;
+            return this;
+        }
+
         public Builder askUser() throws IOException {
             if (name == null) {
                 this.askName();
@@ -57,7 +103,8 @@ public class AppClient {
         }
 
         public AppClient build() {
-            return new AppClient(in, name, address, port);
+            return new AppClient(in, name, address, port, maxBatch, maxBatchDelayMillis, shards, poolSize,
+                    maxAttempts, rpc);
         }
     }
 
@@ -75,22 +122,50 @@ public class AppClient {
     }
 
 
-    public AppClient(BufferedReader in, String name, String address, int port) {
+    public AppClient(BufferedReader in, String name, String address, int port, int maxBatch,
+            long maxBatchDelayMillis, List<String> shards, int poolSize, int maxAttempts, boolean rpc) {
         this.in = in;
         this.name = name;
         this.address = address;
         this.port = port;
+        this.maxBatch = maxBatch;
+        this.maxBatchDelayMillis = maxBatchDelayMillis;
+        this.shards = shards;
+        this.poolSize = poolSize;
+        this.maxAttempts = maxAttempts;
+        this.rpc = rpc;
+    }
+
+    /**
+     * Сервер по адресу или, если заданы shards, заглушка кластера. rpc -
+     * двоичный RPC, тогда порты - порты RpcServer, а не реестра.
+     */
+    static IAppServer connect(String address, int port, List<String> shards, boolean rpc)
+            throws RemoteException, NotBoundException {
+        if (shards != null) {
+            return rpc ? ShardRouter.connectRpc(shards) : ShardRouter.connect(shards);
+        }
+        if (rpc) {
+            return RpcClient.connect(address, port);
+        }
+        return (IAppServer) LocateRegistry.getRegistry(address, port).lookup("server");
     }
 
     public void start() {
+        async = new AsyncAppClient.Builder(() -> connect(address, port, shards, rpc)).setPoolSize(poolSize)
+                .setRetries(maxAttempts, 50, 2000).build();
         try {
-            Registry re = LocateRegistry.getRegistry(address, port);
-            server = (IAppServer) re.lookup("server");
+            server = async.connect();
         } catch (Exception e) {
             e.printStackTrace(System.err);
             return;
         }
 
+        if (maxBatch > 1) {
+            coalescer = new MessageCoalescer(server, maxBatch, maxBatchDelayMillis);
+            coalescer.start();
+        }
+
         Runtime.getRuntime().addShutdownHook(new ShutdownHook(this));
         process();
     }
@@ -123,20 +198,35 @@ public class AppClient {
                 continue;
             }
 
-            try {
-                server.putMessage(name, userMessage);
-            } catch (RemoteException e) {
-                e.printStackTrace(System.err);
+            if (coalescer != null) {
+                coalescer.putMessage(name, userMessage);
                 continue;
             }
+
+            // ввод не ждёт ответа сервера, ошибка печатается, когда придёт
+            async.putMessage(name, userMessage).whenComplete((result, e) -> {
+                if (e != null) {
+                    e.printStackTrace(System.err);
+                }
+            });
         }
     }
 
     private void sendQuit() {
         System.out.println();
+        if (coalescer != null) {
+            try {
+                coalescer.close();
+            } catch (InterruptedException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+
+        // removeAuthor встаёт в очередь автора за ещё не отправленными сообщениями
         try {
-            server.removeAuthor(name);
-        } catch (RemoteException e) {
+            async.removeAuthor(name).get();
+            async.close();
+        } catch (ExecutionException | InterruptedException e) {
             e.printStackTrace(System.err);
         }
     }
@@ -154,12 +244,91 @@ public class AppClient {
         System.out.println("");
     }
 
-    public static void main(String[] args) {
+    /**
+     * Аргументы:
+     *   --batch=N         сообщений в пакете, 1 - без пакетов (по умолчанию 64)
+     *   --batch-delay=MS  сколько ждать пополнения пакета (по умолчанию 5)
+     *   --watch           не писать, а показывать доску сервера
+     *   --port=P          порт реестра сервера (по умолчанию 3001) или, с
+     *                     --transport=rpc, порт RpcServer (по умолчанию 3002)
+     *   --transport=rmi|rpc вызывать сервер через RMI (по умолчанию) или через
+     *                     двоичный RPC, см. AppServer --rpc-port
+     *   --shards=H:P,...  работать с кластером серверов, авторы раскладываются
+     *                     по ним согласованным хешированием
+     *   --pool=N          потоков для асинхронных вызовов (по умолчанию 4)
+     *   --retries=N       попыток вызова, если сервер недоступен (по умолчанию 3)
+     *   --socket-buffer=B размер буферов TCP соединений RMI, 0 - как в системе
+     *   --keep-alive=MS   сколько держать простаивающее соединение RMI для
+     *                     следующих вызовов (по умолчанию 15000)
+     */
+    public static void main(String[] args) throws RemoteException {
         BufferedReader stdinReader = new BufferedReader(new InputStreamReader(System.in));
 
+        int maxBatch = 64;
+        long maxBatchDelayMillis = 5;
+        boolean watch = false;
+        int port = 0;
+        boolean rpc = false;
+        List<String> shards = null;
+        int poolSize = 4;
+        int maxAttempts = 3;
+        int socketBuffer = 0;
+        for (String arg : args) {
+            if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--transport=rmi") || arg.equals("--transport=rpc")) {
+                rpc = arg.equals("--transport=rpc");
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--shards=")) {
+                shards = Arrays.asList(arg.substring("--shards=".length()).split(","));
+            } else if (arg.startsWith("--pool=")) {
+                poolSize = Integer.parseInt(arg.substring("--pool=".length()));
+            } else if (arg.startsWith("--retries=")) {
+                maxAttempts = Integer.parseInt(arg.substring("--retries=".length()));
+            } else if (arg.startsWith("--socket-buffer=")) {
+                socketBuffer = Integer.parseInt(arg.substring("--socket-buffer=".length()));
+            } else if (arg.startsWith("--keep-alive=")) {
+                // транспорт RMI читает его один раз, до первого соединения
+                System.setProperty("sun.rmi.transport.connectionTimeout",
+                        Long.toString(Long.parseLong(arg.substring("--keep-alive=".length()))));
+            } else if (arg.startsWith("--batch=")) {
+                maxBatch = Integer.parseInt(arg.substring("--batch=".length()));
+            } else if (arg.startsWith("--batch-delay=")) {
+                maxBatchDelayMillis = Long.parseLong(arg.substring("--batch-delay=".length()));
+            } else {
+                System.err.printf("AppClient.main: Unknown argument: %s\n", arg);
+                return;
+            }
+        }
+
+        if (port == 0) {
+            port = rpc ? 3002 : 3001;
+        }
+
+        if (socketBuffer > 0) {
+            try {
+                TunedSocketFactory.install(new TunedSocketFactory(socketBuffer, socketBuffer));
+            } catch (IOException e) {
+                System.err.printf("AppClient.main: %s\n", e.toString());
+                return;
+            }
+        }
+
+        if (watch) {
+            try {
+                new AppWatcher().start(connect("127.0.0.1", port, shards, rpc));
+            } catch (NotBoundException e) {
+                e.printStackTrace(System.err);
+            }
+            return;
+        }
+
         printHeader();
         try {
-            new Builder(stdinReader).setAddress("127.0.0.1").setPort(3001).askUser().build().start();
+            new Builder(stdinReader).setAddress("127.0.0.1").setPort(port).setShards(shards).setTransport(rpc)
+                    .setBatching(maxBatch, maxBatchDelayMillis).setPool(poolSize, maxAttempts).askUser().build()
+                    .start();
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -1,72 +1,124 @@
 package com.dhcs;
 
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.io.IOException;
 
+/**
+ * Раз в такт двигает AppState.timeStep и отдаёт такт потоку вывода,
+ * который выводит доску в DashboardSink. Такт не ждёт вывода: если вывод
+ * не успевает, пропущенные такты не выводятся, а их изменения приходят
+ * одной дельтой в кадре последнего такта.
+ */
 public class AppMessagesDashboard extends Thread {
-    private AppState appState;
+    private static final long PERIOD_MILLIS = 125;
+
+    private final AppState appState;
+    private final DashboardSink sink;
+    // null - вывода нет, см. NullDashboardSink
+    private final Thread output;
+    // последний такт, ещё не взятый потоком вывода, -1 - нет; под замком this
+    private long pendingTick = -1;
+    private volatile long lastFrameNanos = 0;
 
     public AppMessagesDashboard(AppState state) {
+        this(state, new TerminalDashboardSink(System.out));
+    }
+
+    public AppMessagesDashboard(AppState state, DashboardSink sink) {
         appState = state;
+        this.sink = sink;
+        if (sink instanceof NullDashboardSink) {
+            output = null;
+        } else {
+            output = new Thread(this::drain, "DashboardOutput");
+            output.setDaemon(true);
+        }
     }
 
     public void run() {
+        if (output != null) {
+            output.start();
+        }
         while (true) {
             try {
-                sleep(125);
+                sleep(PERIOD_MILLIS);
             } catch (InterruptedException e) {
+                if (output != null) {
+                    output.interrupt();
+                }
                 return;
             }
 
-            HashMap<String, AppState.Message> messages = appState.getMessages();
+            long tick = appState.getTick();
             appState.timeStep();
-            printDashboard(messages);
+            if (output != null) {
+                publish(tick);
+            }
         }
     }
 
-    private void printDashboard(HashMap<String, AppState.Message> messages) {
-        // clear screen
-        System.out.print("\033[H\033[2J");
-        System.out.print("+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  --|==1line==chat====>-  +\n");
-        if (messages.size() == 0) {
-            System.out.print("+                                 NO CLIENTS                                  +\n");
-        } else {
-            for (Entry<String, AppState.Message> entry : messages.entrySet()) {
-                printEntry(entry.getKey(), entry.getValue());
-            }
+    private synchronized void publish(long tick) {
+        if (pendingTick >= 0) {
+            appState.getMetrics().frameSkipped();
         }
-
-        System.out.print("+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  +\n");
-        System.out.flush();
+        pendingTick = tick;
+        notifyAll();
     }
 
-    private void printEntry(String author, AppState.Message message) {
-        System.out.printf("+ [%-10s]: ", author.substring(0, Math.min(author.length(), 10)));
-        printMessage(message);
-        System.out.printf(" |\n");
+    private synchronized long takeTick() throws InterruptedException {
+        while (pendingTick < 0) {
+            wait();
+        }
+        long tick = pendingTick;
+        pendingTick = -1;
+        return tick;
     }
 
-    private void printMessage(AppState.Message message) {
-        int rest = 61;
-        String color = "";
-
-        if (message.getLifeTime() < 1) {
-            System.out.printf("        ");
-            rest -= 8;
-        } else if (message.getLifeTime() < 2) {
-            System.out.printf("  ");
-            rest -= 2;
-        } else
-
-        if (message.getLifeTime() < 12) {
-            color = "\033[1;32m";
-        }
-        if (message.getLifeTime() < 24) {
-            color = "\033[32m";
+    /** Поток вывода: кадр на каждый взятый такт. */
+    private void drain() {
+        long version = 0;
+        boolean resync = true;
+        boolean failing = false;
+        try {
+            while (true) {
+                long tick = takeTick();
+                long begin = System.nanoTime();
+                try {
+                    AppState.Delta delta = resync ? null : appState.getChangesSince(version);
+                    if (delta != null) {
+                        sink.delta(tick, delta);
+                        version = delta.getToVersion();
+                    } else {
+                        AppState.Snapshot snapshot = appState.getSnapshot();
+                        sink.snapshot(tick, snapshot);
+                        version = snapshot.getVersion();
+                    }
+                    resync = false;
+                    failing = false;
+                } catch (IOException | RuntimeException e) {
+                    // ошибка печатается один раз, пока вывод не восстановится;
+                    // ошибка в самом выводе тоже не должна останавливать поток
+                    if (!failing) {
+                        System.err.printf("AppMessagesDashboard.drain: %s\n", e.toString());
+                    }
+                    failing = true;
+                    resync = true;
+                }
+                lastFrameNanos = System.nanoTime() - begin;
+                appState.getMetrics().getFrameTime().record(lastFrameNanos);
+            }
+        } catch (InterruptedException e) {
+            // поток тактов остановлен
+        } finally {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                System.err.printf("AppMessagesDashboard.drain: %s\n", e.toString());
+            }
         }
-        String body = message.toString();
-        body = body.substring(0, Math.min(body.length(), rest));
-        String fmt = "%s%-" + String.format("%d", rest) + "s\033[0m";
-        System.out.print(String.format(fmt, color, body));
+    }
+
+    /** Время построения и вывода последнего кадра. */
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
     }
 }
@@ -1,31 +1,339 @@
 package com.dhcs;
 
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
-public class AppServer extends UnicastRemoteObject implements IAppServer {
+public class AppServer extends UnicastRemoteObject implements IAppServer, IReplicationSource {
     private static final long serialVersionUID = 1L;
-    private AppState state = new AppState();
+    private static final long METRICS_INTERVAL_MILLIS = 10000;
+    private AppState state;
+    // null - изменения выполняются прямо в потоке RMI
+    private transient AuthorOrderedExecutor executor;
+    private transient Broadcaster broadcaster;
+    // реплики отличают перезапуск сервера по смене runId
+    private transient String runId = UUID.randomUUID().toString();
+    // null - основной сервер
+    private transient Replica replica;
 
-    protected AppServer() throws RemoteException {}
+    protected AppServer() throws RemoteException {
+        this(new AppState(), null);
+    }
+
+    protected AppServer(AuthorOrderedExecutor executor) throws RemoteException {
+        this(new AppState(), executor);
+    }
+
+    protected AppServer(AppState state, AuthorOrderedExecutor executor) throws RemoteException {
+        this(state, executor, 0, null, null);
+    }
 
+    /**
+     * Экспортирует сервер на порту port (0 - любой свободный) с фабриками
+     * сокетов; null - сокеты по умолчанию. Клиентская фабрика уходит клиентам
+     * вместе с заглушкой.
+     */
+    protected AppServer(AppState state, AuthorOrderedExecutor executor, int port, RMIClientSocketFactory csf,
+            RMIServerSocketFactory ssf) throws RemoteException {
+        super(port, csf, ssf);
+        this.state = state;
+        this.executor = executor;
+        this.broadcaster = new Broadcaster(state);
+    }
+
+    /**
+     * Аргументы:
+     *   --executor=direct   изменения состояния в потоке RMI (по умолчанию)
+     *   --executor=virtual  изменения состояния на виртуальных потоках
+     *   --metrics=FILE      раз в 10 секунд дописывать метрики в FILE
+     *   --data=DIR          хранить доску в DIR и восстанавливать её при запуске
+     *   --fsync=on|off      ждать ли сброса журнала на диск перед ответом, on
+     *   --store=heap        сообщения в куче (по умолчанию)
+     *   --store=offheap     тексты вне кучи, для досок на миллионы авторов
+     *   --max-lifetime=T    удалять авторов, молчащих дольше T тактов (такт -
+     *                       125 мс), 0 - не удалять
+     *   --max-authors=N     держать на доске не больше N авторов, удаляя давно
+     *                       писавших, 0 - без ограничения
+     *   --port=P            порт реестра RMI, 3001; несколько серверов на разных
+     *                       портах образуют кластер, см. ShardRouter
+     *   --replica-of=H:P    реплика сервера H:P: доска и подписка только на
+     *                       чтение до promote через JMX (com.dhcs:type=Replica)
+     *   --history=N         хранить N последних сообщений каждого автора для
+     *                       getHistory и getMessagesSince, 0 - не хранить
+     *   --object-port=P     порт экспортируемого сервера, 0 - любой (по умолчанию)
+     *   --socket-buffer=B   размер буферов TCP соединений с сервером, 0 - как в
+     *                       системе
+     *   --compress=BYTES    сжимать вызовы и ответы длиннее BYTES, 0 - не сжимать
+     *   --rmi-idle-timeout=MS закрывать соединения клиентов, молчащие дольше MS
+     *                       (по умолчанию 2 часа), 0 - не закрывать
+     *   --rmi-threads=N     не больше N потоков обработки соединений RMI, 0 -
+     *                       без ограничения
+     *   --rpc-port=P        принимать ещё и двоичный RPC (RpcServer) на порту P,
+     *                       0 - только RMI (по умолчанию)
+     *   --dashboard=terminal доска в терминале (по умолчанию)
+     *   --dashboard=none    без доски, для сервера без терминала
+     *   --dashboard=ndjson:FILE      доска строками NDJSON в конец FILE
+     *   --dashboard=ndjson-tcp:H:P   доска строками NDJSON в соединение с H:P
+     */
     public static void main(String[] args) throws RemoteException {
-        AppServer s = new AppServer();
-        Registry re = LocateRegistry.createRegistry(3001);
+        AuthorOrderedExecutor executor = null;
+        String metricsFile = null;
+        String dataDir = null;
+        boolean fsync = true;
+        MessageStore store = new HeapMessageStore();
+        long maxLifeTime = 0;
+        int maxAuthors = 0;
+        int port = 3001;
+        String primary = null;
+        int historyDepth = 0;
+        int objectPort = 0;
+        int rpcPort = 0;
+        DashboardSink dashboard = new TerminalDashboardSink(System.out);
+        int socketBuffer = 0;
+        int compressThreshold = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--dashboard=")) {
+                dashboard = parseDashboard(arg.substring("--dashboard=".length()));
+                if (dashboard == null) {
+                    System.err.printf("AppServer.main: Unknown argument: %s\n", arg);
+                    return;
+                }
+            } else if (arg.startsWith("--rpc-port=")) {
+                rpcPort = (int) parseNumber(arg);
+            } else if (arg.startsWith("--object-port=")) {
+                objectPort = (int) parseNumber(arg);
+            } else if (arg.startsWith("--socket-buffer=")) {
+                socketBuffer = (int) Math.min(Integer.MAX_VALUE, parseNumber(arg));
+            } else if (arg.startsWith("--compress=")) {
+                compressThreshold = (int) Math.min(Integer.MAX_VALUE, parseNumber(arg));
+            } else if (arg.startsWith("--rmi-idle-timeout=")) {
+                // транспорт RMI читает свойства один раз, до первого экспорта
+                System.setProperty("sun.rmi.transport.tcp.readTimeout", Long.toString(parseNumber(arg)));
+            } else if (arg.startsWith("--rmi-threads=")) {
+                long threads = parseNumber(arg);
+                if (threads > 0) {
+                    System.setProperty("sun.rmi.transport.tcp.maxConnectionThreads", Long.toString(threads));
+                }
+            } else if (arg.startsWith("--history=")) {
+                historyDepth = (int) Math.min(Integer.MAX_VALUE, parseNumber(arg));
+            } else if (arg.startsWith("--replica-of=")) {
+                primary = arg.substring("--replica-of=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = (int) parseNumber(arg);
+            } else if (arg.startsWith("--max-lifetime=")) {
+                maxLifeTime = parseNumber(arg);
+            } else if (arg.startsWith("--max-authors=")) {
+                maxAuthors = (int) Math.min(Integer.MAX_VALUE, parseNumber(arg));
+            } else if (arg.equals("--executor=virtual")) {
+                executor = new AuthorOrderedExecutor();
+            } else if (arg.startsWith("--metrics=")) {
+                metricsFile = arg.substring("--metrics=".length());
+            } else if (arg.startsWith("--data=")) {
+                dataDir = arg.substring("--data=".length());
+            } else if (arg.equals("--fsync=on") || arg.equals("--fsync=off")) {
+                fsync = arg.equals("--fsync=on");
+            } else if (arg.equals("--store=offheap")) {
+                store = new OffHeapMessageStore();
+            } else if (!arg.equals("--executor=direct") && !arg.equals("--store=heap")) {
+                System.err.printf("AppServer.main: Unknown argument: %s\n", arg);
+                return;
+            }
+        }
+
+        AppState state = new AppState(store);
+        state.setEviction(maxLifeTime, maxAuthors);
+        state.setHistory(historyDepth);
+        if (dataDir != null) {
+            try {
+                long begin = System.nanoTime();
+                StateStore stateStore = StateStore.open(Path.of(dataDir), state, fsync);
+                System.out.printf("Restored %d authors in %d ms\n", state.getAuthorsCount(),
+                        (System.nanoTime() - begin) / 1_000_000);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        stateStore.close();
+                    } catch (IOException e) {
+                        System.err.printf("AppServer.main: %s\n", e.toString());
+                    }
+                }));
+            } catch (IOException e) {
+                System.err.printf("AppServer.main: %s\n", e.toString());
+                return;
+            }
+        }
+
+        TunedSocketFactory factory = null;
+        if (socketBuffer > 0 || compressThreshold > 0) {
+            factory = new TunedSocketFactory(socketBuffer, socketBuffer, compressThreshold);
+        }
+        // реестр остаётся обычным, чтобы его находили клиенты без фабрики
+        AppServer s = new AppServer(state, executor, objectPort, factory, factory);
+        if (primary != null) {
+            int colon = primary.lastIndexOf(':');
+            s.replica = new Replica(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)), state);
+            s.replica.register();
+            s.replica.start();
+        }
+        Registry re = LocateRegistry.createRegistry(port);
         re.rebind("server", s);
+        if (rpcPort > 0) {
+            try {
+                new RpcServer(s, rpcPort).start();
+            } catch (IOException e) {
+                System.err.printf("AppServer.main: %s\n", e.toString());
+            }
+        }
+
+        Metrics metrics = s.state.getMetrics();
+        metrics.register();
+        if (metricsFile != null) {
+            try {
+                PrintStream out = new PrintStream(new FileOutputStream(metricsFile, true), true);
+                new MetricsReporter(metrics, out, METRICS_INTERVAL_MILLIS).start();
+            } catch (FileNotFoundException e) {
+                System.err.printf("AppServer.main: %s\n", e.toString());
+            }
+        }
 
-        new AppMessagesDashboard(s.state).start();
+        new AppMessagesDashboard(s.state, dashboard).start();
+        s.broadcaster.start();
+    }
+
+    /** Вывод доски по значению --dashboard, null - неизвестный. */
+    private static DashboardSink parseDashboard(String spec) {
+        if (spec.equals("terminal")) {
+            return new TerminalDashboardSink(System.out);
+        } else if (spec.equals("none")) {
+            return new NullDashboardSink();
+        } else if (spec.startsWith("ndjson:")) {
+            return NdjsonDashboardSink.toFile(Path.of(spec.substring("ndjson:".length())));
+        } else if (spec.startsWith("ndjson-tcp:")) {
+            String address = spec.substring("ndjson-tcp:".length());
+            int colon = address.lastIndexOf(':');
+            try {
+                return NdjsonDashboardSink.toSocket(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** Число после '=' в аргументе, при ошибке 0 - ограничение выключено. */
+    private static long parseNumber(String arg) {
+        try {
+            return Math.max(0, Long.parseLong(arg.substring(arg.indexOf('=') + 1)));
+        } catch (NumberFormatException e) {
+            System.err.printf("AppServer.main: %s\n", e.toString());
+            return 0;
+        }
+    }
+
+    private void checkWritable() throws RemoteException {
+        if (replica != null && !replica.isPromoted()) {
+            throw new RemoteException("read-only replica of " + replica.getPrimary());
+        }
     }
 
     @Override
     public void putMessage(String author, String message) throws RemoteException {
-        state.putMessage(author, message);
+        checkWritable();
+        long begin = System.nanoTime();
+        if (executor == null) {
+            state.putMessage(author, message);
+        } else {
+            executor.execute(author, () -> state.putMessage(author, message));
+        }
+        state.getMetrics().getPutMessage().record(System.nanoTime() - begin);
+    }
+
+    @Override
+    public void putMessages(List<AuthorMessage> messages) throws RemoteException {
+        checkWritable();
+        long begin = System.nanoTime();
+        if (executor == null) {
+            state.putMessages(messages);
+        } else {
+            ArrayList<String> authors = new ArrayList<String>(messages.size());
+            for (AuthorMessage m : messages) {
+                authors.add(m.getAuthor());
+            }
+            // пакет остаётся одним putMessages и не обгоняет записи своих авторов
+            executor.execute(authors, () -> state.putMessages(messages));
+        }
+        state.getMetrics().getPutMessages().record(System.nanoTime() - begin);
     }
 
     @Override
     public void removeAuthor(String author) throws RemoteException {
-        state.removeAuthor(author);
+        checkWritable();
+        long begin = System.nanoTime();
+        if (executor == null) {
+            state.removeAuthor(author);
+        } else {
+            executor.execute(author, () -> state.removeAuthor(author));
+        }
+        state.getMetrics().getRemoveAuthor().record(System.nanoTime() - begin);
+    }
+
+    @Override
+    public void subscribe(IAppListener listener) throws RemoteException {
+        long begin = System.nanoTime();
+        broadcaster.subscribe(listener);
+        state.getMetrics().getSubscribe().record(System.nanoTime() - begin);
+    }
+
+    @Override
+    public void unsubscribe(IAppListener listener) throws RemoteException {
+        long begin = System.nanoTime();
+        broadcaster.unsubscribe(listener);
+        state.getMetrics().getUnsubscribe().record(System.nanoTime() - begin);
+    }
+
+    @Override
+    public List<MessageHistory.Entry> getHistory(String author, int limit) throws RemoteException {
+        long begin = System.nanoTime();
+        MessageHistory history = state.getHistory();
+        List<MessageHistory.Entry> result = history == null ? new ArrayList<MessageHistory.Entry>() : history.ofAuthor(author, limit);
+        state.getMetrics().getGetHistory().record(System.nanoTime() - begin);
+        return result;
+    }
+
+    @Override
+    public List<MessageHistory.Entry> getRecentMessages(int limit) throws RemoteException {
+        long begin = System.nanoTime();
+        MessageHistory history = state.getHistory();
+        List<MessageHistory.Entry> result = history == null ? new ArrayList<MessageHistory.Entry>() : history.recent(limit);
+        state.getMetrics().getGetRecentMessages().record(System.nanoTime() - begin);
+        return result;
+    }
+
+    @Override
+    public List<MessageHistory.Entry> getMessagesSince(long sequence, int limit) throws RemoteException {
+        long begin = System.nanoTime();
+        MessageHistory history = state.getHistory();
+        List<MessageHistory.Entry> result = history == null ? new ArrayList<MessageHistory.Entry>() : history.since(sequence, limit);
+        state.getMetrics().getGetMessagesSince().record(System.nanoTime() - begin);
+        return result;
+    }
+
+    @Override
+    public ReplicationBatch fetchChanges(String runId, long since) throws RemoteException {
+        long begin = System.nanoTime();
+        ReplicationBatch batch = ReplicationBatch.of(this.runId, state, runId, since);
+        state.getMetrics().getFetchChanges().record(System.nanoTime() - begin);
+        return batch;
     }
 }
@@ -1,70 +1,595 @@
 package com.dhcs;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class AppState {
+    // сколько последних изменений доступно через getChangesSince
+    private static final int CHANGES_CAPACITY = 1 << 16;
+    // сколько последних сообщений доски хранит история
+    private static final int HISTORY_CAPACITY = 1 << 16;
+    // сколько перезаписанных записей очереди вытеснения терпеть сверх числа авторов
+    private static final int EXPIRIES_SLACK = 1024;
 
-    public class Message {
-        private int lifeTime = 0;
-        private String text;
+    /**
+     * Неизменяемая запись. Возраст не хранится, а вычисляется из номера
+     * такта, на котором сообщение было записано.
+     */
+    public static class Message {
+        private final String author;
+        private final String text;
+        private final long epoch;
+        private final long version;
 
-        public Message(String text) {
+        public Message(String author, String text, long epoch, long version) {
+            this.author = author;
             this.text = text;
+            this.epoch = epoch;
+            this.version = version;
         }
 
-        public Object clone() {
-            Message copy = new Message(this.text);
-            copy.lifeTime = this.lifeTime;
-            return (Object) copy;
-        }
-
-        void timeStep() {
-            lifeTime += 1;
+        public String getAuthor() {
+            return author;
         }
 
         public String toString() {
             return text;
         }
 
-        public int getLifeTime() {
-            return lifeTime;
+        /** Число тактов, прошедших с записи сообщения к такту tick. */
+        public int getLifeTime(long tick) {
+            return (int) Math.max(0, tick - epoch);
+        }
+
+        /** Такт, на котором сообщение было записано. */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /** Запись очереди вытеснения: сообщение автора версии version с такта epoch. */
+    private static class Expiry {
+        final String author;
+        final long version;
+        final long epoch;
+
+        Expiry(String author, long version, long epoch) {
+            this.author = author;
+            this.version = version;
+            this.epoch = epoch;
         }
     }
 
-    private HashMap<String, Message> messages = new HashMap<String, Message>();
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    /**
+     * Изменение одного автора. message == null означает удаление автора.
+     * author == null - пустое изменение: версия выдана записи, которая не
+     * состоялась; в Delta такие изменения не попадают.
+     */
+    public static class Change {
+        private final long version;
+        private final String author;
+        private final Message message;
+
+        Change(long version, String author, Message message) {
+            this.version = version;
+            this.author = author;
+            this.message = message;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Неизменяемый снимок доски. Один и тот же снимок отдаётся всем
+     * читателям, пока состояние не изменится. Снимок отражает все изменения
+     * до getVersion() включительно и, возможно, часть более поздних, поэтому
+     * изменения поверх него применяются, только если они новее сообщения.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final Message[] messages;
+        private final int size;
+
+        private Snapshot(long version, Message[] messages, int size) {
+            this.version = version;
+            this.messages = messages;
+            this.size = size;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Message get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return messages[index];
+        }
+    }
+
+    /** Изменения после версии fromVersion до toVersion включительно, по порядку. */
+    public static class Delta {
+        private final long fromVersion;
+        private final long toVersion;
+        private final List<Change> changes;
+
+        private Delta(long fromVersion, long toVersion, List<Change> changes) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.changes = changes;
+        }
+
+        public long getFromVersion() {
+            return fromVersion;
+        }
+
+        public long getToVersion() {
+            return toVersion;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+
+    private final MessageStore messages;
+    private final AtomicLong tick = new AtomicLong(0);
+    private final AtomicLong version = new AtomicLong(0);
+    private final AtomicReferenceArray<Change> changes = new AtomicReferenceArray<Change>(CHANGES_CAPACITY);
+
+    private volatile Snapshot published = new Snapshot(0, new Message[0], 0);
+    // позиции авторов в published, меняются только под publishLock
+    private final Object publishLock = new Object();
+    private final HashMap<String, Integer> publishedIndex = new HashMap<String, Integer>();
+
+    private final Metrics metrics = new Metrics(this);
+    // null - состояние живёт только в памяти
+    private volatile WriteAheadLog log;
+
+    // 0 - без ограничения
+    private volatile long maxLifeTime = 0;
+    private volatile int maxAuthors = 0;
+    // сообщения в порядке записи, пока включено вытеснение; записи,
+    // которые автор уже перезаписал, пропускаются при извлечении и
+    // выбрасываются compactExpiries
+    private final ConcurrentLinkedQueue<Expiry> expiries = new ConcurrentLinkedQueue<Expiry>();
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final Object evictLock = new Object();
+    // null - история не ведётся
+    private volatile MessageHistory history;
+
+    public AppState() {
+        this(new HeapMessageStore());
+    }
+
+    public AppState(MessageStore messages) {
+        this.messages = messages;
+    }
+
+    /**
+     * Включает журнал: каждое изменение дописывается в него раньше, чем
+     * становится видно читателям, и запись не возвращается, пока журнал
+     * не подтвердит сохранность.
+     */
+    public void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Включает вытеснение: автор удаляется, если его сообщение старше
+     * maxLifeTime тактов, и самые давние авторы удаляются, когда их больше
+     * maxAuthors. Очередь упорядочена по записи, поэтому вытеснение стоит
+     * O(удалённых), а не обход всей доски.
+     */
+    public void setEviction(long maxLifeTime, int maxAuthors) {
+        this.maxLifeTime = maxLifeTime;
+        this.maxAuthors = maxAuthors;
+    }
+
+    /**
+     * Включает историю: каждый автор хранит depth последних сообщений, доска -
+     * HISTORY_CAPACITY последних. 0 выключает историю. История живёт только
+     * в памяти и не попадает в журнал.
+     */
+    public void setHistory(int depth) {
+        this.history = depth > 0 ? new MessageHistory(HISTORY_CAPACITY, depth) : null;
+    }
+
+    /** null, если история выключена. */
+    public MessageHistory getHistory() {
+        return history;
+    }
 
     public void putMessage(String author, String message) {
-        lock.writeLock().lock();
-        messages.put(author, new Message(message));
-        lock.writeLock().unlock();
+        check(author, message);
+        long position = put(author, message, tick.get(), version.incrementAndGet(), null, 0);
+        metrics.messagesWritten(1);
+        awaitDurable(position);
+    }
+
+    /**
+     * Записывает пакет одним обновлением: версии для всего пакета
+     * выделяются одной атомарной операцией и идут подряд в порядке списка.
+     * Изменения пакета публикуются с конца, поэтому читатели журнала
+     * изменений стоят на первой версии пакета, пока он не записан целиком,
+     * и не видят его наполовину.
+     */
+    public void putMessages(List<AuthorMessage> batch) {
+        for (AuthorMessage item : batch) {
+            check(item.getAuthor(), item.getText());
+        }
+        int n = batch.size();
+        long first = version.getAndAdd(n) + 1;
+        long epoch = tick.get();
+        long position = 0;
+        Change[] pending = new Change[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                AuthorMessage item = batch.get(i);
+                position = put(item.getAuthor(), item.getText(), epoch, first + i, pending, i);
+            }
+        } finally {
+            // версии после упавшей записи уже выданы, без них журнал изменений встанет
+            for (int i = n - 1; i >= 0; i--) {
+                record(pending[i] != null ? pending[i] : new Change(first + i, null, null));
+            }
+        }
+        metrics.messagesWritten(n);
+        // весь пакет подтверждается одним ожиданием журнала
+        awaitDurable(position);
+    }
+
+    /**
+     * Восстанавливает сообщение при запуске или переносит его с основного
+     * сервера на реплику или подписчику. Версия выдаётся заново, такт
+     * сохраняется, чтобы возраст сообщений продолжал расти.
+     */
+    public void restore(String author, String text, long epoch) {
+        check(author, text);
+        put(author, text, epoch, version.incrementAndGet(), null, 0);
+        tick.accumulateAndGet(epoch, Math::max);
+    }
+
+    /**
+     * Пустые автор и текст, а также сообщения, которые не поместятся в
+     * хранилище, отклоняются до выдачи версии и записи в журнал.
+     */
+    private void check(String author, String text) {
+        if (author == null || text == null) {
+            throw new IllegalArgumentException("author and text must not be null");
+        }
+        messages.check(author, text);
+    }
+
+    /**
+     * Возвращает позицию записи в журнале, 0 - журнала нет. Версия v уже
+     * выдана, поэтому если запись упадёт, вместо неё пишется пустое
+     * изменение: иначе читатели журнала изменений остановились бы на ней.
+     * Если pending задан, изменение не публикуется, а кладётся в
+     * pending[index], пустое изменение тогда пишет вызывающий.
+     */
+    private long put(String author, String text, long epoch, long v, Change[] pending, int index) {
+        boolean recorded = false;
+        long position;
+        try {
+            WriteAheadLog log = this.log;
+            position = log != null ? log.appendPut(v, epoch, author, text) : 0;
+            Message m = new Message(author, text, epoch, v);
+            messages.put(m);
+            if (pending != null) {
+                pending[index] = new Change(v, author, m);
+            } else {
+                record(new Change(v, author, m));
+            }
+            recorded = true;
+        } finally {
+            if (!recorded && pending == null) {
+                record(new Change(v, null, null));
+            }
+        }
+        MessageHistory history = this.history;
+        if (history != null) {
+            history.add(author, text, epoch);
+        }
+
+        if (maxLifeTime > 0 || maxAuthors > 0) {
+            expiries.add(new Expiry(author, v, epoch));
+            if (maxAuthors > 0 && messages.size() > maxAuthors) {
+                evictOldest();
+            }
+            if (queued.incrementAndGet() > 2 * messages.size() + EXPIRIES_SLACK) {
+                compactExpiries();
+            }
+        }
+        return position;
     }
 
     public void removeAuthor(String author) {
-        lock.writeLock().lock();
-        messages.remove(author);
-        lock.writeLock().unlock();
+        if (author == null) {
+            throw new IllegalArgumentException("author must not be null");
+        }
+        long v = version.incrementAndGet();
+        boolean recorded = false;
+        long position;
+        try {
+            WriteAheadLog log = this.log;
+            position = log != null ? log.appendRemove(v, author) : 0;
+            messages.remove(author, v);
+            record(new Change(v, author, null));
+            recorded = true;
+        } finally {
+            if (!recorded) {
+                record(new Change(v, null, null));
+            }
+        }
+        forget(author);
+        awaitDurable(position);
+    }
+
+    private void awaitDurable(long position) {
+        WriteAheadLog log = this.log;
+        if (log != null) {
+            log.awaitDurable(position);
+        }
     }
 
     public void timeStep() {
-        lock.writeLock().lock();
-        for (Message message : messages.values()) {
-            message.timeStep();
+        long now = tick.incrementAndGet();
+        if (maxLifeTime > 0) {
+            evictExpired(now);
         }
-        lock.writeLock().unlock();
     }
 
-    public HashMap<String, Message> getMessages() {
-        HashMap<String, Message> copy = new HashMap<String, Message>(messages.size());
+    private void evictExpired(long now) {
+        synchronized (evictLock) {
+            Expiry head;
+            while ((head = expiries.peek()) != null && now - head.epoch > maxLifeTime) {
+                expiries.poll();
+                queued.decrementAndGet();
+                evict(head);
+            }
+        }
+    }
 
-        lock.readLock().lock();
-        for (Entry<String, Message> entry : messages.entrySet()) {
-            copy.put(entry.getKey(), (Message) entry.getValue().clone());
+    private void evictOldest() {
+        synchronized (evictLock) {
+            Expiry head;
+            while (messages.size() > maxAuthors && (head = expiries.poll()) != null) {
+                queued.decrementAndGet();
+                evict(head);
+            }
         }
+    }
+
+    /**
+     * Выбрасывает из очереди записи, которые авторы уже перезаписали или
+     * удалили. Без этого частые записи немногих авторов копили бы очередь,
+     * пока её голову не снимет вытеснение. Сжатие идёт, когда записей
+     * вдвое больше, чем авторов, поэтому его цена делится между записями.
+     */
+    private void compactExpiries() {
+        synchronized (evictLock) {
+            if (queued.get() <= 2 * messages.size() + EXPIRIES_SLACK) {
+                return;
+            }
+            // извлекают из очереди только под evictLock, так что remove не промахнётся
+            for (Iterator<Expiry> it = expiries.iterator(); it.hasNext();) {
+                Expiry expiry = it.next();
+                if (messages.getVersion(expiry.author) != expiry.version) {
+                    it.remove();
+                    queued.decrementAndGet();
+                }
+            }
+        }
+    }
 
-        lock.readLock().unlock();
-        return copy;
+    /** Удаляет автора, если сообщение из head всё ещё его последнее. */
+    private void evict(Expiry head) {
+        if (messages.expire(head.author, head.version)) {
+            long v = version.incrementAndGet();
+            try {
+                WriteAheadLog log = this.log;
+                if (log != null) {
+                    log.appendRemove(v, head.author);
+                }
+            } finally {
+                // автор уже удалён, изменение пишется, даже если журнал упал
+                record(new Change(v, head.author, null));
+            }
+            forget(head.author);
+            metrics.authorEvicted();
+        }
+    }
+
+    private void forget(String author) {
+        MessageHistory history = this.history;
+        if (history != null) {
+            history.remove(author);
+        }
+    }
+
+    public long getTick() {
+        return tick.get();
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public int getAuthorsCount() {
+        return messages.size();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Возвращает последний опубликованный снимок. Если с момента его
+     * публикации что-то изменилось, новый снимок собирается один раз из
+     * журнала изменений и переиспользуется всеми следующими читателями.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = published;
+        if (current.version == version.get()) {
+            return current;
+        }
+
+        long waitBegin = System.nanoTime();
+        synchronized (publishLock) {
+            metrics.getLockWait().record(System.nanoTime() - waitBegin);
+            current = published;
+            long target = version.get();
+            if (current.version >= target) {
+                return current;
+            }
+
+            ArrayList<Change> pending = new ArrayList<Change>();
+            long reached = readChanges(current.version, target, pending);
+            if (reached >= 0) {
+                published = apply(current, pending, reached);
+            } else {
+                published = rebuild(target);
+            }
+            return published;
+        }
+    }
+
+    /**
+     * Изменения после версии since. Возвращает null, если часть из них уже
+     * вытеснена из журнала: тогда нужно взять getSnapshot() и продолжить с
+     * его версии.
+     */
+    public Delta getChangesSince(long since) {
+        ArrayList<Change> result = new ArrayList<Change>();
+        long to = readChanges(since, version.get(), result);
+        if (to < 0) {
+            return null;
+        }
+        return new Delta(since, to, result);
+    }
+
+    private static int slot(long v) {
+        return (int) (v & (CHANGES_CAPACITY - 1));
+    }
+
+    /**
+     * Кладёт изменение в журнал, если слот не занят более новым: писатель,
+     * вытесненный планировщиком, не должен затереть изменение, записанное
+     * после него, иначе читатели ждали бы его вечно.
+     */
+    private void record(Change change) {
+        int s = slot(change.version);
+        Change current;
+        do {
+            current = changes.get(s);
+            if (current != null && current.version > change.version) {
+                return;
+            }
+        } while (!changes.compareAndSet(s, current, change));
+    }
+
+    /**
+     * Читает изменения (from, to] подряд, пока не встретит ещё не записанное,
+     * пустые пропускает. Возвращает последнюю прочитанную версию или -1,
+     * если нужное изменение уже затёрто более новым.
+     */
+    private long readChanges(long from, long to, List<Change> result) {
+        if (to - from > CHANGES_CAPACITY) {
+            return -1;
+        }
+        for (long v = from + 1; v <= to; v++) {
+            Change change = changes.get(slot(v));
+            if (change == null || change.version < v) {
+                // писатель ещё не дописал изменение, остальное заберём позже
+                return v - 1;
+            }
+            if (change.version > v) {
+                return -1;
+            }
+            if (change.author != null) {
+                result.add(change);
+            }
+        }
+        return to;
+    }
+
+    /** reached - версия нового снимка, pending - изменения до неё. */
+    private Snapshot apply(Snapshot current, List<Change> pending, long reached) {
+        if (pending.isEmpty()) {
+            return reached > current.version ? new Snapshot(reached, current.messages, current.size) : current;
+        }
+
+        Message[] next = Arrays.copyOf(current.messages, current.size + pending.size());
+        int size = current.size;
+        for (Change change : pending) {
+            Integer index = publishedIndex.get(change.author);
+            if (index != null && next[index].version > change.version) {
+                continue;
+            }
+
+            if (change.message != null) {
+                if (index != null) {
+                    next[index] = change.message;
+                } else {
+                    publishedIndex.put(change.author, size);
+                    next[size++] = change.message;
+                }
+            } else if (index != null) {
+                size -= 1;
+                publishedIndex.remove(change.author);
+                if (index != size) {
+                    next[index] = next[size];
+                    publishedIndex.put(next[index].author, index);
+                }
+                next[size] = null;
+            }
+        }
+
+        return new Snapshot(reached, next, size);
+    }
+
+    private Snapshot rebuild(long target) {
+        // дожидаемся писателей, которые получили версию, но ещё не дописали
+        // изменение, чтобы снимок точно отражал всё до target
+        for (long v = Math.max(1, target - CHANGES_CAPACITY + 1); v <= target; v++) {
+            Change change;
+            while ((change = changes.get(slot(v))) == null || change.version < v) {
+                Thread.onSpinWait();
+            }
+        }
+
+        Message[] next = messages.messages();
+        publishedIndex.clear();
+        for (int i = 0; i < next.length; i++) {
+            publishedIndex.put(next[i].author, i);
+        }
+        return new Snapshot(target, next, next.length);
     }
 }
@@ -0,0 +1,44 @@
+package com.dhcs;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * Подписывается на доску сервера и показывает её так же, как консоль
+ * сервера: кадры рассылки применяются к локальной копии состояния.
+ * С ShardRouter показывает общую доску всех серверов кластера.
+ */
+public class AppWatcher extends UnicastRemoteObject implements IAppListener {
+    private static final long serialVersionUID = 1L;
+    private transient AppState board = new AppState();
+
+    protected AppWatcher() throws RemoteException {}
+
+    @Override
+    public void onUpdate(byte[] frame) throws RemoteException {
+        try {
+            BoardFrames.apply(frame, board);
+        } catch (IOException e) {
+            System.err.printf("AppWatcher.onUpdate: %s\n", e.toString());
+        }
+    }
+
+    public void start(IAppServer server) {
+        try {
+            server.subscribe(this);
+        } catch (RemoteException e) {
+            e.printStackTrace(System.err);
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.unsubscribe(this);
+            } catch (RemoteException e) {
+                e.printStackTrace(System.err);
+            }
+        }));
+        new AppMessagesDashboard(board).start();
+    }
+}
@@ -0,0 +1,174 @@
+package com.dhcs;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Асинхронный клиент сервера lab02: putMessage и removeAuthor сразу
+ * возвращают CompletableFuture, а вызовы выполняют poolSize потоков.
+ * Автор всегда попадает в один поток, поэтому его вызовы идут по порядку,
+ * а разные авторы не ждут друг друга. Заглушка одна на всех: транспорт RMI
+ * сам держит по соединению на каждый одновременный вызов и переиспользует
+ * их, так что poolSize ограничивает и число соединений.
+ *
+ * Сервер ищется в реестре один раз, и заглушка переиспользуется всеми
+ * вызовами. Вызов повторяется с экспоненциальной задержкой и случайным
+ * разбросом, только если он точно не дошёл до сервера (нет соединения,
+ * объект не найден): тогда заглушка могла устареть и перед повтором
+ * ищется заново.
+ */
+public class AsyncAppClient implements AutoCloseable {
+    /** Ищет сервер, например AppClient.connect. */
+    public interface Connector {
+        IAppServer connect() throws RemoteException, NotBoundException;
+    }
+
+    private interface Call {
+        void invoke(IAppServer server) throws RemoteException;
+    }
+
+    public static class Builder {
+        private final Connector connector;
+        private int poolSize = 4;
+        private int maxAttempts = 3;
+        private long baseDelayMillis = 50;
+        private long maxDelayMillis = 2000;
+
+        public Builder(Connector connector) {
+            this.connector = connector;
+        }
+
+        public Builder setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        /** maxAttempts - всего попыток, 1 - без повторов; задержка растёт от baseDelay до maxDelay. */
+        public Builder setRetries(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        public AsyncAppClient build() {
+            return new AsyncAppClient(connector, Math.max(1, poolSize), Math.max(1, maxAttempts), baseDelayMillis,
+                    maxDelayMillis);
+        }
+    }
+
+    private final Connector connector;
+    private final ExecutorService[] lanes;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    // null - ещё не найден или найден устаревший
+    private volatile IAppServer server;
+
+    private AsyncAppClient(Connector connector, int poolSize, int maxAttempts, long baseDelayMillis,
+            long maxDelayMillis) {
+        this.connector = connector;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.lanes = new ExecutorService[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(
+                    Thread.ofPlatform().daemon().name("AsyncAppClient-" + i).factory());
+        }
+    }
+
+    /** Находит сервер сразу, а не при первом вызове. Заглушку можно использовать и напрямую. */
+    public IAppServer connect() throws RemoteException, NotBoundException {
+        IAppServer current = server;
+        return current != null ? current : lookup();
+    }
+
+    public CompletableFuture<Void> putMessage(String author, String message) {
+        return submit(author, server -> server.putMessage(author, message));
+    }
+
+    public CompletableFuture<Void> removeAuthor(String author) {
+        return submit(author, server -> server.removeAuthor(author));
+    }
+
+    private CompletableFuture<Void> submit(String author, Call call) {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        int h = author.hashCode();
+        ExecutorService lane = lanes[Math.floorMod(h ^ (h >>> 16), lanes.length)];
+        try {
+            lane.execute(() -> {
+                try {
+                    invoke(call);
+                    result.complete(null);
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void invoke(Call call) throws RemoteException, NotBoundException, InterruptedException {
+        for (int attempt = 1;; attempt++) {
+            IAppServer current = server;
+            try {
+                if (current == null) {
+                    current = lookup();
+                }
+                call.invoke(current);
+                return;
+            } catch (NoSuchObjectException | ConnectException | ConnectIOException e) {
+                // сервер мог перезапуститься на другом порту, тогда старая
+                // заглушка больше не действует
+                forget(current);
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+            }
+            backoff(attempt);
+        }
+    }
+
+    private synchronized IAppServer lookup() throws RemoteException, NotBoundException {
+        if (server == null) {
+            server = connector.connect();
+        }
+        return server;
+    }
+
+    private synchronized void forget(IAppServer stale) {
+        if (server == stale) {
+            server = null;
+        }
+    }
+
+    /** Полный случайный разброс: от 0 до baseDelay * 2^(attempt-1), не больше maxDelay. */
+    private void backoff(int attempt) throws InterruptedException {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        if (ceiling > 0) {
+            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        }
+    }
+
+    /** Дожидается отправки всего поставленного и останавливает потоки. */
+    @Override
+    public void close() throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.dhcs;
+
+import java.io.Serializable;
+
+/** Сообщение автора для пакетной отправки через IAppServer.putMessages. */
+public class AuthorMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String author;
+    private final String text;
+
+    public AuthorMessage(String author, String text) {
+        this.author = author;
+        this.text = text;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,119 @@
+package com.dhcs;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Выполняет изменения состояния вне потока RMI на виртуальных потоках.
+ * Задачи одного автора попадают в одну очередь и выполняются строго по
+ * порядку, чтобы removeAuthor не обогнал предыдущий putMessage. Задача
+ * нескольких авторов встаёт в очереди всех их авторов и выполняется,
+ * когда дойдёт до головы каждой из них.
+ */
+public class AuthorOrderedExecutor {
+    private static final int LANES_COUNT = 1024;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Lane[] lanes = new Lane[LANES_COUNT];
+    // задачи нескольких авторов встают в очереди в одном порядке, иначе две
+    // такие задачи могли бы ждать друг друга в разных очередях
+    private final Object spanLock = new Object();
+
+    private class Lane implements Runnable {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+            scheduled.set(false);
+            // задача могла прийти между poll и сбросом флага
+            schedule();
+        }
+    }
+
+    public AuthorOrderedExecutor() {
+        for (int i = 0; i < LANES_COUNT; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    public void execute(String author, Runnable task) {
+        lanes[lane(author)].execute(task);
+    }
+
+    /**
+     * Выполняет task после всех уже поставленных задач каждого из authors
+     * и до всех следующих. Очередь, дошедшая до задачи первой, ждёт
+     * остальные, задачу выполняет последняя.
+     */
+    public void execute(Collection<String> authors, Runnable task) {
+        BitSet spanned = new BitSet(LANES_COUNT);
+        for (String author : authors) {
+            spanned.set(lane(author));
+        }
+        if (spanned.cardinality() <= 1) {
+            lanes[Math.max(spanned.nextSetBit(0), 0)].execute(task);
+            return;
+        }
+
+        AtomicInteger waiting = new AtomicInteger(spanned.cardinality());
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable gate = () -> {
+            if (waiting.decrementAndGet() == 0) {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        synchronized (spanLock) {
+            for (int i = spanned.nextSetBit(0); i >= 0; i = spanned.nextSetBit(i + 1)) {
+                lanes[i].execute(gate);
+            }
+        }
+    }
+
+    private static int lane(String author) {
+        int h = author.hashCode();
+        return (h ^ (h >>> 16)) & (LANES_COUNT - 1);
+    }
+}
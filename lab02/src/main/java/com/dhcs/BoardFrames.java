@@ -0,0 +1,128 @@
+package com.dhcs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Кадры рассылки доски подписчикам: последовательность записей
+ * [тип u8][длина автора int32][автор]([длина текста int32][текст][возраст int64]).
+ * Возраст - число тактов источника с записи сообщения, получатель
+ * отсчитывает его от своего такта. RESET очищает доску, за ним идёт доска
+ * целиком. Строки в UTF-8.
+ */
+public class BoardFrames {
+    static final byte PUT_MESSAGE = 1;
+    static final byte REMOVE_AUTHOR = 2;
+    static final byte RESET = 4;
+
+    /** updates: автор -> сообщение, null - автор удалён; tick - текущий такт источника. */
+    public static byte[] encode(Map<String, AppState.Message> updates, boolean reset, long tick) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (reset) {
+                out.writeByte(RESET);
+            }
+            for (Map.Entry<String, AppState.Message> entry : updates.entrySet()) {
+                if (entry.getValue() != null) {
+                    out.writeByte(PUT_MESSAGE);
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue().toString());
+                    out.writeLong(entry.getValue().getLifeTime(tick));
+                } else {
+                    out.writeByte(REMOVE_AUTHOR);
+                    writeString(out, entry.getKey());
+                }
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream не бросает IOException
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Применяет кадр к локальной копии доски. */
+    public static void apply(byte[] frame, AppState board) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            switch (type) {
+                case PUT_MESSAGE:
+                    String author = readString(in);
+                    String text = readString(in);
+                    board.restore(author, text, Math.max(0, board.getTick() - in.readLong()));
+                    break;
+                case REMOVE_AUTHOR:
+                    board.removeAuthor(readString(in));
+                    break;
+                case RESET:
+                    AppState.Snapshot snapshot = board.getSnapshot();
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        board.removeAuthor(snapshot.get(i).getAuthor());
+                    }
+                    break;
+                default:
+                    throw new IOException("unknown record type: " + type);
+            }
+        }
+    }
+
+    /**
+     * Переписывает кадр одного из нескольких источников общей доски: RESET
+     * заменяется удалением авторов, пришедших раньше из этого источника,
+     * чтобы не стереть авторов остальных. owned - авторы источника, кадр
+     * обновляет этот набор.
+     */
+    public static byte[] scope(byte[] frame, Set<String> owned) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            switch (type) {
+                case PUT_MESSAGE:
+                    String author = readString(in);
+                    owned.add(author);
+                    out.writeByte(PUT_MESSAGE);
+                    writeString(out, author);
+                    writeString(out, readString(in));
+                    out.writeLong(in.readLong());
+                    break;
+                case REMOVE_AUTHOR:
+                    String removed = readString(in);
+                    owned.remove(removed);
+                    out.writeByte(REMOVE_AUTHOR);
+                    writeString(out, removed);
+                    break;
+                case RESET:
+                    for (String old : owned) {
+                        out.writeByte(REMOVE_AUTHOR);
+                        writeString(out, old);
+                    }
+                    owned.clear();
+                    break;
+                default:
+                    throw new IOException("unknown record type: " + type);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,171 @@
+package com.dhcs;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Раз в такт рассылает подписчикам изменения доски. Изменения за такт
+ * схлопываются до последнего на автора и кодируются один раз: всем
+ * подписчикам уходит один и тот же массив байтов. Каждый подписчик
+ * получает кадры в своём виртуальном потоке, поэтому медленный вызов
+ * onUpdate не задерживает остальных.
+ */
+public class Broadcaster extends Thread {
+    private static final long PERIOD_MILLIS = 125;
+
+    private final AppState appState;
+    private final ConcurrentHashMap<IAppListener, Subscriber> subscribers = new ConcurrentHashMap<IAppListener, Subscriber>();
+    // копия доски на версии version, из неё собираются полные кадры
+    private final LinkedHashMap<String, AppState.Message> board = new LinkedHashMap<String, AppState.Message>();
+    private long version = 0;
+
+    /**
+     * Почтовый ящик подписчика. Если подписчик не успевает и ящик
+     * переполнен, накопленные кадры выбрасываются, а следующим кадром он
+     * получит доску целиком.
+     */
+    private class Subscriber implements Runnable {
+        private static final int MAX_PENDING = 8;
+
+        private final IAppListener listener;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        private boolean resync = true;
+        private boolean closed = false;
+
+        Subscriber(IAppListener listener) {
+            this.listener = listener;
+        }
+
+        synchronized boolean needsSnapshot() {
+            return resync;
+        }
+
+        /** snapshot - кадр с доской целиком, он заменяет всё неотправленное. */
+        synchronized void offer(byte[] frame, boolean snapshot) {
+            if (closed) {
+                return;
+            }
+            if (snapshot) {
+                pending.clear();
+                resync = false;
+            } else if (pending.size() >= MAX_PENDING) {
+                pending.clear();
+                resync = true;
+                return;
+            }
+            pending.add(frame);
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            pending.clear();
+            notifyAll();
+        }
+
+        private synchronized byte[] take() throws InterruptedException {
+            while (pending.isEmpty() && !closed) {
+                wait();
+            }
+            return pending.poll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] frame;
+                while ((frame = take()) != null) {
+                    listener.onUpdate(frame);
+                }
+            } catch (RemoteException e) {
+                System.err.printf("Broadcaster.Subscriber: %s\n", e.toString());
+                unsubscribe(listener);
+            } catch (InterruptedException e) {
+                unsubscribe(listener);
+            }
+        }
+    }
+
+    public Broadcaster(AppState state) {
+        super("Broadcaster");
+        setDaemon(true);
+        appState = state;
+    }
+
+    public void subscribe(IAppListener listener) {
+        Subscriber subscriber = new Subscriber(listener);
+        Subscriber previous = subscribers.put(listener, subscriber);
+        if (previous != null) {
+            previous.close();
+        }
+        Thread.ofVirtual().name("Subscriber").start(subscriber);
+    }
+
+    public void unsubscribe(IAppListener listener) {
+        Subscriber subscriber = subscribers.remove(listener);
+        if (subscriber != null) {
+            subscriber.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                sleep(PERIOD_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            broadcast();
+        }
+    }
+
+    private void broadcast() {
+        boolean reset = false;
+        // null - автор удалён
+        LinkedHashMap<String, AppState.Message> updates = new LinkedHashMap<String, AppState.Message>();
+        AppState.Delta delta = appState.getChangesSince(version);
+        if (delta != null) {
+            for (AppState.Change change : delta.getChanges()) {
+                AppState.Message current = board.get(change.getAuthor());
+                if (current != null && current.getVersion() > change.getVersion()) {
+                    continue;
+                }
+                if (change.getMessage() != null) {
+                    board.put(change.getAuthor(), change.getMessage());
+                } else {
+                    board.remove(change.getAuthor());
+                }
+                updates.put(change.getAuthor(), change.getMessage());
+            }
+            version = delta.getToVersion();
+        } else {
+            AppState.Snapshot snapshot = appState.getSnapshot();
+            board.clear();
+            for (int i = 0; i < snapshot.size(); i++) {
+                board.put(snapshot.get(i).getAuthor(), snapshot.get(i));
+            }
+            version = snapshot.getVersion();
+            reset = true;
+        }
+
+        long tick = appState.getTick();
+        byte[] deltaFrame = null;
+        byte[] snapshotFrame = null;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (reset || subscriber.needsSnapshot()) {
+                if (snapshotFrame == null) {
+                    snapshotFrame = BoardFrames.encode(board, true, tick);
+                }
+                subscriber.offer(snapshotFrame, true);
+            } else if (!updates.isEmpty()) {
+                if (deltaFrame == null) {
+                    deltaFrame = BoardFrames.encode(updates, false, tick);
+                }
+                subscriber.offer(deltaFrame, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.dhcs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Кольцо согласованного хеширования: каждый узел занимает virtualNodes
+ * точек на кольце, ключ достаётся первому узлу по часовой стрелке от
+ * своего хеша. При добавлении или удалении узла переезжает примерно
+ * 1/N ключей. Кольцо зависит только от набора имён узлов, поэтому все
+ * клиенты с одним списком узлов раскладывают авторов одинаково.
+ */
+public class ConsistentHashRing {
+    static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    public ConsistentHashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("no nodes");
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /** FNV-1a по UTF-8 с перемешиванием из MurmurHash3, чтобы точки легли равномерно. */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
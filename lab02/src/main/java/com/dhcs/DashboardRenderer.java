@@ -0,0 +1,340 @@
+package com.dhcs;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Рисует доску в терминале инкрементально. Предыдущий кадр хранится в
+ * сетке символов, и на каждом кадре выводятся только изменившиеся строки
+ * с позиционированием курсора. Кадр собирается в один массив байтов и
+ * пишется одним вызовом, поэтому его стоимость зависит от числа изменений,
+ * а не от числа авторов.
+ */
+public class DashboardRenderer {
+    private static final String HEADER = "+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  --|==1line==chat====>-  +";
+    private static final String NO_CLIENTS = "+                                 NO CLIENTS                                  +";
+    private static final String FOOTER = "+  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  -  +";
+    private static final String GREEN = "\033[32m";
+    private static final String RESET = "\033[0m";
+
+    private static final int AUTHOR_WIDTH = 10;
+    private static final int MESSAGE_WIDTH = 61;
+    private static final int ROW_CAPACITY = 128;
+    // возраст, на котором меняется вид строки (см. renderRow)
+    private static final int[] AGE_THRESHOLDS = { 1, 2, 24 };
+    // колесо тактов: должно быть больше самого дальнего порога
+    private static final int WHEEL_SIZE = 32;
+
+    private final PrintStream out;
+    private final CharsetEncoder encoder;
+
+    private final HashMap<String, Integer> rows = new HashMap<String, Integer>();
+    private String[] authors = new String[16];
+    private AppState.Message[] messages = new AppState.Message[16];
+    private char[][] grid = new char[16][];
+    private int[] gridLength = new int[16];
+    private boolean[] dirty = new boolean[16];
+    private int[] dirtyRows = new int[16];
+    private int dirtyCount = 0;
+    private int rowsCount = 0;
+    private int shownRowsCount = -1;
+
+    /** Такт, на котором строку сообщения нужно перерисовать. */
+    private static class Due {
+        final long tick;
+        final AppState.Message message;
+
+        Due(long tick, AppState.Message message) {
+            this.tick = tick;
+            this.message = message;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayList<Due>[] wheel = new ArrayList[WHEEL_SIZE];
+    private long renderedTick = -1;
+    private long version = 0;
+    private boolean fullRedraw = true;
+
+    private final char[] scratch = new char[ROW_CAPACITY];
+    private char[] frame = new char[4096];
+    private int frameLength = 0;
+    private ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+    private long lastFrameNanos = 0;
+    private long maxFrameNanos = 0;
+
+    public DashboardRenderer(PrintStream out) {
+        this.out = out;
+        this.encoder = out.charset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayList<Due>();
+        }
+    }
+
+    /** Версия состояния, до которой применены изменения. */
+    public long getVersion() {
+        return version;
+    }
+
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    public long getMaxFrameNanos() {
+        return maxFrameNanos;
+    }
+
+    /**
+     * Заменяет всё содержимое доски снимком и перерисовывает экран целиком.
+     * tick - такт, на котором снимок будет выведен.
+     */
+    public void reset(long tick, AppState.Snapshot snapshot) {
+        rows.clear();
+        for (ArrayList<Due> due : wheel) {
+            due.clear();
+        }
+        // строки и так перерисуются целиком, в колесо идут только будущие такты
+        renderedTick = tick;
+        Arrays.fill(authors, 0, rowsCount, null);
+        Arrays.fill(messages, 0, rowsCount, null);
+        rowsCount = 0;
+        dirtyCount = 0;
+        Arrays.fill(dirty, false);
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            AppState.Message message = snapshot.get(i);
+            setRow(appendRow(message.getAuthor()), message);
+        }
+        version = snapshot.getVersion();
+        fullRedraw = true;
+    }
+
+    public void apply(AppState.Delta delta) {
+        for (AppState.Change change : delta.getChanges()) {
+            Integer row = rows.get(change.getAuthor());
+            if (row != null && messages[row].getVersion() > change.getVersion()) {
+                continue;
+            }
+
+            if (change.getMessage() != null) {
+                setRow(row != null ? row : appendRow(change.getAuthor()), change.getMessage());
+            } else if (row != null) {
+                removeRow(row);
+            }
+        }
+        version = Math.max(version, delta.getToVersion());
+    }
+
+    /** Выводит кадр для такта tick. */
+    public void render(long tick) {
+        long begin = System.nanoTime();
+
+        for (long t = Math.max(renderedTick + 1, tick - WHEEL_SIZE + 1); t <= tick; t++) {
+            ArrayList<Due> slot = wheel[(int) (t % WHEEL_SIZE)];
+            // в ячейке лежат и такты на оборот колеса позже, они остаются
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                Due due = slot.get(i);
+                if (due.tick > tick) {
+                    slot.set(kept++, due);
+                    continue;
+                }
+                Integer row = rows.get(due.message.getAuthor());
+                if (row != null && messages[row] == due.message) {
+                    markDirty(row);
+                }
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+        renderedTick = tick;
+
+        frameLength = 0;
+        if (fullRedraw) {
+            append("\033[H\033[2J");
+            append(HEADER);
+            append('\n');
+        }
+
+        for (int i = 0; i < dirtyCount; i++) {
+            int row = dirtyRows[i];
+            dirty[row] = false;
+            if (row >= rowsCount) {
+                continue;
+            }
+
+            int length = renderRow(authors[row], messages[row], tick, scratch);
+            if (!fullRedraw && length == gridLength[row] && Arrays.equals(scratch, 0, length, grid[row], 0, length)) {
+                continue;
+            }
+            System.arraycopy(scratch, 0, grid[row], 0, length);
+            gridLength[row] = length;
+            moveTo(row + 2);
+            append(grid[row], length);
+        }
+        dirtyCount = 0;
+
+        int footerLine = Math.max(rowsCount, 1) + 2;
+        if (fullRedraw || rowsCount != shownRowsCount) {
+            if (rowsCount == 0) {
+                moveTo(2);
+                append(NO_CLIENTS);
+            }
+            moveTo(footerLine);
+            append(FOOTER);
+            append("\n\033[J");
+            shownRowsCount = rowsCount;
+        }
+
+        moveTo(footerLine + 1);
+        append("frame: ");
+        append(Long.toString(lastFrameNanos / 1000));
+        append(" us\033[K\n");
+        flush();
+
+        fullRedraw = false;
+        lastFrameNanos = System.nanoTime() - begin;
+        maxFrameNanos = Math.max(maxFrameNanos, lastFrameNanos);
+    }
+
+    private int appendRow(String author) {
+        if (rowsCount == authors.length) {
+            int capacity = rowsCount * 2;
+            authors = Arrays.copyOf(authors, capacity);
+            messages = Arrays.copyOf(messages, capacity);
+            grid = Arrays.copyOf(grid, capacity);
+            gridLength = Arrays.copyOf(gridLength, capacity);
+            dirty = Arrays.copyOf(dirty, capacity);
+            dirtyRows = Arrays.copyOf(dirtyRows, capacity);
+        }
+        if (grid[rowsCount] == null) {
+            grid[rowsCount] = new char[ROW_CAPACITY];
+        }
+
+        int row = rowsCount++;
+        authors[row] = author;
+        gridLength[row] = 0;
+        rows.put(author, row);
+        return row;
+    }
+
+    private void setRow(int row, AppState.Message message) {
+        messages[row] = message;
+        markDirty(row);
+        for (int threshold : AGE_THRESHOLDS) {
+            long due = message.getEpoch() + threshold;
+            if (due > renderedTick) {
+                wheel[(int) (due % WHEEL_SIZE)].add(new Due(due, message));
+            }
+        }
+    }
+
+    /** На место удалённой строки переносится последняя. */
+    private void removeRow(int row) {
+        rows.remove(authors[row]);
+        int last = --rowsCount;
+        if (row != last) {
+            authors[row] = authors[last];
+            messages[row] = messages[last];
+            rows.put(authors[row], row);
+            markDirty(row);
+        }
+        authors[last] = null;
+        messages[last] = null;
+    }
+
+    private void markDirty(int row) {
+        if (!dirty[row]) {
+            dirty[row] = true;
+            dirtyRows[dirtyCount++] = row;
+        }
+    }
+
+    private static int renderRow(String author, AppState.Message message, long tick, char[] row) {
+        int length = 0;
+        length = put(row, length, "+ [");
+        length = putPadded(row, length, author, AUTHOR_WIDTH);
+        length = put(row, length, "]: ");
+
+        int lifeTime = message.getLifeTime(tick);
+        int rest = MESSAGE_WIDTH;
+        if (lifeTime < 1) {
+            length = putPadded(row, length, "", 8);
+            rest -= 8;
+        } else if (lifeTime < 2) {
+            length = putPadded(row, length, "", 2);
+            rest -= 2;
+        }
+        // свежие сообщения зелёные, остальные цветом терминала
+        if (lifeTime < 24) {
+            length = put(row, length, GREEN);
+        }
+        length = putPadded(row, length, message.toString(), rest);
+        length = put(row, length, RESET);
+        length = put(row, length, " |");
+        return length;
+    }
+
+    private static int put(char[] row, int length, String s) {
+        s.getChars(0, s.length(), row, length);
+        return length + s.length();
+    }
+
+    private static int putPadded(char[] row, int length, String s, int width) {
+        int n = Math.min(s.length(), width);
+        s.getChars(0, n, row, length);
+        Arrays.fill(row, length + n, length + width, ' ');
+        return length + width;
+    }
+
+    private void moveTo(int line) {
+        append("\033[");
+        append(Integer.toString(line));
+        append(";1H");
+    }
+
+    private void append(String s) {
+        ensureFrameCapacity(s.length());
+        s.getChars(0, s.length(), frame, frameLength);
+        frameLength += s.length();
+    }
+
+    private void append(char c) {
+        ensureFrameCapacity(1);
+        frame[frameLength++] = c;
+    }
+
+    private void append(char[] chars, int length) {
+        ensureFrameCapacity(length);
+        System.arraycopy(chars, 0, frame, frameLength, length);
+        frameLength += length;
+    }
+
+    private void ensureFrameCapacity(int extra) {
+        if (frameLength + extra > frame.length) {
+            frame = Arrays.copyOf(frame, Math.max(frame.length * 2, frameLength + extra));
+        }
+    }
+
+    private void flush() {
+        int capacity = (int) Math.ceil(frameLength * (double) encoder.maxBytesPerChar());
+        if (bytes.capacity() < capacity) {
+            bytes = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, capacity));
+        }
+
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(frame, 0, frameLength), bytes, true);
+        encoder.flush(bytes);
+        out.write(bytes.array(), 0, bytes.position());
+        out.flush();
+    }
+}
@@ -0,0 +1,18 @@
+package com.dhcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Вывод доски AppMessagesDashboard. Методы вызываются по очереди из его
+ * потока вывода, а не из потока тактов, поэтому медленный вывод только
+ * пропускает кадры. После любого исключения, не только IOException,
+ * следующим кадром придёт snapshot.
+ */
+public interface DashboardSink extends Closeable {
+    /** Доска целиком на такте tick: первый кадр, после отставания и после ошибки вывода. */
+    void snapshot(long tick, AppState.Snapshot snapshot) throws IOException;
+
+    /** Изменения с прошлого кадра, delta может быть пустой: кадр такта tick. */
+    void delta(long tick, AppState.Delta delta) throws IOException;
+}
@@ -0,0 +1,42 @@
+package com.dhcs;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Сообщения целиком в куче, по объекту на автора. */
+public class HeapMessageStore implements MessageStore {
+    private final ConcurrentHashMap<String, AppState.Message> messages =
+            new ConcurrentHashMap<String, AppState.Message>();
+
+    @Override
+    public void put(AppState.Message message) {
+        messages.merge(message.getAuthor(), message,
+                (old, current) -> old.getVersion() > current.getVersion() ? old : current);
+    }
+
+    @Override
+    public void remove(String author, long version) {
+        messages.computeIfPresent(author, (key, old) -> old.getVersion() > version ? old : null);
+    }
+
+    @Override
+    public boolean expire(String author, long version) {
+        AppState.Message current = messages.get(author);
+        return current != null && current.getVersion() == version && messages.remove(author, current);
+    }
+
+    @Override
+    public long getVersion(String author) {
+        AppState.Message current = messages.get(author);
+        return current != null ? current.getVersion() : 0;
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public AppState.Message[] messages() {
+        return messages.values().toArray(new AppState.Message[0]);
+    }
+}
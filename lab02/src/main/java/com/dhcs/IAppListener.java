@@ -0,0 +1,9 @@
+package com.dhcs;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/** Подписчик на доску. Кадры закодированы BoardFrames. */
+public interface IAppListener extends Remote {
+    public void onUpdate(byte[] frame) throws RemoteException;
+}
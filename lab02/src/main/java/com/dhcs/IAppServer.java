@@ -2,8 +2,23 @@ package com.dhcs;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface IAppServer extends Remote {
     public void putMessage(String author, String message) throws RemoteException;
+    public void putMessages(List<AuthorMessage> messages) throws RemoteException;
     public void removeAuthor(String author) throws RemoteException;
+
+    /** Раз в такт присылать listener изменения доски, первым кадром - доску целиком. */
+    public void subscribe(IAppListener listener) throws RemoteException;
+    public void unsubscribe(IAppListener listener) throws RemoteException;
+
+    /** Последние limit сообщений автора, от старых к новым. Пусто, если история выключена. */
+    public List<MessageHistory.Entry> getHistory(String author, int limit) throws RemoteException;
+
+    /** Последние limit сообщений доски, от старых к новым. */
+    public List<MessageHistory.Entry> getRecentMessages(int limit) throws RemoteException;
+
+    /** До limit сообщений с номерами больше sequence, см. MessageHistory.since. */
+    public List<MessageHistory.Entry> getMessagesSince(long sequence, int limit) throws RemoteException;
 }
@@ -0,0 +1,14 @@
+package com.dhcs;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/** Источник изменений доски для реплик, реализуется AppServer. */
+public interface IReplicationSource extends Remote {
+    /**
+     * Изменения после версии since запуска runId, по одному последнему на
+     * автора. Если runId не совпадает с текущим запуском или изменения уже
+     * вытеснены из журнала, возвращает доску целиком с признаком reset.
+     */
+    public ReplicationBatch fetchChanges(String runId, long since) throws RemoteException;
+}
@@ -0,0 +1,94 @@
+package com.dhcs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Гистограмма длительностей с фиксированными корзинами: на каждую степень
+ * двойки приходится 8 корзин, поэтому процентили получаются с точностью до
+ * 12.5%. Запись - один атомарный инкремент без выделения памяти.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        max.accumulate(value);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent << SUB_BUCKET_BITS) | (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /** Наибольшее значение, попадающее в корзину index. */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - SUB_BUCKET_BITS;
+        long lower = (long) (SUB_BUCKETS | (index & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /** Значение, не меньше которого percent процентов записей, в наносекундах. */
+    public long getPercentile(double percent) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public double getP50Micros() {
+        return getPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return getPercentile(99.9) / 1e3;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return max.get() / 1e3;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                getCount(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+    }
+}
@@ -0,0 +1,14 @@
+package com.dhcs;
+
+/** Длительности одной операции, в микросекундах. */
+public interface LatencyHistogramMXBean {
+    long getCount();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,94 @@
+package com.dhcs;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Копит сообщения клиента и отправляет их пакетами через
+ * IAppServer.putMessages. Пакет уходит, когда в нём набралось maxBatch
+ * сообщений или с момента первого сообщения прошло maxDelayMillis.
+ */
+public class MessageCoalescer extends Thread {
+    private static final AuthorMessage CLOSE = new AuthorMessage(null, null);
+
+    private final IAppServer server;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final LinkedBlockingQueue<AuthorMessage> queue = new LinkedBlockingQueue<AuthorMessage>();
+    private final ArrayList<AuthorMessage> batch;
+
+    public MessageCoalescer(IAppServer server, int maxBatch, long maxDelayMillis) {
+        super("MessageCoalescer");
+        setDaemon(true);
+        this.server = server;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.batch = new ArrayList<AuthorMessage>(maxBatch);
+    }
+
+    public void putMessage(String author, String message) {
+        queue.add(new AuthorMessage(author, message));
+    }
+
+    /** Отправляет всё накопленное и останавливает поток. */
+    public void close() throws InterruptedException {
+        queue.add(CLOSE);
+        join();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            AuthorMessage first;
+            try {
+                first = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == CLOSE) {
+                return;
+            }
+
+            batch.add(first);
+            boolean closed = false;
+            long deadline = System.nanoTime() + maxDelayNanos;
+            while (batch.size() < maxBatch) {
+                AuthorMessage next;
+                try {
+                    next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (next == null) {
+                    break;
+                }
+                if (next == CLOSE) {
+                    closed = true;
+                    break;
+                }
+                batch.add(next);
+            }
+
+            send();
+            if (closed) {
+                return;
+            }
+        }
+    }
+
+    private void send() {
+        try {
+            if (batch.size() == 1) {
+                AuthorMessage m = batch.get(0);
+                server.putMessage(m.getAuthor(), m.getText());
+            } else {
+                server.putMessages(batch);
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace(System.err);
+        }
+        batch.clear();
+    }
+}
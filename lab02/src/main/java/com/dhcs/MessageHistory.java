@@ -0,0 +1,178 @@
+package com.dhcs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * История сообщений доски: общее кольцо последних capacity сообщений в
+ * порядке записи и кольцо последних depth сообщений каждого автора.
+ * Каждое сообщение получает номер, на единицу больше предыдущего, и по
+ * номеру можно дочитать всё, что записано после него. Кольца выделяются
+ * заранее: общее при создании, кольцо автора при его первом сообщении.
+ * Запросы не копируют доску и не берут общих замков: общее кольцо читается
+ * без замков, кольцо автора - под замком этого автора.
+ */
+public class MessageHistory {
+    /**
+     * Сообщение истории: номер, такт записи, время записи по часам сервера
+     * в миллисекундах, автор и текст. Номер и такт у каждого сервера свои,
+     * сообщения разных серверов сравниваются по времени.
+     */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 2L;
+        private final long sequence;
+        private final long epoch;
+        private final long timestamp;
+        private final String author;
+        private final String text;
+
+        Entry(long sequence, long epoch, long timestamp, String author, String text) {
+            this.sequence = sequence;
+            this.epoch = epoch;
+            this.timestamp = timestamp;
+            this.author = author;
+            this.text = text;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static class AuthorRing {
+        final Entry[] entries;
+        // сколько сообщений автор записал всего
+        long count = 0;
+
+        AuthorRing(int depth) {
+            entries = new Entry[depth];
+        }
+    }
+
+    private final int capacity;
+    private final int depth;
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicReferenceArray<Entry> ring;
+    private final ConcurrentHashMap<String, AuthorRing> authors = new ConcurrentHashMap<String, AuthorRing>();
+
+    /** capacity - степень двойки. */
+    public MessageHistory(int capacity, int depth) {
+        if (Integer.bitCount(capacity) != 1 || depth < 1) {
+            throw new IllegalArgumentException("capacity must be a power of two and depth positive");
+        }
+        this.capacity = capacity;
+        this.depth = depth;
+        this.ring = new AtomicReferenceArray<Entry>(capacity);
+    }
+
+    public void add(String author, String text, long epoch) {
+        AuthorRing own = authors.computeIfAbsent(author, key -> new AuthorRing(depth));
+        Entry entry;
+        // номер выдаётся под замком автора, чтобы его сообщения шли по порядку
+        synchronized (own) {
+            entry = new Entry(sequence.incrementAndGet(), epoch, System.currentTimeMillis(), author, text);
+            own.entries[(int) (own.count++ % depth)] = entry;
+        }
+
+        // как AppState.record: опоздавший писатель не затирает более новое
+        int s = slot(entry.sequence);
+        Entry current;
+        do {
+            current = ring.get(s);
+            if (current != null && current.sequence > entry.sequence) {
+                return;
+            }
+        } while (!ring.compareAndSet(s, current, entry));
+    }
+
+    /** Забывает историю автора. В общем кольце его сообщения остаются, пока их не вытеснят. */
+    public void remove(String author) {
+        authors.remove(author);
+    }
+
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /** Последние limit сообщений автора, от старых к новым. */
+    public List<Entry> ofAuthor(String author, int limit) {
+        AuthorRing own = authors.get(author);
+        if (own == null || limit <= 0) {
+            return new ArrayList<Entry>();
+        }
+        synchronized (own) {
+            int n = (int) Math.min(limit, Math.min(own.count, depth));
+            ArrayList<Entry> result = new ArrayList<Entry>(n);
+            for (long i = own.count - n; i < own.count; i++) {
+                result.add(own.entries[(int) (i % depth)]);
+            }
+            return result;
+        }
+    }
+
+    /** Последние limit сообщений всех авторов, от старых к новым. */
+    public List<Entry> recent(int limit) {
+        long top = sequence.get();
+        ArrayList<Entry> result = new ArrayList<Entry>(Math.max(0, Math.min(limit, capacity)));
+        for (long s = top; s > 0 && s > top - capacity && result.size() < limit; s--) {
+            Entry entry = ring.get(slot(s));
+            if (entry == null || entry.sequence < s) {
+                // писатель ещё не дописал сообщение
+                continue;
+            }
+            if (entry.sequence > s) {
+                // дальше только затёртые
+                break;
+            }
+            result.add(entry);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * До limit сообщений с номерами больше since по порядку. Если часть из
+     * них уже вытеснена, список начинается с самого старого сохранившегося,
+     * и первый номер больше since + 1. Ответ обрывается на сообщении, которое
+     * ещё дописывается: следующий запрос продолжит с последнего номера.
+     */
+    public List<Entry> since(long since, int limit) {
+        long top = sequence.get();
+        ArrayList<Entry> result = new ArrayList<Entry>(Math.max(0, Math.min(limit, capacity)));
+        for (long s = Math.max(since, top - capacity) + 1; s <= top && result.size() < limit; s++) {
+            Entry entry = ring.get(slot(s));
+            if (entry == null || entry.sequence < s) {
+                break;
+            }
+            if (entry.sequence == s) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private int slot(long s) {
+        return (int) (s & (capacity - 1));
+    }
+}
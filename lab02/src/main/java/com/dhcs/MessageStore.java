@@ -0,0 +1,32 @@
+package com.dhcs;
+
+/**
+ * Текущие сообщения авторов внутри AppState. Реализации потокобезопасны:
+ * при гонке записей одного автора остаётся запись с большей версией.
+ */
+public interface MessageStore {
+    /** Записывает сообщение, если у автора нет более нового. */
+    void put(AppState.Message message);
+
+    /**
+     * Бросает IllegalStateException, если сообщение заведомо не
+     * поместится. Вызывается до выдачи версии и записи в журнал, чтобы
+     * put не падал на записи, которая уже есть в журнале.
+     */
+    default void check(String author, String text) {
+    }
+
+    /** Удаляет автора, если его сообщение старше version. */
+    void remove(String author, long version);
+
+    /** Удаляет автора, если его сообщение всё ещё с версией version. */
+    boolean expire(String author, long version);
+
+    /** Версия текущего сообщения автора, 0 - автора нет. */
+    long getVersion(String author);
+
+    int size();
+
+    /** Все сообщения для пересборки снимка, порядок не определён. */
+    AppState.Message[] messages();
+}
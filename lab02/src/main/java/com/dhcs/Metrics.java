@@ -0,0 +1,141 @@
+package com.dhcs;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Метрики сервера. Счётчики и гистограммы пишутся без выделения памяти,
+ * читаются через JMX (com.dhcs:type=Metrics и com.dhcs:type=Latency) и
+ * MetricsReporter.
+ */
+public class Metrics implements MetricsMXBean {
+    private final AppState state;
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder skippedFrames = new LongAdder();
+    private final LinkedHashMap<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+
+    // ожидание publishLock при публикации снимка
+    private final LatencyHistogram lockWait = histogram("lockWait");
+    private final LatencyHistogram frameTime = histogram("frameTime");
+    private final LatencyHistogram putMessage = histogram("putMessage");
+    private final LatencyHistogram putMessages = histogram("putMessages");
+    private final LatencyHistogram removeAuthor = histogram("removeAuthor");
+    private final LatencyHistogram subscribe = histogram("subscribe");
+    private final LatencyHistogram unsubscribe = histogram("unsubscribe");
+    private final LatencyHistogram getHistory = histogram("getHistory");
+    private final LatencyHistogram getRecentMessages = histogram("getRecentMessages");
+    private final LatencyHistogram getMessagesSince = histogram("getMessagesSince");
+    private final LatencyHistogram fetchChanges = histogram("fetchChanges");
+
+    Metrics(AppState state) {
+        this.state = state;
+    }
+
+    private LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histograms.put(name, histogram);
+        return histogram;
+    }
+
+    void messagesWritten(int count) {
+        messages.add(count);
+    }
+
+    void authorEvicted() {
+        evicted.increment();
+    }
+
+    void frameSkipped() {
+        skippedFrames.increment();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public int getAuthors() {
+        return state.getAuthorsCount();
+    }
+
+    @Override
+    public long getEvictedAuthors() {
+        return evicted.sum();
+    }
+
+    @Override
+    public long getSkippedFrames() {
+        return skippedFrames.sum();
+    }
+
+    public LatencyHistogram getLockWait() {
+        return lockWait;
+    }
+
+    public LatencyHistogram getFrameTime() {
+        return frameTime;
+    }
+
+    public LatencyHistogram getPutMessage() {
+        return putMessage;
+    }
+
+    public LatencyHistogram getPutMessages() {
+        return putMessages;
+    }
+
+    public LatencyHistogram getRemoveAuthor() {
+        return removeAuthor;
+    }
+
+    public LatencyHistogram getSubscribe() {
+        return subscribe;
+    }
+
+    public LatencyHistogram getUnsubscribe() {
+        return unsubscribe;
+    }
+
+    public LatencyHistogram getGetHistory() {
+        return getHistory;
+    }
+
+    public LatencyHistogram getGetRecentMessages() {
+        return getRecentMessages;
+    }
+
+    public LatencyHistogram getGetMessagesSince() {
+        return getMessagesSince;
+    }
+
+    public LatencyHistogram getFetchChanges() {
+        return fetchChanges;
+    }
+
+    /** Все гистограммы по именам в порядке объявления. */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /** Регистрирует метрики в MBeanServer платформы. */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName("com.dhcs:type=Metrics"));
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                server.registerMBean(entry.getValue(), new ObjectName("com.dhcs:type=Latency,name=" + entry.getKey()));
+            }
+        } catch (JMException e) {
+            System.err.printf("Metrics.register: %s\n", e.toString());
+        }
+    }
+}
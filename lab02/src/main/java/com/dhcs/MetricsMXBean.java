@@ -0,0 +1,16 @@
+package com.dhcs;
+
+/** Счётчики сервера, доступные через JMX как com.dhcs:type=Metrics. */
+public interface MetricsMXBean {
+    /** Всего записано сообщений с запуска. */
+    long getMessages();
+
+    /** Авторов на доске сейчас. */
+    int getAuthors();
+
+    /** Авторов, удалённых по возрасту или числу с запуска. */
+    long getEvictedAuthors();
+
+    /** Тактов, кадр которых не выведен, потому что вывод доски не успевал. */
+    long getSkippedFrames();
+}
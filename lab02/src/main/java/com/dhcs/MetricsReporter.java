@@ -0,0 +1,46 @@
+package com.dhcs;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Map;
+
+/** Раз в intervalMillis дописывает строку со всеми метриками в out. */
+public class MetricsReporter extends Thread {
+    private final Metrics metrics;
+    private final PrintStream out;
+    private final long intervalMillis;
+
+    public MetricsReporter(Metrics metrics, PrintStream out, long intervalMillis) {
+        super("MetricsReporter");
+        setDaemon(true);
+        this.metrics = metrics;
+        this.out = out;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run() {
+        long lastMessages = metrics.getMessages();
+        long lastTime = System.nanoTime();
+        while (true) {
+            try {
+                sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            long messages = metrics.getMessages();
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%s messages=%d rate=%.0f/s authors=%d evicted=%d skippedFrames=%d",
+                    Instant.now(), messages, (messages - lastMessages) * 1e9 / (now - lastTime), metrics.getAuthors(),
+                    metrics.getEvictedAuthors(), metrics.getSkippedFrames()));
+            for (Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()) {
+                line.append(String.format(" %s[%s]", entry.getKey(), entry.getValue()));
+            }
+            out.println(line);
+            lastMessages = messages;
+            lastTime = now;
+        }
+    }
+}
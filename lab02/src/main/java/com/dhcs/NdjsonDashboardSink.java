@@ -0,0 +1,202 @@
+package com.dhcs;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Доска потоком NDJSON, одна строка JSON на кадр:
+ *   {"type":"snapshot","tick":T,"version":V,"messages":[{"author":A,"text":S,"epoch":E},...]}
+ *   {"type":"delta","tick":T,"version":V,"changes":[{"author":A,"text":S,"epoch":E},{"author":A,"removed":true},...]}
+ * Изменения идут в порядке версий, пустые дельты не пишутся. Поток
+ * открывается при первом кадре; после ошибки записи он закрывается и
+ * открывается заново при следующем кадре, который будет snapshot.
+ */
+public class NdjsonDashboardSink implements DashboardSink {
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /** Открывает поток, в который пишутся строки. */
+    public interface Opener {
+        OutputStream open() throws IOException;
+    }
+
+    private final Opener opener;
+    private final String target;
+    // null - не открыт
+    private Writer out;
+
+    public NdjsonDashboardSink(Opener opener, String target) {
+        this.opener = opener;
+        this.target = target;
+    }
+
+    /** Дописывает строки в конец файла. */
+    public static NdjsonDashboardSink toFile(Path path) {
+        return new NdjsonDashboardSink(() -> new FileOutputStream(path.toFile(), true), path.toString());
+    }
+
+    /** Пишет строки в TCP-соединение с host:port, например со сборщиком логов. */
+    public static NdjsonDashboardSink toSocket(String host, int port) {
+        return new NdjsonDashboardSink(() -> {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                socket.shutdownInput();
+                return socket.getOutputStream();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }, host + ":" + port);
+    }
+
+    @Override
+    public void snapshot(long tick, AppState.Snapshot snapshot) throws IOException {
+        Writer out = open();
+        try {
+            begin(out, "snapshot", tick, snapshot.getVersion());
+            out.write(",\"messages\":[");
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeMessage(out, snapshot.get(i).getAuthor(), snapshot.get(i));
+            }
+            end(out);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    @Override
+    public void delta(long tick, AppState.Delta delta) throws IOException {
+        if (delta.getChanges().isEmpty()) {
+            return;
+        }
+        Writer out = open();
+        try {
+            begin(out, "delta", tick, delta.getToVersion());
+            out.write(",\"changes\":[");
+            boolean first = true;
+            for (AppState.Change change : delta.getChanges()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                if (change.getMessage() != null) {
+                    writeMessage(out, change.getAuthor(), change.getMessage());
+                } else {
+                    out.write("{\"author\":");
+                    writeString(out, change.getAuthor());
+                    out.write(",\"removed\":true}");
+                }
+            }
+            end(out);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    private Writer open() throws IOException {
+        if (out == null) {
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(opener.open(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new IOException("cannot open " + target + ": " + e.getMessage(), e);
+            }
+        }
+        return out;
+    }
+
+    private static void begin(Writer out, String type, long tick, long version) throws IOException {
+        out.write("{\"type\":\"");
+        out.write(type);
+        out.write("\",\"tick\":");
+        out.write(Long.toString(tick));
+        out.write(",\"version\":");
+        out.write(Long.toString(version));
+    }
+
+    private static void end(Writer out) throws IOException {
+        out.write("]}\n");
+        out.flush();
+    }
+
+    private static void writeMessage(Writer out, String author, AppState.Message message) throws IOException {
+        out.write("{\"author\":");
+        writeString(out, author);
+        out.write(",\"text\":");
+        writeString(out, message.toString());
+        out.write(",\"epoch\":");
+        out.write(Long.toString(message.getEpoch()));
+        out.write('}');
+    }
+
+    /** Строка JSON: кавычки, обратная косая черта и управляющие символы экранируются. */
+    private static void writeString(Writer out, String s) throws IOException {
+        out.write('"');
+        int from = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.write(s, from, i - from);
+            from = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write(String.format("\\u%04x", (int) c));
+                    break;
+            }
+        }
+        out.write(s, from, s.length() - from);
+        out.write('"');
+    }
+
+    /** Бросает сломанный поток: дописать в него уже нельзя. */
+    private void discard() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // буфер не дописался, поток всё равно закрыт
+        }
+        out = null;
+    }
+
+    @Override
+    public void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.printf("NdjsonDashboardSink.close: %s\n", e.toString());
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,20 @@
+package com.dhcs;
+
+/**
+ * Доска никуда не выводится, для сервера без терминала. С этим выводом
+ * AppMessagesDashboard не запускает поток вывода и не читает изменения,
+ * а только двигает такты.
+ */
+public class NullDashboardSink implements DashboardSink {
+    @Override
+    public void snapshot(long tick, AppState.Snapshot snapshot) {
+    }
+
+    @Override
+    public void delta(long tick, AppState.Delta delta) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
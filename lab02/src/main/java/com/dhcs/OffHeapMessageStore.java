@@ -0,0 +1,195 @@
+package com.dhcs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Хранилище для больших досок. Автору выдаётся номер, версия, такт и
+ * ссылка на текст хранятся в массивах примитивов по страницам, а сам
+ * текст - в UTF-8 вне кучи в SlabArena. Номера и участки удалённых
+ * авторов переиспользуются. Объекты Message создаются только при сборке
+ * снимка.
+ *
+ * Записи одного автора упорядочены замком из STRIPES по хешу имени.
+ * Страницы не перемещаются, поэтому рост хранилища не мешает записи.
+ */
+public class OffHeapMessageStore implements MessageStore {
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_PAGES = 1 << 14;
+    private static final int STRIPES = 64;
+
+    private static class Page {
+        final long[] versions = new long[PAGE_SIZE];
+        final long[] epochs = new long[PAGE_SIZE];
+        final long[] texts = new long[PAGE_SIZE];
+    }
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<Page>(MAX_PAGES);
+    private final Object[] stripes = new Object[STRIPES];
+    private final SlabArena arena = new SlabArena();
+
+    // свободные номера, меняются только под idLock
+    private final Object idLock = new Object();
+    private int nextId = 0;
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+
+    public OffHeapMessageStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private Object stripe(String author) {
+        int h = author.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private Page page(int id) {
+        return pages.get(id >>> PAGE_BITS);
+    }
+
+    @Override
+    public void put(AppState.Message message) {
+        String author = message.getAuthor();
+        byte[] text = message.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (stripe(author)) {
+            Integer id = ids.get(author);
+            Page page;
+            int i;
+            if (id != null) {
+                page = page(id);
+                i = id & (PAGE_SIZE - 1);
+                if (page.versions[i] > message.getVersion()) {
+                    return;
+                }
+                arena.free(page.texts[i]);
+            } else {
+                id = allocateId();
+                page = page(id);
+                i = id & (PAGE_SIZE - 1);
+                ids.put(author, id);
+            }
+            page.versions[i] = message.getVersion();
+            page.epochs[i] = message.getEpoch();
+            page.texts[i] = arena.allocate(text);
+        }
+    }
+
+    @Override
+    public void check(String author, String text) {
+        if (!ids.containsKey(author) && ids.size() >= MAX_PAGES * PAGE_SIZE) {
+            throw new IllegalStateException("too many authors");
+        }
+        if (!arena.fits(utf8Length(text))) {
+            throw new IllegalStateException("arena is full");
+        }
+    }
+
+    private static int utf8Length(String text) {
+        int length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // суррогатная пара - 4 байта на два char
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void remove(String author, long version) {
+        synchronized (stripe(author)) {
+            Integer id = ids.get(author);
+            if (id != null && page(id).versions[id & (PAGE_SIZE - 1)] <= version) {
+                delete(author, id);
+            }
+        }
+    }
+
+    @Override
+    public boolean expire(String author, long version) {
+        synchronized (stripe(author)) {
+            Integer id = ids.get(author);
+            if (id == null || page(id).versions[id & (PAGE_SIZE - 1)] != version) {
+                return false;
+            }
+            delete(author, id);
+            return true;
+        }
+    }
+
+    private void delete(String author, int id) {
+        arena.free(page(id).texts[id & (PAGE_SIZE - 1)]);
+        ids.remove(author);
+        releaseId(id);
+    }
+
+    @Override
+    public long getVersion(String author) {
+        synchronized (stripe(author)) {
+            Integer id = ids.get(author);
+            return id != null ? page(id).versions[id & (PAGE_SIZE - 1)] : 0;
+        }
+    }
+
+    @Override
+    public int size() {
+        return ids.size();
+    }
+
+    @Override
+    public AppState.Message[] messages() {
+        ArrayList<AppState.Message> result = new ArrayList<AppState.Message>(ids.size());
+        ids.forEach((author, id) -> {
+            synchronized (stripe(author)) {
+                // автора могли удалить, а номер отдать другому
+                if (!id.equals(ids.get(author))) {
+                    return;
+                }
+                Page page = page(id);
+                int i = id & (PAGE_SIZE - 1);
+                String text = new String(arena.read(page.texts[i]), StandardCharsets.UTF_8);
+                result.add(new AppState.Message(author, text, page.epochs[i], page.versions[i]));
+            }
+        });
+        return result.toArray(new AppState.Message[0]);
+    }
+
+    public SlabArena getArena() {
+        return arena;
+    }
+
+    private int allocateId() {
+        synchronized (idLock) {
+            if (freeCount > 0) {
+                return freeIds[--freeCount];
+            }
+            if (nextId == MAX_PAGES * PAGE_SIZE) {
+                throw new IllegalStateException("too many authors");
+            }
+            int id = nextId++;
+            if ((id & (PAGE_SIZE - 1)) == 0) {
+                pages.set(id >>> PAGE_BITS, new Page());
+            }
+            return id;
+        }
+    }
+
+    private void releaseId(int id) {
+        synchronized (idLock) {
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = id;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.dhcs;
+
+import java.lang.management.ManagementFactory;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Реплика доски: раз в PERIOD_MILLIS забирает у основного сервера
+ * изменения после последней применённой версии и применяет их к своему
+ * состоянию. Запись на основном сервере реплику не ждёт. После разрыва
+ * связи реплика переподключается и продолжает с той же версии, а если
+ * основной сервер перезапустился или изменения уже вытеснены - получает
+ * доску целиком. После promote реплика перестаёт следовать за основным
+ * сервером, и её AppServer начинает принимать запись.
+ */
+public class Replica extends Thread implements ReplicaMXBean {
+    private static final long PERIOD_MILLIS = 50;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final AppState state;
+
+    private IReplicationSource source;
+    private String runId = "";
+    private volatile long appliedVersion = 0;
+    private volatile long lastContact = System.nanoTime();
+    private volatile boolean promoted = false;
+
+    public Replica(String host, int port, AppState state) {
+        super("Replica");
+        setDaemon(true);
+        this.host = host;
+        this.port = port;
+        this.state = state;
+    }
+
+    @Override
+    public void run() {
+        boolean failed = false;
+        while (!promoted) {
+            try {
+                if (source == null) {
+                    source = (IReplicationSource) LocateRegistry.getRegistry(host, port).lookup("server");
+                }
+                ReplicationBatch batch = source.fetchChanges(runId, appliedVersion);
+                if (promoted) {
+                    return;
+                }
+                batch.apply(state);
+                runId = batch.getRunId();
+                appliedVersion = batch.getToVersion();
+                lastContact = System.nanoTime();
+                if (failed) {
+                    System.err.printf("Replica.run: reconnected to %s\n", getPrimary());
+                    failed = false;
+                }
+                sleep(PERIOD_MILLIS);
+            } catch (RemoteException | NotBoundException e) {
+                if (!failed) {
+                    System.err.printf("Replica.run: %s\n", e.toString());
+                    failed = true;
+                }
+                source = null;
+                try {
+                    sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Регистрирует реплику в MBeanServer платформы. */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.dhcs:type=Replica"));
+        } catch (JMException e) {
+            System.err.printf("Replica.register: %s\n", e.toString());
+        }
+    }
+
+    @Override
+    public String getPrimary() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public long getAppliedVersion() {
+        return appliedVersion;
+    }
+
+    @Override
+    public long getMillisSinceContact() {
+        return (System.nanoTime() - lastContact) / 1_000_000;
+    }
+
+    @Override
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    @Override
+    public void promote() {
+        promoted = true;
+        interrupt();
+    }
+}
@@ -0,0 +1,18 @@
+package com.dhcs;
+
+/** Состояние реплики, доступное через JMX как com.dhcs:type=Replica. */
+public interface ReplicaMXBean {
+    /** Адрес основного сервера. */
+    String getPrimary();
+
+    /** Версия основного сервера, до которой реплика догнала доску. */
+    long getAppliedVersion();
+
+    /** Сколько миллисекунд назад удалось получить изменения. */
+    long getMillisSinceContact();
+
+    boolean isPromoted();
+
+    /** Прекращает репликацию и начинает принимать запись. */
+    void promote();
+}
@@ -0,0 +1,133 @@
+package com.dhcs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Пакет изменений для реплики. Реплика применяет его и в следующий раз
+ * спрашивает изменения после toVersion того же runId, поэтому после
+ * разрыва связи продолжает с места остановки.
+ */
+public class ReplicationBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Сообщение автора, text == null - автор удалён. */
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String author;
+        private final String text;
+        private final long epoch;
+
+        Entry(String author, String text, long epoch) {
+            this.author = author;
+            this.text = text;
+            this.epoch = epoch;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+    }
+
+    private final String runId;
+    private final long toVersion;
+    private final long tick;
+    private final boolean reset;
+    private final List<Entry> entries;
+
+    private ReplicationBatch(String runId, long toVersion, long tick, boolean reset, List<Entry> entries) {
+        this.runId = runId;
+        this.toVersion = toVersion;
+        this.tick = tick;
+        this.reset = reset;
+        this.entries = entries;
+    }
+
+    /** Собирает пакет из состояния источника. */
+    static ReplicationBatch of(String runId, AppState state, String requestedRunId, long since) {
+        long tick = state.getTick();
+        AppState.Delta delta = runId.equals(requestedRunId) && since <= state.getVersion()
+                ? state.getChangesSince(since)
+                : null;
+        if (delta == null) {
+            AppState.Snapshot snapshot = state.getSnapshot();
+            ArrayList<Entry> entries = new ArrayList<Entry>(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                AppState.Message m = snapshot.get(i);
+                entries.add(new Entry(m.getAuthor(), m.toString(), m.getEpoch()));
+            }
+            return new ReplicationBatch(runId, snapshot.getVersion(), tick, true, entries);
+        }
+
+        // от автора нужно только последнее изменение
+        LinkedHashMap<String, Entry> latest = new LinkedHashMap<String, Entry>();
+        for (AppState.Change change : delta.getChanges()) {
+            AppState.Message m = change.getMessage();
+            latest.remove(change.getAuthor());
+            latest.put(change.getAuthor(), m != null
+                    ? new Entry(m.getAuthor(), m.toString(), m.getEpoch())
+                    : new Entry(change.getAuthor(), null, 0));
+        }
+        return new ReplicationBatch(runId, delta.getToVersion(), tick, false, new ArrayList<Entry>(latest.values()));
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    /** Такт источника при сборке пакета, от него считается возраст сообщений. */
+    public long getTick() {
+        return tick;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Применяет пакет к доске реплики. Возраст сообщений сохраняется: такт
+     * записи пересчитывается в такты реплики.
+     */
+    void apply(AppState board) {
+        long offset = board.getTick() - tick;
+        if (reset) {
+            HashSet<String> keep = new HashSet<String>();
+            for (Entry entry : entries) {
+                keep.add(entry.author);
+            }
+            AppState.Snapshot snapshot = board.getSnapshot();
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (!keep.contains(snapshot.get(i).getAuthor())) {
+                    board.removeAuthor(snapshot.get(i).getAuthor());
+                }
+            }
+        }
+        for (Entry entry : entries) {
+            if (entry.text != null) {
+                board.restore(entry.author, entry.text, Math.max(0, entry.epoch + offset));
+            } else {
+                board.removeAuthor(entry.author);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.dhcs;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Клиент RpcServer: IAppServer поверх одного TCP-соединения. Вызовы
+ * разных потоков идут по нему одновременно, не дожидаясь ответов на
+ * предыдущие, и ответ находит свой вызов по номеру запроса. Кадры потоков,
+ * пришедших, пока сокет был занят, уходят одной записью. putMessageAsync и
+ * removeAuthorAsync не ждут ответа, так один поток может держать в пути
+ * сколько угодно вызовов.
+ *
+ * Ошибки как у заглушки RMI: ConnectException, если запрос не отправлен
+ * (соединение уже разорвано), и RemoteException, если ответ не пришёл.
+ * Разорванное соединение не восстанавливается, нужен новый клиент.
+ */
+public class RpcClient implements IAppServer, AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private interface Arguments {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final String address;
+    private final Socket socket;
+    private final OutputStream out;
+    // под своим замком
+    private final RpcFrames.FrameBuffer output = new RpcFrames.FrameBuffer(BUFFER_SIZE);
+    // сколько потоков пишут или ждут замка output
+    private final AtomicInteger writers = new AtomicInteger(0);
+    private final AtomicInteger nextId = new AtomicInteger(0);
+    private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> calls =
+            new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+    private final ConcurrentHashMap<Integer, IAppListener> subscriptions = new ConcurrentHashMap<Integer, IAppListener>();
+    // под замком this
+    private final HashMap<IAppListener, Integer> subscriptionIds = new HashMap<IAppListener, Integer>();
+    // null - соединение живо
+    private volatile IOException failure;
+
+    private RpcClient(String address, Socket socket) throws IOException {
+        this.address = address;
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        Thread.ofPlatform().daemon().name("RpcClient-" + address).start(() -> receive(in));
+    }
+
+    public static RpcClient connect(String host, int port) throws RemoteException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port));
+            return new RpcClient(host + ":" + port, socket);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new ConnectException("RpcClient: cannot connect to " + host + ":" + port, e);
+        }
+    }
+
+    @Override
+    public void putMessage(String author, String message) throws RemoteException {
+        await(call(RpcFrames.PUT_MESSAGE, out -> {
+            RpcFrames.writeString(out, author);
+            RpcFrames.writeString(out, message);
+        }));
+    }
+
+    public CompletableFuture<Void> putMessageAsync(String author, String message) {
+        return call(RpcFrames.PUT_MESSAGE, out -> {
+            RpcFrames.writeString(out, author);
+            RpcFrames.writeString(out, message);
+        }).thenAccept(body -> {});
+    }
+
+    @Override
+    public void putMessages(List<AuthorMessage> messages) throws RemoteException {
+        await(call(RpcFrames.PUT_MESSAGES, out -> {
+            out.writeInt(messages.size());
+            for (AuthorMessage m : messages) {
+                RpcFrames.writeString(out, m.getAuthor());
+                RpcFrames.writeString(out, m.getText());
+            }
+        }));
+    }
+
+    @Override
+    public void removeAuthor(String author) throws RemoteException {
+        await(call(RpcFrames.REMOVE_AUTHOR, out -> RpcFrames.writeString(out, author)));
+    }
+
+    public CompletableFuture<Void> removeAuthorAsync(String author) {
+        return call(RpcFrames.REMOVE_AUTHOR, out -> RpcFrames.writeString(out, author)).thenAccept(body -> {});
+    }
+
+    /** Кадры подписки вызывают listener.onUpdate в потоке чтения соединения. */
+    @Override
+    public synchronized void subscribe(IAppListener listener) throws RemoteException {
+        // как Broadcaster: повторная подписка начинается заново с доски целиком
+        unsubscribe(listener);
+        int id = nextId.incrementAndGet();
+        subscriptions.put(id, listener);
+        try {
+            await(send(id, RpcFrames.SUBSCRIBE, out -> {}));
+        } catch (RemoteException e) {
+            subscriptions.remove(id);
+            throw e;
+        }
+        subscriptionIds.put(listener, id);
+    }
+
+    @Override
+    public synchronized void unsubscribe(IAppListener listener) throws RemoteException {
+        Integer id = subscriptionIds.remove(listener);
+        if (id == null) {
+            return;
+        }
+        try {
+            await(call(RpcFrames.UNSUBSCRIBE, out -> out.writeInt(id)));
+        } finally {
+            subscriptions.remove(id);
+        }
+    }
+
+    @Override
+    public List<MessageHistory.Entry> getHistory(String author, int limit) throws RemoteException {
+        return RpcFrames.readEntries(await(call(RpcFrames.GET_HISTORY, out -> {
+            RpcFrames.writeString(out, author);
+            out.writeInt(limit);
+        })));
+    }
+
+    @Override
+    public List<MessageHistory.Entry> getRecentMessages(int limit) throws RemoteException {
+        return RpcFrames.readEntries(await(call(RpcFrames.GET_RECENT_MESSAGES, out -> out.writeInt(limit))));
+    }
+
+    @Override
+    public List<MessageHistory.Entry> getMessagesSince(long sequence, int limit) throws RemoteException {
+        return RpcFrames.readEntries(await(call(RpcFrames.GET_MESSAGES_SINCE, out -> {
+            out.writeLong(sequence);
+            out.writeInt(limit);
+        })));
+    }
+
+    private CompletableFuture<ByteBuffer> call(byte operation, Arguments arguments) {
+        return send(nextId.incrementAndGet(), operation, arguments);
+    }
+
+    /** Отправляет запрос; результат - тело ответа. */
+    private CompletableFuture<ByteBuffer> send(int id, byte operation, Arguments arguments) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<ByteBuffer>();
+        calls.put(id, result);
+        // fail мог пройти по calls раньше put
+        if (failure != null) {
+            calls.remove(id);
+            result.completeExceptionally(new ConnectException("RpcClient: connection to " + address + " is closed",
+                    failure));
+            return result;
+        }
+
+        writers.incrementAndGet();
+        synchronized (output) {
+            boolean last;
+            try {
+                arguments.write(output.begin(id, operation));
+                output.end();
+            } catch (IOException | RuntimeException e) {
+                output.cancel();
+                calls.remove(id);
+                result.completeExceptionally(e);
+            } finally {
+                last = writers.decrementAndGet() == 0;
+            }
+            // последний из ждущих замка отправляет кадры за всех
+            if (last && output.size() > 0) {
+                try {
+                    output.writeTo(out);
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    output.reset();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> call) throws RemoteException {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            throw new RemoteException("RpcClient: call failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("RpcClient: interrupted", e);
+        }
+    }
+
+    /** Поток чтения: раздаёт ответы вызовам и кадры подпискам. */
+    private void receive(DataInputStream in) {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < RpcFrames.HEADER_LENGTH || length > RpcFrames.MAX_FRAME_LENGTH) {
+                    throw new IOException("bad frame length " + length);
+                }
+                int id = in.readInt();
+                byte status = in.readByte();
+                byte[] body = new byte[length - RpcFrames.HEADER_LENGTH];
+                in.readFully(body);
+                ByteBuffer frame = ByteBuffer.wrap(body);
+
+                if (status == RpcFrames.EVENT) {
+                    IAppListener listener = subscriptions.get(id);
+                    if (listener != null) {
+                        try {
+                            listener.onUpdate(body);
+                        } catch (RemoteException e) {
+                            System.err.printf("RpcClient.receive: %s\n", e.toString());
+                        }
+                    }
+                    continue;
+                }
+                CompletableFuture<ByteBuffer> call = calls.remove(id);
+                if (call == null) {
+                    continue;
+                }
+                if (status == RpcFrames.OK) {
+                    call.complete(frame);
+                } else {
+                    call.completeExceptionally(new RemoteException(RpcFrames.readString(frame)));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    /** Закрывает соединение; вызовы в пути получают RemoteException. */
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        try {
+            socket.close();
+        } catch (IOException suppressed) {
+            e.addSuppressed(suppressed);
+        }
+        for (Integer id : calls.keySet()) {
+            CompletableFuture<ByteBuffer> call = calls.remove(id);
+            if (call != null) {
+                call.completeExceptionally(new RemoteException("RpcClient: connection to " + address + " lost", e));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("closed"));
+    }
+
+    @Override
+    public String toString() {
+        return "RpcClient[" + address + "]";
+    }
+}
@@ -0,0 +1,141 @@
+package com.dhcs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Кадры двоичного RPC сервера lab02, см. RpcServer и RpcClient.
+ * Запрос: [длина int32][номер int32][операция u8][аргументы], ответ:
+ * [длина int32][номер запроса int32][статус u8][результат]; длина не
+ * включает своё поле. По одному соединению идёт сразу много запросов, и
+ * ответ находит свой вызов по номеру. EVENT - кадр рассылки доски
+ * BoardFrames для подписки с номером запроса SUBSCRIBE. Строки -
+ * [длина int32][UTF-8], длина -1 - null.
+ */
+public class RpcFrames {
+    // [автор][текст]
+    static final byte PUT_MESSAGE = 1;
+    // [число int32]([автор][текст])...
+    static final byte PUT_MESSAGES = 2;
+    // [автор]
+    static final byte REMOVE_AUTHOR = 3;
+    static final byte SUBSCRIBE = 4;
+    // [номер подписки int32]
+    static final byte UNSUBSCRIBE = 5;
+    // [автор][limit int32]
+    static final byte GET_HISTORY = 6;
+    // [limit int32]
+    static final byte GET_RECENT_MESSAGES = 7;
+    // [номер сообщения int64][limit int32]
+    static final byte GET_MESSAGES_SINCE = 8;
+
+    // результат запросов истории - [число int32]([номер int64][такт int64][время int64][автор][текст])...
+    static final byte OK = 0;
+    // [текст ошибки]
+    static final byte ERROR = 1;
+    // [кадр BoardFrames]
+    static final byte EVENT = 2;
+
+    // номер и операция или статус
+    static final int HEADER_LENGTH = 5;
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** Исходящие кадры: дописываются подряд и уходят одной записью в сокет. */
+    static class FrameBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream data = new DataOutputStream(this);
+        private int start = -1;
+
+        FrameBuffer(int size) {
+            super(size);
+        }
+
+        /** Начинает кадр, его тело пишется в возвращаемый поток до end. */
+        DataOutputStream begin(int id, byte code) {
+            start = count;
+            try {
+                data.writeInt(0);
+                data.writeInt(id);
+                data.writeByte(code);
+            } catch (IOException e) {
+                // ByteArrayOutputStream не бросает IOException
+                throw new IllegalStateException(e);
+            }
+            return data;
+        }
+
+        void end() {
+            int length = count - start - 4;
+            buf[start] = (byte) (length >>> 24);
+            buf[start + 1] = (byte) (length >>> 16);
+            buf[start + 2] = (byte) (length >>> 8);
+            buf[start + 3] = (byte) length;
+            start = -1;
+        }
+
+        /** Отбрасывает недописанный кадр. */
+        void cancel() {
+            count = start;
+            start = -1;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** in - буфер над массивом. */
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static void writeEntries(DataOutputStream out, List<MessageHistory.Entry> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (MessageHistory.Entry entry : entries) {
+            out.writeLong(entry.getSequence());
+            out.writeLong(entry.getEpoch());
+            out.writeLong(entry.getTimestamp());
+            writeString(out, entry.getAuthor());
+            writeString(out, entry.getText());
+        }
+    }
+
+    static List<MessageHistory.Entry> readEntries(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ArrayList<MessageHistory.Entry> entries = new ArrayList<MessageHistory.Entry>(count);
+        for (int i = 0; i < count; i++) {
+            long sequence = in.getLong();
+            long epoch = in.getLong();
+            long timestamp = in.getLong();
+            entries.add(new MessageHistory.Entry(sequence, epoch, timestamp, readString(in), readString(in)));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,523 @@
+package com.dhcs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Двоичный RPC к IAppServer без сериализации Java, кадры RpcFrames.
+ * Один поток на селекторе принимает соединения, читает и пишет, а запросы
+ * соединения выполняются по порядку на виртуальном потоке, чтобы ожидание
+ * журнала не задерживало другие соединения. Ответы, накопившиеся, пока
+ * сокет был занят, уходят одной записью. Если клиент не забирает ответы,
+ * чтение его запросов приостанавливается.
+ */
+public class RpcServer extends Thread {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // выше этого чтение соединения приостанавливается
+    private static final int MAX_QUEUED_REQUESTS = 1024;
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+    private final IAppServer server;
+    private final Selector selector;
+    private final ServerSocketChannel channel;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // соединения с новыми ответами, их допишет поток селектора
+    private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+    private static class Request {
+        int id;
+        byte operation;
+        String author;
+        String text;
+        List<AuthorMessage> messages;
+        int limit;
+        long sequence;
+        int subscription;
+        // ошибка разбора, на которую invoke отвечает ERROR
+        String error;
+    }
+
+    /** Подписка соединения: кадры доски уходят клиенту как EVENT. */
+    private static class RemoteListener implements IAppListener {
+        private final Connection connection;
+        private final int id;
+
+        RemoteListener(Connection connection, int id) {
+            this.connection = connection;
+            this.id = id;
+        }
+
+        @Override
+        public void onUpdate(byte[] frame) throws RemoteException {
+            connection.sendEvent(id, frame);
+        }
+    }
+
+    private class Connection implements Runnable {
+        final SocketChannel channel;
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+        final AtomicInteger queued = new AtomicInteger(0);
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        SelectionKey key;
+
+        // под замком соединения
+        RpcFrames.FrameBuffer pending = new RpcFrames.FrameBuffer(READ_BUFFER_SIZE);
+        RpcFrames.FrameBuffer spare = new RpcFrames.FrameBuffer(READ_BUFFER_SIZE);
+        boolean writeQueued = false;
+        boolean closed = false;
+        final HashMap<Integer, RemoteListener> subscriptions = new HashMap<Integer, RemoteListener>();
+
+        // только поток селектора
+        ByteBuffer output = null;
+        RpcFrames.FrameBuffer sending = null;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void execute(Request request) {
+            queued.incrementAndGet();
+            requests.add(request);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!requests.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Request request;
+            while ((request = requests.poll()) != null) {
+                invoke(this, request);
+                queued.decrementAndGet();
+            }
+            scheduled.set(false);
+            // запрос мог прийти между poll и сбросом флага
+            schedule();
+        }
+
+        /** Начинает ответ; null - соединение уже закрыто. Кадр закрывает finish. */
+        synchronized DataOutputStream reply(int id, byte status) {
+            return closed ? null : pending.begin(id, status);
+        }
+
+        synchronized void finish() {
+            pending.end();
+            requestWrite();
+        }
+
+        synchronized void sendEvent(int id, byte[] frame) throws RemoteException {
+            // медленный подписчик ждёт здесь, а Broadcaster тем временем
+            // выбрасывает его кадры и потом пришлёт доску целиком
+            while (!closed && pending.size() > MAX_PENDING_OUTPUT) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new RemoteException("RpcServer: interrupted", e);
+                }
+            }
+            if (closed) {
+                throw new RemoteException("RpcServer: connection closed");
+            }
+            try {
+                pending.begin(id, RpcFrames.EVENT).write(frame);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            pending.end();
+            requestWrite();
+        }
+
+        private void requestWrite() {
+            if (!writeQueued) {
+                writeQueued = true;
+                writable.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /** Забирает накопленные ответы для записи; null - писать нечего. */
+        synchronized RpcFrames.FrameBuffer takePending() {
+            writeQueued = false;
+            if (pending.size() == 0) {
+                return null;
+            }
+            RpcFrames.FrameBuffer taken = pending;
+            pending = spare;
+            spare = null;
+            notifyAll();
+            return taken;
+        }
+
+        synchronized void recycle(RpcFrames.FrameBuffer buffer) {
+            buffer.reset();
+            spare = buffer;
+        }
+
+        boolean isBacklogged() {
+            return queued.get() > MAX_QUEUED_REQUESTS || output != null;
+        }
+
+        synchronized List<RemoteListener> close() {
+            closed = true;
+            notifyAll();
+            ArrayList<RemoteListener> listeners = new ArrayList<RemoteListener>(subscriptions.values());
+            subscriptions.clear();
+            return listeners;
+        }
+    }
+
+    /** port - порт RPC, 0 - любой свободный, см. getPort. */
+    public RpcServer(IAppServer server, int port) throws IOException {
+        super("RpcServer");
+        setDaemon(true);
+        this.server = server;
+        this.selector = Selector.open();
+        this.channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            loop();
+        } catch (IOException e) {
+            System.err.printf("RpcServer.run: %s\n", e.toString());
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void loop() throws IOException {
+        // interrupt будит select, см. close
+        while (!isInterrupted()) {
+            selector.select();
+
+            Connection connection;
+            while ((connection = writable.poll()) != null) {
+                write(connection);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                connection = (Connection) key.attachment();
+                if (key.isWritable()) {
+                    write(connection);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(connection);
+                }
+            }
+        }
+    }
+
+    /** Останавливает поток селектора и закрывает все соединения. */
+    public void close() throws InterruptedException {
+        interrupt();
+        join();
+    }
+
+    private void shutdown() {
+        try {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                if (key.attachment() instanceof Connection) {
+                    close((Connection) key.attachment());
+                }
+            }
+            channel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.printf("RpcServer.shutdown: %s\n", e.toString());
+        }
+        executor.shutdown();
+    }
+
+    private void accept() {
+        try {
+            SocketChannel client = channel.accept();
+            if (client == null) {
+                return;
+            }
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(client);
+            connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            System.err.printf("RpcServer.accept: %s\n", e.toString());
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.input) < 0) {
+                close(connection);
+                return;
+            }
+            decode(connection);
+        } catch (IOException | BufferUnderflowException e) {
+            System.err.printf("RpcServer.read: %s\n", e.toString());
+            close(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    /** Разбирает все целые кадры буфера и ставит запросы в очередь соединения. */
+    private void decode(Connection connection) throws IOException {
+        ByteBuffer input = connection.input;
+        input.flip();
+        while (input.remaining() >= 4) {
+            int length = input.getInt(input.position());
+            if (length < RpcFrames.HEADER_LENGTH || length > RpcFrames.MAX_FRAME_LENGTH) {
+                throw new IOException("bad frame length " + length);
+            }
+            if (input.remaining() < 4 + length) {
+                if (input.capacity() < 4 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(input);
+                    connection.input = larger;
+                    return;
+                }
+                break;
+            }
+            int end = input.position() + 4 + length;
+            input.position(input.position() + 4);
+            ByteBuffer frame = input.slice(input.position(), end - input.position());
+            connection.execute(parse(frame));
+            input.position(end);
+        }
+        input.compact();
+        if (input.capacity() > READ_BUFFER_SIZE && input.position() <= READ_BUFFER_SIZE) {
+            // большой кадр разобран, держать под соединение его буфер незачем
+            input.flip();
+            connection.input = ByteBuffer.allocate(READ_BUFFER_SIZE).put(input);
+        }
+    }
+
+    private static Request parse(ByteBuffer frame) {
+        Request request = new Request();
+        request.id = frame.getInt();
+        request.operation = frame.get();
+        switch (request.operation) {
+            case RpcFrames.PUT_MESSAGE:
+                request.author = readArgument(frame, request);
+                request.text = readArgument(frame, request);
+                break;
+            case RpcFrames.PUT_MESSAGES:
+                int count = frame.getInt();
+                if (count < 0 || count > frame.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                request.messages = new ArrayList<AuthorMessage>(count);
+                for (int i = 0; i < count; i++) {
+                    request.messages.add(new AuthorMessage(readArgument(frame, request), readArgument(frame, request)));
+                }
+                break;
+            case RpcFrames.REMOVE_AUTHOR:
+                request.author = readArgument(frame, request);
+                break;
+            case RpcFrames.UNSUBSCRIBE:
+                request.subscription = frame.getInt();
+                break;
+            case RpcFrames.GET_HISTORY:
+                request.author = readArgument(frame, request);
+                request.limit = frame.getInt();
+                break;
+            case RpcFrames.GET_RECENT_MESSAGES:
+                request.limit = frame.getInt();
+                break;
+            case RpcFrames.GET_MESSAGES_SINCE:
+                request.sequence = frame.getLong();
+                request.limit = frame.getInt();
+                break;
+            default:
+                // SUBSCRIBE без аргументов, неизвестную операцию отклонит invoke
+                break;
+        }
+        return request;
+    }
+
+    /** Строковый аргумент запроса; null (длина -1) отклоняется ответом ERROR. */
+    private static String readArgument(ByteBuffer frame, Request request) {
+        String value = RpcFrames.readString(frame);
+        if (value == null) {
+            request.error = "null argument";
+        }
+        return value;
+    }
+
+    /** Выполняет запрос в потоке соединения и дописывает ответ. */
+    private void invoke(Connection connection, Request request) {
+        List<MessageHistory.Entry> entries = null;
+        try {
+            if (request.error != null) {
+                throw new RemoteException(request.error);
+            }
+            switch (request.operation) {
+                case RpcFrames.PUT_MESSAGE:
+                    server.putMessage(request.author, request.text);
+                    break;
+                case RpcFrames.PUT_MESSAGES:
+                    server.putMessages(request.messages);
+                    break;
+                case RpcFrames.REMOVE_AUTHOR:
+                    server.removeAuthor(request.author);
+                    break;
+                case RpcFrames.SUBSCRIBE:
+                    subscribe(connection, request.id);
+                    break;
+                case RpcFrames.UNSUBSCRIBE:
+                    unsubscribe(connection, request.subscription);
+                    break;
+                case RpcFrames.GET_HISTORY:
+                    entries = server.getHistory(request.author, request.limit);
+                    break;
+                case RpcFrames.GET_RECENT_MESSAGES:
+                    entries = server.getRecentMessages(request.limit);
+                    break;
+                case RpcFrames.GET_MESSAGES_SINCE:
+                    entries = server.getMessagesSince(request.sequence, request.limit);
+                    break;
+                default:
+                    throw new RemoteException("unknown operation " + request.operation);
+            }
+        } catch (RemoteException | RuntimeException e) {
+            reply(connection, request.id, RpcFrames.ERROR, e.getMessage() != null ? e.getMessage() : e.toString(),
+                    null);
+            return;
+        }
+        reply(connection, request.id, RpcFrames.OK, null, entries);
+    }
+
+    private static void reply(Connection connection, int id, byte status, String error,
+            List<MessageHistory.Entry> entries) {
+        synchronized (connection) {
+            DataOutputStream out = connection.reply(id, status);
+            if (out == null) {
+                return;
+            }
+            try {
+                if (error != null) {
+                    RpcFrames.writeString(out, error);
+                } else if (entries != null) {
+                    RpcFrames.writeEntries(out, entries);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            connection.finish();
+        }
+    }
+
+    private void subscribe(Connection connection, int id) throws RemoteException {
+        RemoteListener listener = new RemoteListener(connection, id);
+        synchronized (connection) {
+            if (connection.closed) {
+                return;
+            }
+            connection.subscriptions.put(id, listener);
+        }
+        server.subscribe(listener);
+    }
+
+    private void unsubscribe(Connection connection, int id) throws RemoteException {
+        RemoteListener listener;
+        synchronized (connection) {
+            listener = connection.subscriptions.remove(id);
+        }
+        if (listener != null) {
+            server.unsubscribe(listener);
+        }
+    }
+
+    private void write(Connection connection) {
+        try {
+            while (true) {
+                if (connection.output == null) {
+                    connection.sending = connection.takePending();
+                    if (connection.sending == null) {
+                        break;
+                    }
+                    connection.output = connection.sending.toByteBuffer();
+                }
+                connection.channel.write(connection.output);
+                if (connection.output.hasRemaining()) {
+                    break;
+                }
+                connection.output = null;
+                connection.recycle(connection.sending);
+                connection.sending = null;
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        updateInterest(connection);
+    }
+
+    private void updateInterest(Connection connection) {
+        SelectionKey key = connection.key;
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = connection.isBacklogged() ? 0 : SelectionKey.OP_READ;
+        if (connection.output != null) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void close(Connection connection) {
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            System.err.printf("RpcServer.close: %s\n", e.toString());
+        }
+        for (RemoteListener listener : connection.close()) {
+            try {
+                server.unsubscribe(listener);
+            } catch (RemoteException e) {
+                System.err.printf("RpcServer.close: %s\n", e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.dhcs;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Клиентская заглушка кластера из нескольких AppServer: авторы
+ * раскладываются по серверам кольцом согласованного хеширования, и
+ * putMessage и removeAuthor уходят на сервер автора, а пакет putMessages
+ * делится на пакеты по серверам. Подписка собирает доски всех серверов
+ * в одну: кадры каждого сервера идут через свой Relay, который
+ * ограничивает RESET авторами этого сервера.
+ */
+public class ShardRouter implements IAppServer {
+    private final ConsistentHashRing ring;
+    private final LinkedHashMap<String, IAppServer> shards;
+    private final HashMap<IAppListener, Map<IAppServer, Relay>> relays =
+            new HashMap<IAppListener, Map<IAppServer, Relay>>();
+
+    /**
+     * Позиция чтения общей истории: последний прочитанный номер сообщения на
+     * каждом сервере. Новый курсор читает историю с начала. Курсор не
+     * потокобезопасен.
+     */
+    public static class Cursor {
+        private final HashMap<String, Long> sequences = new HashMap<String, Long>();
+
+        /** Последний прочитанный номер на сервере shard, 0 - ничего не прочитано. */
+        public long get(String shard) {
+            return sequences.getOrDefault(shard, 0L);
+        }
+
+        public void set(String shard, long sequence) {
+            sequences.put(shard, sequence);
+        }
+    }
+
+    /** Пересылает кадры одного сервера подписчику общей доски. */
+    private static class Relay extends UnicastRemoteObject implements IAppListener {
+        private static final long serialVersionUID = 1L;
+        private final transient IAppListener listener;
+        private final transient HashSet<String> owned = new HashSet<String>();
+
+        Relay(IAppListener listener) throws RemoteException {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void onUpdate(byte[] frame) throws RemoteException {
+            try {
+                listener.onUpdate(BoardFrames.scope(frame, owned));
+            } catch (IOException e) {
+                System.err.printf("ShardRouter.Relay.onUpdate: %s\n", e.toString());
+            }
+        }
+    }
+
+    public ShardRouter(Map<String, IAppServer> shards) {
+        this.shards = new LinkedHashMap<String, IAppServer>(shards);
+        this.ring = new ConsistentHashRing(shards.keySet());
+    }
+
+    /** Находит серверы по адресам вида host:port. */
+    public static ShardRouter connect(List<String> addresses) throws RemoteException, NotBoundException {
+        LinkedHashMap<String, IAppServer> shards = new LinkedHashMap<String, IAppServer>();
+        for (String address : addresses) {
+            int colon = address.lastIndexOf(':');
+            String host = address.substring(0, colon);
+            int port = Integer.parseInt(address.substring(colon + 1));
+            shards.put(address, (IAppServer) LocateRegistry.getRegistry(host, port).lookup("server"));
+        }
+        return new ShardRouter(shards);
+    }
+
+    /** То же через двоичный RPC: адреса - host:port серверов RpcServer. */
+    public static ShardRouter connectRpc(List<String> addresses) throws RemoteException {
+        LinkedHashMap<String, IAppServer> shards = new LinkedHashMap<String, IAppServer>();
+        for (String address : addresses) {
+            int colon = address.lastIndexOf(':');
+            shards.put(address, RpcClient.connect(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1))));
+        }
+        return new ShardRouter(shards);
+    }
+
+    /** Адрес сервера, на котором живёт автор. */
+    public String shardFor(String author) {
+        return ring.nodeFor(author);
+    }
+
+    private IAppServer serverFor(String author) {
+        return shards.get(ring.nodeFor(author));
+    }
+
+    @Override
+    public void putMessage(String author, String message) throws RemoteException {
+        serverFor(author).putMessage(author, message);
+    }
+
+    @Override
+    public void putMessages(List<AuthorMessage> messages) throws RemoteException {
+        LinkedHashMap<IAppServer, List<AuthorMessage>> batches = new LinkedHashMap<IAppServer, List<AuthorMessage>>();
+        for (AuthorMessage m : messages) {
+            batches.computeIfAbsent(serverFor(m.getAuthor()), server -> new ArrayList<AuthorMessage>()).add(m);
+        }
+        for (Map.Entry<IAppServer, List<AuthorMessage>> batch : batches.entrySet()) {
+            batch.getKey().putMessages(batch.getValue());
+        }
+    }
+
+    @Override
+    public void removeAuthor(String author) throws RemoteException {
+        serverFor(author).removeAuthor(author);
+    }
+
+    @Override
+    public synchronized void subscribe(IAppListener listener) throws RemoteException {
+        if (relays.containsKey(listener)) {
+            return;
+        }
+        HashMap<IAppServer, Relay> subscribed = new HashMap<IAppServer, Relay>();
+        relays.put(listener, subscribed);
+        for (IAppServer server : shards.values()) {
+            Relay relay = new Relay(listener);
+            subscribed.put(server, relay);
+            server.subscribe(relay);
+        }
+    }
+
+    @Override
+    public synchronized void unsubscribe(IAppListener listener) throws RemoteException {
+        Map<IAppServer, Relay> subscribed = relays.remove(listener);
+        if (subscribed == null) {
+            return;
+        }
+        for (Map.Entry<IAppServer, Relay> entry : subscribed.entrySet()) {
+            entry.getKey().unsubscribe(entry.getValue());
+            UnicastRemoteObject.unexportObject(entry.getValue(), true);
+        }
+    }
+
+    @Override
+    public List<MessageHistory.Entry> getHistory(String author, int limit) throws RemoteException {
+        return serverFor(author).getHistory(author, limit);
+    }
+
+    /**
+     * Номера и такты сообщений у каждого сервера свои, поэтому сообщения
+     * разных серверов упорядочиваются по времени записи.
+     */
+    @Override
+    public List<MessageHistory.Entry> getRecentMessages(int limit) throws RemoteException {
+        ArrayList<MessageHistory.Entry> all = new ArrayList<MessageHistory.Entry>();
+        for (IAppServer server : shards.values()) {
+            all.addAll(server.getRecentMessages(limit));
+        }
+        all.sort(Comparator.comparingLong(MessageHistory.Entry::getTimestamp));
+        return new ArrayList<MessageHistory.Entry>(all.subList(Math.max(0, all.size() - limit), all.size()));
+    }
+
+    /**
+     * Номер сообщения задаёт позицию только на своём сервере, поэтому общую
+     * историю читают через Cursor. Номер 0 означает начало истории на всех
+     * серверах.
+     */
+    @Override
+    public List<MessageHistory.Entry> getMessagesSince(long sequence, int limit) throws RemoteException {
+        if (sequence != 0) {
+            throw new RemoteException("message sequence is per shard, use ShardRouter.Cursor");
+        }
+        return getMessagesSince(new Cursor(), limit);
+    }
+
+    /**
+     * До limit сообщений всех серверов после позиции cursor по времени
+     * записи. Каждый сервер отдаёт сообщения после своего номера из курсора,
+     * ответы сливаются, и курсор сдвигается на каждом сервере до последнего
+     * отданного его сообщения, так что следующий запрос продолжит без
+     * пропусков и повторов.
+     */
+    public List<MessageHistory.Entry> getMessagesSince(Cursor cursor, int limit) throws RemoteException {
+        ArrayList<String> names = new ArrayList<String>(shards.size());
+        ArrayList<List<MessageHistory.Entry>> pages = new ArrayList<List<MessageHistory.Entry>>(shards.size());
+        for (Map.Entry<String, IAppServer> shard : shards.entrySet()) {
+            names.add(shard.getKey());
+            pages.add(shard.getValue().getMessagesSince(cursor.get(shard.getKey()), limit));
+        }
+
+        // каждый сервер отдал не больше limit сообщений по порядку, поэтому
+        // слияние по головам не обгонит недочитанные сообщения сервера
+        int[] next = new int[pages.size()];
+        ArrayList<MessageHistory.Entry> result = new ArrayList<MessageHistory.Entry>(Math.max(0, limit));
+        while (result.size() < limit) {
+            int oldest = -1;
+            for (int i = 0; i < pages.size(); i++) {
+                if (next[i] < pages.get(i).size() && (oldest < 0 || pages.get(i).get(next[i]).getTimestamp()
+                        < pages.get(oldest).get(next[oldest]).getTimestamp())) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                break;
+            }
+            MessageHistory.Entry entry = pages.get(oldest).get(next[oldest]++);
+            result.add(entry);
+            cursor.set(names.get(oldest), entry.getSequence());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,153 @@
+package com.dhcs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Память вне кучи под тексты сообщений. Память выделяется блоками по
+ * SLAB_SIZE, участки - классами по степеням двойки, освобождённые участки
+ * складываются в список своего класса и отдаются следующим выделениям.
+ *
+ * Тексты длиннее SLAB_SIZE получают отдельный буфер ровно по размеру.
+ *
+ * Ссылка на участок - long: старшие 32 бита - номер блока и смещение в
+ * нём, младшие - длина данных. У отдельного буфера старший бит адреса
+ * выставлен, остальные - номер буфера. Читать участок можно без замка
+ * арены, если запись и чтение упорядочены внешним замком.
+ */
+public class SlabArena {
+    private static final int SLAB_BITS = 20;
+    static final int SLAB_SIZE = 1 << SLAB_BITS;
+    private static final int MAX_SLABS = 2048;
+    private static final int MIN_CLASS_BITS = 4;
+    private static final int CLASSES = SLAB_BITS - MIN_CLASS_BITS + 1;
+    private static final int LARGE = 1 << 31;
+
+    private final ByteBuffer[] slabs = new ByteBuffer[MAX_SLABS];
+    private int slabCount = 0;
+    // свободное место в последнем блоке
+    private int top = SLAB_SIZE;
+    private final int[][] free = new int[CLASSES][];
+    private final int[] freeCount = new int[CLASSES];
+    private long used = 0;
+    // отдельные буферы больших текстов, меняются и читаются под замком арены
+    private final ArrayList<ByteBuffer> large = new ArrayList<ByteBuffer>();
+    private int[] freeLarge = new int[16];
+    private int freeLargeCount = 0;
+    private long largeBytes = 0;
+
+    public SlabArena() {
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new int[16];
+        }
+    }
+
+    private static int sizeClass(int length) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1 << MIN_CLASS_BITS) - 1);
+        return bits - MIN_CLASS_BITS;
+    }
+
+    /**
+     * Поместятся ли length байт. Проверка нужна до выдачи версии и записи
+     * в журнал: allocate бросает исключение, только если арена заполнена.
+     */
+    public synchronized boolean fits(int length) {
+        if (length > SLAB_SIZE) {
+            return true;
+        }
+        int sizeClass = sizeClass(length);
+        return freeCount[sizeClass] > 0
+                || top + (1 << (sizeClass + MIN_CLASS_BITS)) <= SLAB_SIZE
+                || slabCount < MAX_SLABS;
+    }
+
+    /** Копирует bytes в арену и возвращает ссылку на них. */
+    public long allocate(byte[] bytes) {
+        if (bytes.length > SLAB_SIZE) {
+            return allocateLarge(bytes);
+        }
+
+        int sizeClass = sizeClass(bytes.length);
+        int address;
+        synchronized (this) {
+            if (freeCount[sizeClass] > 0) {
+                address = free[sizeClass][--freeCount[sizeClass]];
+            } else {
+                int size = 1 << (sizeClass + MIN_CLASS_BITS);
+                if (top + size > SLAB_SIZE) {
+                    if (slabCount == MAX_SLABS) {
+                        throw new IllegalStateException("arena is full");
+                    }
+                    slabs[slabCount++] = ByteBuffer.allocateDirect(SLAB_SIZE);
+                    top = 0;
+                }
+                address = (slabCount - 1) << SLAB_BITS | top;
+                top += size;
+            }
+            used += 1 << (sizeClass + MIN_CLASS_BITS);
+        }
+
+        slabs[address >>> SLAB_BITS].put(address & (SLAB_SIZE - 1), bytes);
+        return (long) address << 32 | bytes.length;
+    }
+
+    private synchronized long allocateLarge(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(0, bytes);
+        int index;
+        if (freeLargeCount > 0) {
+            index = freeLarge[--freeLargeCount];
+            large.set(index, buffer);
+        } else {
+            index = large.size();
+            large.add(buffer);
+        }
+        used += bytes.length;
+        largeBytes += bytes.length;
+        return (long) (LARGE | index) << 32 | bytes.length;
+    }
+
+    public synchronized void free(long ref) {
+        int address = (int) (ref >>> 32);
+        if ((address & LARGE) != 0) {
+            int index = address & ~LARGE;
+            large.set(index, null);
+            if (freeLargeCount == freeLarge.length) {
+                freeLarge = Arrays.copyOf(freeLarge, freeLargeCount * 2);
+            }
+            freeLarge[freeLargeCount++] = index;
+            used -= (int) ref;
+            largeBytes -= (int) ref;
+            return;
+        }
+        int sizeClass = sizeClass((int) ref);
+        if (freeCount[sizeClass] == free[sizeClass].length) {
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], freeCount[sizeClass] * 2);
+        }
+        free[sizeClass][freeCount[sizeClass]++] = (int) (ref >>> 32);
+        used -= 1 << (sizeClass + MIN_CLASS_BITS);
+    }
+
+    public byte[] read(long ref) {
+        int address = (int) (ref >>> 32);
+        byte[] bytes = new byte[(int) ref];
+        if ((address & LARGE) != 0) {
+            synchronized (this) {
+                large.get(address & ~LARGE).get(0, bytes);
+            }
+            return bytes;
+        }
+        slabs[address >>> SLAB_BITS].get(address & (SLAB_SIZE - 1), bytes);
+        return bytes;
+    }
+
+    /** Байт, занятых участками, с учётом округления до класса. */
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    public synchronized long getReservedBytes() {
+        return (long) slabCount * SLAB_SIZE + largeBytes;
+    }
+}
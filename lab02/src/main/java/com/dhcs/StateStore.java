@@ -0,0 +1,238 @@
+package com.dhcs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Хранение AppState на диске: снимки доски плюс журнал изменений после
+ * них. При запуске open восстанавливает состояние из последнего снимка и
+ * хвоста журнала, сразу пишет новый снимок и начинает новый журнал. Пока
+ * сервер работает, раз в CHECKPOINT_INTERVAL_MILLIS пишется свежий снимок,
+ * а покрытые им сегменты журнала удаляются.
+ *
+ * Снимок: [MAGIC int32][первый сегмент int64][версия int64][число int32],
+ * затем сообщения [версия int64][такт int64][автор][текст]. Версии после
+ * перезапуска выдаются заново, поэтому снимок относится только к сегментам
+ * начиная со своего первого: более старые журналы уже в нём учтены.
+ */
+public class StateStore implements Closeable {
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 30000;
+    private static final int MAGIC = 0x44484353;
+
+    private final Path directory;
+    private final AppState state;
+    private final long firstSegment;
+    private final WriteAheadLog log;
+    private final Thread checkpointer;
+    private long sequence;
+    private long checkpointVersion;
+
+    private StateStore(Path directory, AppState state, long firstSegment, long sequence, boolean fsync)
+            throws IOException {
+        this.directory = directory;
+        this.state = state;
+        this.firstSegment = firstSegment;
+        this.sequence = sequence;
+        this.log = new WriteAheadLog(directory, firstSegment, fsync);
+        this.checkpointer = new Thread(this::checkpointLoop, "StateStore");
+        this.checkpointer.setDaemon(true);
+    }
+
+    /**
+     * Восстанавливает state из каталога и подключает к нему журнал.
+     * state должен быть пустым.
+     */
+    public static StateStore open(Path directory, AppState state, boolean fsync) throws IOException {
+        Files.createDirectories(directory);
+        load(directory, state);
+
+        List<Path> segments = WriteAheadLog.segments(directory);
+        long first = segments.isEmpty() ? 0 : WriteAheadLog.segmentIndex(segments.get(segments.size() - 1)) + 1;
+        List<Path> snapshots = snapshots(directory);
+        long sequence = snapshots.isEmpty() ? 0 : snapshotSequence(snapshots.get(snapshots.size() - 1));
+
+        StateStore store = new StateStore(directory, state, first, sequence, fsync);
+        // восстановленное состояние сохраняется в новой нумерации версий,
+        // после этого старые журналы больше не нужны
+        store.checkpoint();
+        for (Path segment : segments) {
+            Files.deleteIfExists(segment);
+        }
+
+        state.setLog(store.log);
+        store.checkpointer.start();
+        return store;
+    }
+
+    /**
+     * Загружает в пустой state последний снимок и изменения журнала после
+     * него. Каталог не меняется. Возвращает число восстановленных авторов.
+     */
+    public static int load(Path directory, AppState state) throws IOException {
+        HashMap<String, WriteAheadLog.Record> board = new HashMap<String, WriteAheadLog.Record>();
+        long first = 0;
+        long since = 0;
+
+        List<Path> snapshots = snapshots(directory);
+        if (!snapshots.isEmpty()) {
+            Path snapshot = snapshots.get(snapshots.size() - 1);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a snapshot: " + snapshot);
+                }
+                first = in.readLong();
+                since = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long version = in.readLong();
+                    long epoch = in.readLong();
+                    String author = readString(in);
+                    String text = readString(in);
+                    board.put(author, new WriteAheadLog.Record(version, epoch, author, text));
+                }
+            }
+        }
+
+        // записи журнала идут не строго по версиям, поэтому удалённые авторы
+        // остаются в board пустыми записями, пока журнал не прочитан целиком
+        long after = since;
+        for (Path segment : WriteAheadLog.segments(directory)) {
+            if (WriteAheadLog.segmentIndex(segment) < first) {
+                continue;
+            }
+            WriteAheadLog.read(segment, record -> {
+                if (record.getVersion() <= after) {
+                    return;
+                }
+                WriteAheadLog.Record old = board.get(record.getAuthor());
+                if (old == null || old.getVersion() < record.getVersion()) {
+                    board.put(record.getAuthor(), record);
+                }
+            });
+        }
+
+        ArrayList<WriteAheadLog.Record> records = new ArrayList<WriteAheadLog.Record>(board.values());
+        records.sort(Comparator.comparingLong(WriteAheadLog.Record::getVersion));
+        int restored = 0;
+        for (WriteAheadLog.Record record : records) {
+            if (record.getText() == null) {
+                continue;
+            }
+            try {
+                state.restore(record.getAuthor(), record.getText(), record.getEpoch());
+                restored += 1;
+            } catch (RuntimeException e) {
+                // запись, которая не помещается в хранилище, не должна мешать запуску
+                System.err.printf("StateStore.load: %s\n", e.toString());
+            }
+        }
+        return restored;
+    }
+
+    private void checkpointLoop() {
+        while (true) {
+            try {
+                Thread.sleep(CHECKPOINT_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (state.getVersion() == checkpointVersion) {
+                continue;
+            }
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.printf("StateStore.checkpoint: %s\n", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Пишет снимок текущего состояния, затем удаляет предыдущие снимки и
+     * сегменты журнала, которые в нём уже учтены.
+     */
+    synchronized void checkpoint() throws IOException {
+        AppState.Snapshot snapshot = state.getSnapshot();
+        sequence += 1;
+        Path target = directory.resolve(String.format("snapshot-%020d.bin", sequence));
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(MAGIC);
+            out.writeLong(firstSegment);
+            out.writeLong(snapshot.getVersion());
+            out.writeInt(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                AppState.Message m = snapshot.get(i);
+                out.writeLong(m.getVersion());
+                out.writeLong(m.getEpoch());
+                writeString(out, m.getAuthor());
+                writeString(out, m.toString());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        checkpointVersion = snapshot.getVersion();
+
+        for (Path old : snapshots(directory)) {
+            if (!old.equals(target)) {
+                Files.deleteIfExists(old);
+            }
+        }
+        log.truncate(snapshot.getVersion());
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointer.interrupt();
+        state.setLog(null);
+        log.close();
+    }
+
+    private static List<Path> snapshots(Path directory) throws IOException {
+        ArrayList<Path> result = new ArrayList<Path>();
+        if (!Files.isDirectory(directory)) {
+            return result;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> path.getFileName().toString().matches("snapshot-\\d{20}\\.bin"))
+                    .sorted()
+                    .forEach(result::add);
+        }
+        return result;
+    }
+
+    private static long snapshotSequence(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring("snapshot-".length(), name.length() - ".bin".length()));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,29 @@
+package com.dhcs;
+
+import java.io.PrintStream;
+
+/** Доска в терминале через DashboardRenderer. */
+public class TerminalDashboardSink implements DashboardSink {
+    private final DashboardRenderer renderer;
+
+    public TerminalDashboardSink(PrintStream out) {
+        this.renderer = new DashboardRenderer(out);
+    }
+
+    @Override
+    public void snapshot(long tick, AppState.Snapshot snapshot) {
+        renderer.reset(tick, snapshot);
+        renderer.render(tick);
+    }
+
+    @Override
+    public void delta(long tick, AppState.Delta delta) {
+        renderer.apply(delta);
+        renderer.render(tick);
+    }
+
+    /** Поток вывода не закрывается, он общий с остальной программой. */
+    @Override
+    public void close() {
+    }
+}
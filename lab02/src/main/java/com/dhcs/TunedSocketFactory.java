@@ -0,0 +1,342 @@
+package com.dhcs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сокеты RMI с заданными размерами буферов TCP, 0 оставляет значение
+ * системы. TCP_NODELAY транспорт RMI включает сам на обоих концах. Фабрика
+ * сериализуема и сравнима по параметрам, поэтому годится и как фабрика
+ * экспортируемого объекта, и для RMISocketFactory.setSocketFactory:
+ * одинаковые фабрики делят соединения.
+ *
+ * С порогом compressThreshold поток сокета делится на кадры по flush
+ * (транспорт RMI сбрасывает поток в конце каждого вызова и ответа), и кадры
+ * не короче порога сжимаются. Такие сокеты понимают только друг друга,
+ * поэтому сжатие задают фабрикой экспортируемого объекта: клиент получает
+ * её вместе с заглушкой.
+ */
+public class TunedSocketFactory extends RMISocketFactory implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // старший бит длины кадра - кадр сжат
+    private static final int COMPRESSED = 0x80000000;
+    // кадр длиннее считается испорченным потоком
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    // 0 - без сжатия
+    private final int compressThreshold;
+
+    public TunedSocketFactory(int sendBufferSize, int receiveBufferSize) {
+        this(sendBufferSize, receiveBufferSize, 0);
+    }
+
+    public TunedSocketFactory(int sendBufferSize, int receiveBufferSize, int compressThreshold) {
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.compressThreshold = compressThreshold;
+    }
+
+    /**
+     * Ставит фабрику для всех объектов процесса, экспортированных без своей
+     * фабрики, в том числе для заглушек, полученных от сервера. Фабрику
+     * процесса можно задать только один раз.
+     */
+    public static synchronized void install(TunedSocketFactory factory) throws IOException {
+        RMISocketFactory current = RMISocketFactory.getSocketFactory();
+        if (current == null) {
+            RMISocketFactory.setSocketFactory(factory);
+        } else if (!current.equals(factory)) {
+            throw new IOException("another RMI socket factory is already installed: " + current);
+        }
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = compressThreshold > 0 ? new CompressedSocket(compressThreshold) : new Socket();
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        // до connect, чтобы окно TCP согласовалось с этим размером
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket server = new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                Socket socket = compressThreshold > 0 ? new CompressedSocket(compressThreshold) : new Socket();
+                implAccept(socket);
+                if (sendBufferSize > 0) {
+                    socket.setSendBufferSize(sendBufferSize);
+                }
+                return socket;
+            }
+        };
+        // принятые сокеты наследуют буфер приёма от слушающего
+        if (receiveBufferSize > 0) {
+            server.setReceiveBufferSize(receiveBufferSize);
+        }
+        server.bind(new InetSocketAddress(port));
+        return server;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof TunedSocketFactory)) {
+            return false;
+        }
+        TunedSocketFactory that = (TunedSocketFactory) other;
+        return sendBufferSize == that.sendBufferSize && receiveBufferSize == that.receiveBufferSize
+                && compressThreshold == that.compressThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sendBufferSize, receiveBufferSize, compressThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TunedSocketFactory[sendBuffer=%d, receiveBuffer=%d, compressThreshold=%d]",
+                sendBufferSize, receiveBufferSize, compressThreshold);
+    }
+
+    /** Сокет, который пишет и читает кадры FrameOutputStream и FrameInputStream. */
+    private static class CompressedSocket extends Socket {
+        private final int threshold;
+        private InputStream in;
+        private OutputStream out;
+
+        CompressedSocket(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new FrameInputStream(super.getInputStream());
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new FrameOutputStream(super.getOutputStream(), threshold);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Копит записанное до flush и отправляет одним кадром:
+     * [длина int32][данные] или [длина | COMPRESSED][исходная длина int32][deflate].
+     * Сжатый кадр отправляется, только если он вышел короче исходного.
+     */
+    private static class FrameOutputStream extends FilterOutputStream {
+        private final DataOutputStream data;
+        private final int threshold;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] buffer = new byte[8192];
+        private byte[] compressed = new byte[0];
+        private int length = 0;
+
+        FrameOutputStream(OutputStream out, int threshold) {
+            super(out);
+            this.data = new DataOutputStream(out);
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) {
+            reserve(1);
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int count) {
+            reserve(count);
+            System.arraycopy(b, offset, buffer, length, count);
+            length += count;
+        }
+
+        private void reserve(int count) {
+            if (length + count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                int size = length >= threshold ? deflate() : -1;
+                if (size >= 0 && size + 4 < length) {
+                    data.writeInt(COMPRESSED | size);
+                    data.writeInt(length);
+                    data.write(compressed, 0, size);
+                } else {
+                    data.writeInt(length);
+                    data.write(buffer, 0, length);
+                }
+                length = 0;
+            }
+            data.flush();
+        }
+
+        /** Длина сжатого кадра или -1, если он не уместился в исходный размер. */
+        private int deflate() {
+            if (compressed.length < length) {
+                compressed = new byte[length];
+            }
+            deflater.reset();
+            deflater.setInput(buffer, 0, length);
+            deflater.finish();
+            int size = deflater.deflate(compressed);
+            return deflater.finished() ? size : -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /** Читает кадры FrameOutputStream и отдаёт их содержимое подряд. */
+    private static class FrameInputStream extends FilterInputStream {
+        private final DataInputStream data;
+        private final Inflater inflater = new Inflater();
+        private byte[] frame = new byte[8192];
+        private byte[] compressed = new byte[0];
+        private int position = 0;
+        private int length = 0;
+
+        FrameInputStream(InputStream in) {
+            super(in);
+            this.data = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return frame[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(count, length - position);
+            System.arraycopy(frame, position, b, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !fill()) {
+                return 0;
+            }
+            int skipped = (int) Math.min(n, length - position);
+            position += skipped;
+            return skipped;
+        }
+
+        // только уже распакованное: сокет может держать и часть кадра
+        @Override
+        public int available() {
+            return length - position;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /** Читает кадр, если текущий прочитан. false - конец потока. */
+        private boolean fill() throws IOException {
+            while (position == length) {
+                int header;
+                try {
+                    header = data.readInt();
+                } catch (EOFException e) {
+                    return false;
+                }
+                boolean packed = (header & COMPRESSED) != 0;
+                int size = header & ~COMPRESSED;
+                int raw = packed ? data.readInt() : size;
+                if (size > MAX_FRAME_LENGTH || raw < 0 || raw > MAX_FRAME_LENGTH) {
+                    throw new IOException("TunedSocketFactory: bad frame length " + raw);
+                }
+                if (frame.length < raw) {
+                    frame = new byte[raw];
+                }
+                if (packed) {
+                    inflate(size, raw);
+                } else {
+                    data.readFully(frame, 0, raw);
+                }
+                position = 0;
+                length = raw;
+            }
+            return true;
+        }
+
+        private void inflate(int size, int raw) throws IOException {
+            if (compressed.length < size) {
+                compressed = new byte[size];
+            }
+            data.readFully(compressed, 0, size);
+            inflater.reset();
+            inflater.setInput(compressed, 0, size);
+            try {
+                if (inflater.inflate(frame, 0, raw) != raw || !inflater.finished()) {
+                    throw new IOException("TunedSocketFactory: corrupted compressed frame");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
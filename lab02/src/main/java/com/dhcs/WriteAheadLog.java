@@ -0,0 +1,336 @@
+package com.dhcs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал изменений AppState: записи дописываются в отображённые в память
+ * сегменты по SEGMENT_SIZE байт. Запись в журнал - копирование в память
+ * под коротким замком, на диск данные сбрасывает отдельный поток. Если
+ * fsync включён, писатель ждёт сброса своей записи, и все писатели,
+ * пришедшие за время одного force, ждут следующий общий force (групповая
+ * фиксация).
+ *
+ * Запись: [длина тела int32][crc32 тела int32][тело], тело:
+ * [тип u8][версия int64][такт int64][автор][текст], строки - длина int32 и
+ * UTF-8, у удаления автора текста нет. Нулевая длина - конец сегмента.
+ */
+public class WriteAheadLog implements Closeable {
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final byte PUT_MESSAGE = 1;
+    private static final byte REMOVE_AUTHOR = 2;
+
+    /** Запись журнала при восстановлении. text == null - удаление автора. */
+    public static class Record {
+        private final long version;
+        private final long epoch;
+        private final String author;
+        private final String text;
+
+        Record(long version, long epoch, String author, String text) {
+            this.version = version;
+            this.epoch = epoch;
+            this.author = author;
+            this.text = text;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static class Segment {
+        final long index;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // наибольшая версия среди записей сегмента
+        long maxVersion = 0;
+        // до какого смещения данные уже сброшены на диск
+        int forced = 0;
+
+        Segment(long index, Path path) throws IOException {
+            this.index = index;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    private final Path directory;
+    private final boolean fsync;
+
+    private final Object appendLock = new Object();
+    private Segment current;
+    // заполненные сегменты, ещё нужные для восстановления
+    private final ArrayList<Segment> sealed = new ArrayList<Segment>();
+
+    private final Object commitLock = new Object();
+    private long requested = 0;
+    private long durable = 0;
+    private boolean closed = false;
+    private final Thread committer;
+
+    /** Открывает журнал, новые записи идут в сегмент firstSegment. */
+    public WriteAheadLog(Path directory, long firstSegment, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+        this.current = new Segment(firstSegment, segmentPath(directory, firstSegment));
+        this.committer = new Thread(this::commitLoop, "WriteAheadLog");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    static Path segmentPath(Path directory, long index) {
+        return directory.resolve(String.format("segment-%020d.log", index));
+    }
+
+    /** Сегменты журнала в каталоге по возрастанию номера. */
+    static List<Path> segments(Path directory) throws IOException {
+        ArrayList<Path> result = new ArrayList<Path>();
+        if (!Files.isDirectory(directory)) {
+            return result;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> path.getFileName().toString().matches("segment-\\d{20}\\.log"))
+                    .sorted()
+                    .forEach(result::add);
+        }
+        return result;
+    }
+
+    static long segmentIndex(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    public long appendPut(long version, long epoch, String author, String text) {
+        return append(encode(PUT_MESSAGE, version, epoch, author, text), version);
+    }
+
+    public long appendRemove(long version, String author) {
+        return append(encode(REMOVE_AUTHOR, version, 0, author, null), version);
+    }
+
+    private static byte[] encode(byte type, long version, long epoch, String author, String text) {
+        byte[] authorBytes = author.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 8 + 8 + 4 + authorBytes.length + (textBytes == null ? 0 : 4 + textBytes.length);
+        if (HEADER_SIZE + bodyLength > SEGMENT_SIZE / 2) {
+            throw new IllegalArgumentException("record is too large: " + bodyLength);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+        record.putInt(bodyLength).putInt(0);
+        record.put(type).putLong(version).putLong(epoch);
+        record.putInt(authorBytes.length).put(authorBytes);
+        if (textBytes != null) {
+            record.putInt(textBytes.length).put(textBytes);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, bodyLength);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    /** Дописывает запись и возвращает её позицию для awaitDurable. */
+    private long append(byte[] record, long version) {
+        synchronized (appendLock) {
+            if (current.buffer.position() + record.length + HEADER_SIZE > SEGMENT_SIZE) {
+                roll();
+            }
+            current.buffer.put(record);
+            current.maxVersion = Math.max(current.maxVersion, version);
+            return position(current);
+        }
+    }
+
+    private static long position(Segment segment) {
+        return segment.index * SEGMENT_SIZE + segment.buffer.position();
+    }
+
+    private void roll() {
+        Segment next;
+        try {
+            next = new Segment(current.index + 1, segmentPath(directory, current.index + 1));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sealed.add(current);
+        current = next;
+    }
+
+    /** Ждёт, пока журнал до позиции position окажется на диске. Без fsync сразу возвращается. */
+    public void awaitDurable(long position) {
+        if (!fsync) {
+            return;
+        }
+        synchronized (commitLock) {
+            if (position > requested) {
+                requested = position;
+                commitLock.notifyAll();
+            }
+            while (durable < position && !closed) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            synchronized (commitLock) {
+                while (requested <= durable && !closed) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            long target = force();
+            synchronized (commitLock) {
+                durable = Math.max(durable, target);
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    /** Сбрасывает на диск всё записанное и возвращает достигнутую позицию. */
+    private long force() {
+        ArrayList<Segment> dirty = new ArrayList<Segment>();
+        long target;
+        int end;
+        synchronized (appendLock) {
+            for (Segment segment : sealed) {
+                if (segment.forced < SEGMENT_SIZE) {
+                    dirty.add(segment);
+                }
+            }
+            dirty.add(current);
+            target = position(current);
+            end = current.buffer.position();
+        }
+
+        for (Segment segment : dirty) {
+            int until = segment == dirty.get(dirty.size() - 1) ? end : SEGMENT_SIZE;
+            if (until > segment.forced) {
+                segment.buffer.force(segment.forced, until - segment.forced);
+                segment.forced = until;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Удаляет заполненные сегменты, все записи которых не новее version:
+     * они уже есть в снимке состояния.
+     */
+    public void truncate(long version) throws IOException {
+        ArrayList<Segment> obsolete = new ArrayList<Segment>();
+        synchronized (appendLock) {
+            for (Segment segment : sealed) {
+                if (segment.maxVersion <= version) {
+                    obsolete.add(segment);
+                }
+            }
+            sealed.removeAll(obsolete);
+        }
+
+        for (Segment segment : obsolete) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        synchronized (commitLock) {
+            closed = true;
+            commitLock.notifyAll();
+        }
+        synchronized (appendLock) {
+            for (Segment segment : sealed) {
+                segment.channel.close();
+            }
+            current.channel.close();
+        }
+    }
+
+    /**
+     * Читает записи сегмента по порядку до конца данных или до первой
+     * повреждённой записи (недописанный хвост после сбоя).
+     */
+    static void read(Path segment, Consumer<Record> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    return;
+                }
+
+                crc.reset();
+                crc.update(buffer.slice(start + HEADER_SIZE, length));
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+
+                byte type = buffer.get();
+                long version = buffer.getLong();
+                long epoch = buffer.getLong();
+                String author = readString(buffer);
+                String text = type == PUT_MESSAGE ? readString(buffer) : null;
+                consumer.accept(new Record(version, epoch, author, text));
+                buffer.position(start + HEADER_SIZE + length);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
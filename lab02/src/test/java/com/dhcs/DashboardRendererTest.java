@@ -0,0 +1,63 @@
+package com.dhcs;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Строка перерисовывается на такте, когда возраст сообщения переходит
+ * последний порог, даже если сообщение пришло с тактом намного позже
+ * последнего выведенного кадра и его такт перерисовки делит ячейку колеса
+ * с более ранним тактом.
+ */
+public class DashboardRendererTest {
+    // последний порог возраста в DashboardRenderer
+    private static final int LAST_THRESHOLD = 24;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DashboardRenderer renderer =
+            new DashboardRenderer(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+    private final AppState state = new AppState();
+
+    @Test
+    public void redrawsDeltaAfterSkippedTicks() {
+        renderer.reset(state.getTick(), state.getSnapshot());
+        renderer.render(state.getTick());
+
+        for (int i = 0; i < 20; i++) {
+            state.timeStep();
+        }
+        state.putMessage("alice", "hello");
+        renderer.apply(state.getChangesSince(renderer.getVersion()));
+        renderer.render(state.getTick());
+
+        assertAgedAt(state.getTick() + LAST_THRESHOLD);
+    }
+
+    @Test
+    public void redrawsSnapshotAfterReset() {
+        for (int i = 0; i < 100; i++) {
+            state.timeStep();
+        }
+        state.putMessage("alice", "hello");
+        renderer.reset(state.getTick(), state.getSnapshot());
+        renderer.render(state.getTick());
+
+        assertAgedAt(state.getTick() + LAST_THRESHOLD);
+    }
+
+    /** Выводит кадры до такта aged и проверяет, что строка стала старой. */
+    private void assertAgedAt(long aged) {
+        for (long tick = state.getTick() + 1; tick <= aged; tick++) {
+            state.timeStep();
+            bytes.reset();
+            renderer.render(tick);
+        }
+        String frame = bytes.toString(StandardCharsets.UTF_8);
+        assertTrue("row was not redrawn: " + frame, frame.contains("]: hello"));
+    }
+}
@@ -0,0 +1,127 @@
+package com.dhcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Восстановление доски из снимка и журнала после сбоя: последняя запись
+ * журнала обрезана посередине, восстановленная доска должна совпасть с
+ * доской до этой записи.
+ */
+public class StateStoreTest {
+    // текст, которым пара десятков записей переполняет сегмент журнала
+    private static final String LARGE = "x".repeat(4 * 1024 * 1024);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final HashMap<String, String> expected = new HashMap<String, String>();
+
+    @Test
+    public void recoversAfterTornTail() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        AppState state = new AppState();
+        StateStore store = StateStore.open(directory, state, false);
+        put(state, "alice", "hello");
+        put(state, "bob", "hi");
+        put(state, "carol", "hey");
+        remove(state, "bob");
+        put(state, "alice", "bye");
+        crash(store, state, "carol", "lost");
+
+        assertEquals(expected, recover(directory));
+    }
+
+    @Test
+    public void recoversAcrossSegmentRoll() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        AppState state = new AppState();
+        StateStore store = StateStore.open(directory, state, false);
+        for (int i = 0; i < 20; i++) {
+            put(state, "author-" + (i % 3), i + LARGE);
+        }
+        put(state, "alice", "after roll");
+        crash(store, state, "author-0", "lost");
+
+        assertTrue(WriteAheadLog.segments(directory).size() > 1);
+        assertEquals(expected, recover(directory));
+    }
+
+    @Test
+    public void recoversAfterTruncate() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        AppState state = new AppState();
+        StateStore store = StateStore.open(directory, state, false);
+        for (int i = 0; i < 20; i++) {
+            put(state, "author-" + (i % 3), i + LARGE);
+        }
+        List<Path> rolled = WriteAheadLog.segments(directory);
+        assertTrue(rolled.size() > 1);
+
+        // снимок покрывает заполненные сегменты, и журнал их удаляет
+        store.checkpoint();
+        assertFalse(Files.exists(rolled.get(0)));
+
+        put(state, "author-1", "after truncate");
+        remove(state, "author-2");
+        put(state, "alice", "hello");
+        crash(store, state, "alice", "lost");
+
+        assertEquals(expected, recover(directory));
+    }
+
+    private void put(AppState state, String author, String text) {
+        state.putMessage(author, text);
+        expected.put(author, text);
+    }
+
+    private void remove(AppState state, String author) {
+        state.removeAuthor(author);
+        expected.remove(author);
+    }
+
+    /** Пишет последнюю запись и обрезает её в журнале, как недописанную при сбое. */
+    private void crash(StateStore store, AppState state, String author, String text) throws IOException {
+        state.putMessage(author, text);
+        store.close();
+
+        List<Path> segments = WriteAheadLog.segments(folder.getRoot().toPath());
+        Path last = segments.get(segments.size() - 1);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int start = 0;
+            int tail = -1;
+            while (start + 8 <= buffer.limit() && buffer.getInt(start) > 0) {
+                tail = start;
+                start += 8 + buffer.getInt(start);
+            }
+            assertTrue(tail >= 0);
+            channel.truncate(tail + 8 + buffer.getInt(tail) / 2);
+        }
+    }
+
+    private static HashMap<String, String> recover(Path directory) throws IOException {
+        AppState state = new AppState();
+        StateStore.load(directory, state);
+        AppState.Snapshot snapshot = state.getSnapshot();
+        HashMap<String, String> board = new HashMap<String, String>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            board.put(snapshot.get(i).getAuthor(), snapshot.get(i).toString());
+        }
+        return board;
+    }
+}